@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.security.cmf.EncryptionResult;
+import org.apache.hadoop.security.cmf.impl.AESEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of a single AESEncryptor shared by all benchmark threads.
+ * The <code>Contended</code> variants run on four threads; run with
+ * <code>-t 1</code>, <code>-t 2</code> ... <code>-t max</code> to see how
+ * throughput scales with the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class AESEncryptorBenchmark {
+
+  private static final byte[] PLAIN = "a credential of typical length".getBytes();
+
+  private AESEncryptor aes;
+  private EncryptionResult encrypted;
+
+  @Setup
+  public void setup() throws Exception {
+    aes = new AESEncryptor("benchmark passphrase");
+    encrypted = aes.encrypt(PLAIN);
+  }
+
+  @Benchmark
+  public EncryptionResult encrypt() throws Exception {
+    return aes.encrypt(PLAIN);
+  }
+
+  @Benchmark
+  public byte[] decrypt() throws Exception {
+    return aes.decrypt(encrypted.salt, encrypted.iv, encrypted.cipher);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EncryptionResult encryptContended() throws Exception {
+    return aes.encrypt(PLAIN);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] decryptContended() throws Exception {
+    return aes.decrypt(encrypted.salt, encrypted.iv, encrypted.cipher);
+  }
+}
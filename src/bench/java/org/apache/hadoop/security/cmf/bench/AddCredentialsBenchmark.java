@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares adding a batch of credentials one at a time with adding them
+ * through a single addCredentials call. The per-alias path grows with the
+ * square of the batch size, the batched path linearly.
+ * The JCEKS key protection iteration count is lowered to its minimum so that
+ * sealing each entry does not drown out the load and store cost being compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.jceks.iterationCount=10000")
+public class AddCredentialsBenchmark {
+
+  @Param({"1", "10", "100", "1000"})
+  public int batchSize;
+
+  private File dir;
+  private CMFKeystoreService ks;
+  private Map<String, String> credentials;
+
+  @Setup(Level.Iteration)
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("cmf-bench").toFile();
+    MasterService ms = new TestCMFMasterService("bench");
+    ms.setupMasterSecret(dir.getPath(), false);
+    ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    ks.createCredentialStore();
+    credentials = new LinkedHashMap<String, String>();
+    for (int i = 0; i < batchSize; i++) {
+      credentials.put("alias-" + i, "password-" + i);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Benchmark
+  public void addCredential() throws Exception {
+    for (Map.Entry<String, String> credential : credentials.entrySet()) {
+      ks.addCredential(credential.getKey(), credential.getValue());
+    }
+  }
+
+  @Benchmark
+  public void addCredentials() throws Exception {
+    ks.addCredentials(credentials);
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFAliasService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.ConfigValueTemplate;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The read paths of CMFAliasService: looking up an alias that is present
+ * and one that is not, and expanding configuration values. The
+ * <code>Contended</code> variants run the same call on four threads sharing
+ * one service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.jceks.iterationCount=10000")
+public class AliasServiceBenchmark {
+
+  private static final String EMBEDDED = "jdbc:user=${ALIAS=db.user};pw=${ALIAS=db.pw}";
+
+  private CMFAliasService as;
+  private ConfigValueTemplate compiled;
+
+  @Setup
+  public void setup() throws Exception {
+    File dir = new File("target/bench-fixtures/alias");
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("bench");
+    ms.setupMasterSecret(dir.getPath(), false);
+    CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    ks.createCredentialStore();
+    as = new CMFAliasService(ks);
+    as.addAlias("db.user", "scott");
+    as.addAlias("db.pw", "a credential of typical length");
+    compiled = ConfigValueTemplate.compile(EMBEDDED);
+  }
+
+  @Benchmark
+  public char[] aliasHit() {
+    return as.getPasswordFromAlias("db.pw");
+  }
+
+  @Benchmark
+  public char[] aliasMiss() {
+    return as.getPasswordFromAlias("no.such.alias");
+  }
+
+  @Benchmark
+  public char[] configValueClearText() {
+    return as.getPasswordFromConfigValue("clear text password");
+  }
+
+  @Benchmark
+  public char[] configValueAlias() {
+    return as.getPasswordFromConfigValue("${ALIAS=db.pw}");
+  }
+
+  @Benchmark
+  public char[] configValueEmbedded() {
+    return as.getPasswordFromConfigValue(EMBEDDED);
+  }
+
+  @Benchmark
+  public char[] configValuePrecompiled() {
+    return as.getPasswordFromConfigValue(compiled);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public char[] aliasHitContended() {
+    return as.getPasswordFromAlias("db.pw");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public char[] aliasMissContended() {
+    return as.getPasswordFromAlias("no.such.alias");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public char[] configValueEmbeddedContended() {
+    return as.getPasswordFromConfigValue(EMBEDDED);
+  }
+}
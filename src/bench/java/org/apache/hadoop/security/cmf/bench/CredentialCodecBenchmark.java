@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.security.cmf.impl.CredentialCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The UTF-8 round trip a credential makes into and out of the credential
+ * store, through a String as the store used to do and through
+ * {@link CredentialCodec}. Run with <code>-prof gc</code> to compare the
+ * bytes allocated per operation as well as throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CredentialCodecBenchmark {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private char[] credential;
+  private String credentialString;
+
+  @Setup
+  public void setup() {
+    credentialString = "a credential of typical length";
+    credential = credentialString.toCharArray();
+  }
+
+  @Benchmark
+  public char[] stringRoundTrip() throws Exception {
+    byte[] encoded = new String(credential).getBytes(UTF8);
+    char[] decoded = new String(encoded, UTF8).toCharArray();
+    Arrays.fill(encoded, (byte) 0);
+    return decoded;
+  }
+
+  @Benchmark
+  public char[] charsRoundTrip() {
+    byte[] encoded = CredentialCodec.encode(credential);
+    char[] decoded = CredentialCodec.decode(encoded);
+    Arrays.fill(encoded, (byte) 0);
+    return decoded;
+  }
+
+  @Benchmark
+  public byte[] stringEncode() {
+    return credentialString.getBytes(UTF8);
+  }
+
+  @Benchmark
+  public byte[] charsEncode() {
+    return CredentialCodec.encode(credential);
+  }
+}
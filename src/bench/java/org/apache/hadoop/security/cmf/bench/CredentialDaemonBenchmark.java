@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFAliasService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.CredentialDaemon;
+import org.apache.hadoop.security.cmf.impl.RemoteAliasService;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups served by a CredentialDaemon to clients on sixteen threads, each
+ * with its own connection as a separate process would have. The daemon runs
+ * in the benchmark JVM; the client cache is disabled so that every lookup
+ * is a round trip.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.jceks.iterationCount=10000")
+@Threads(16)
+public class CredentialDaemonBenchmark {
+
+  private static final List<String> BATCH = Arrays.asList("db.user", "db.pw", "ldap.pw", "missing");
+
+  @State(Scope.Benchmark)
+  public static class Daemon {
+    File dir = new File("target/bench-fixtures/daemon");
+    CredentialDaemon daemon;
+
+    @Setup
+    public void setup() throws Exception {
+      FileUtils.deleteQuietly(dir);
+      MasterService ms = new TestCMFMasterService("bench");
+      ms.setupMasterSecret(dir.getPath(), false);
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+      ks.createCredentialStore();
+      CMFAliasService as = new CMFAliasService(ks);
+      as.addAlias("db.user", "scott");
+      as.addAlias("db.pw", "a credential of typical length");
+      as.addAlias("ldap.pw", "another credential");
+      daemon = new CredentialDaemon(as, 4);
+      daemon.start(0, new File(dir, "bench-daemon.properties"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      daemon.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    RemoteAliasService remote;
+
+    @Setup(Level.Trial)
+    public void setup(Daemon daemon) {
+      remote = new RemoteAliasService(new File(daemon.dir, "bench-daemon.properties"), 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      remote.close();
+    }
+  }
+
+  @Benchmark
+  public char[] lookup(Client client) {
+    return client.remote.getPasswordFromAlias("db.pw");
+  }
+
+  @Benchmark
+  public char[][] lookupBatch(Client client) throws Exception {
+    return client.remote.lookup(BATCH, false).get();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(8)
+  public char[][] lookupPipelined(Client client) throws Exception {
+    // eight requests in flight before waiting on the first
+    List<CompletableFuture<char[][]>> inflight = new ArrayList<CompletableFuture<char[][]>>(8);
+    for (int i = 0; i < 8; i++) {
+      inflight.add(client.remote.lookup(Collections.singletonList("db.pw"), false));
+    }
+    char[][] last = null;
+    for (CompletableFuture<char[][]> response : inflight) {
+      last = response.get();
+    }
+    return last;
+  }
+}
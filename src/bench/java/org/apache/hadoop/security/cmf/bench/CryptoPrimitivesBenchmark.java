@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+
+import org.apache.hadoop.security.cmf.impl.CryptoPrimitives;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of obtaining a primitive through the JCA provider lookup compared
+ * with {@link CryptoPrimitives}, both for a new instance from the resolved
+ * provider and for the thread-confined instance. Run with several threads,
+ * the lookups contend on the provider list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@Threads(4)
+public class CryptoPrimitivesBenchmark {
+
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final String KDF = "PBKDF2WithHmacSHA1";
+
+  @Benchmark
+  public Cipher cipherLookup() throws Exception {
+    return Cipher.getInstance(TRANSFORMATION);
+  }
+
+  @Benchmark
+  public Cipher cipherResolved() throws Exception {
+    return CryptoPrimitives.newCipher(TRANSFORMATION);
+  }
+
+  @Benchmark
+  public Cipher cipherConfined() throws Exception {
+    return CryptoPrimitives.getCipher(TRANSFORMATION);
+  }
+
+  @Benchmark
+  public SecretKeyFactory keyFactoryLookup() throws Exception {
+    return SecretKeyFactory.getInstance(KDF);
+  }
+
+  @Benchmark
+  public SecretKeyFactory keyFactoryConfined() throws Exception {
+    return CryptoPrimitives.getSecretKeyFactory(KDF);
+  }
+
+  @Benchmark
+  public KeyStore keyStoreLookup() throws Exception {
+    return KeyStore.getInstance("JCEKS");
+  }
+
+  @Benchmark
+  public KeyStore keyStoreResolved() throws Exception {
+    return CryptoPrimitives.newKeyStore("JCEKS");
+  }
+}
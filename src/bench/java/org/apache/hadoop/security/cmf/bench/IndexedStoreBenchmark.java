@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.IndexedCredentialStoreConverter;
+import org.apache.hadoop.security.cmf.impl.IndexedKeystoreService;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the JCEKS credential store with the memory-mapped indexed store:
+ * opening a store and reading one alias (startup cost), and reading a random
+ * alias from an already open store.
+ * <p>
+ * Fixtures are built once per size under target/bench-fixtures and reused by
+ * later runs. Building the JCEKS fixture seals every entry, so the 1M alias
+ * fixture takes a long time the first time around; pass
+ * <code>-p storeSize=1000,100000</code> to skip it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djdk.jceks.iterationCount=10000"})
+public class IndexedStoreBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int storeSize;
+
+  private File dir;
+  private MasterService ms;
+  private CMFKeystoreService jceks;
+  private IndexedKeystoreService indexed;
+
+  @Setup
+  public void setup() throws Exception {
+    dir = new File("target/bench-fixtures/indexed-" + storeSize);
+    ms = new TestCMFMasterService("bench");
+    ms.setupMasterSecret(dir.getPath(), false);
+    File jceksFile = new File(dir, "bench-credentials.jceks");
+    File indexedFile = new File(dir, "bench-credentials.idx");
+    if (!jceksFile.exists()) {
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+      ks.createCredentialStore();
+      Map<String, String> credentials = new HashMap<String, String>();
+      for (int i = 0; i < storeSize; i++) {
+        credentials.put("alias-" + i, "password-" + i);
+      }
+      ks.addCredentials(credentials);
+    }
+    if (!indexedFile.exists()) {
+      IndexedCredentialStoreConverter.toIndexed(jceksFile, indexedFile, ms.getMasterSecret());
+    }
+    jceks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    indexed = new IndexedKeystoreService(dir.getPath(), "bench", ms);
+  }
+
+  private String randomAlias() {
+    return "alias-" + ThreadLocalRandom.current().nextInt(storeSize);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5)
+  public char[] jceksOpenAndGet() throws Exception {
+    return new CMFKeystoreService(dir.getPath(), "bench", ms).getCredential(randomAlias());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5)
+  public char[] indexedOpenAndGet() throws Exception {
+    return new IndexedKeystoreService(dir.getPath(), "bench", ms).getCredential(randomAlias());
+  }
+
+  @Benchmark
+  public char[] jceksGet() {
+    return jceks.getCredential(randomAlias());
+  }
+
+  @Benchmark
+  public char[] indexedGet() {
+    return indexed.getCredential(randomAlias());
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the JCEKS credential store at several store sizes, as a service
+ * does on every uncached access, and checking its availability by probing
+ * its header and checksum compared with a full verification. Fixtures are
+ * built once per size under target/bench-fixtures and reused by later runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.jceks.iterationCount=10000")
+public class KeystoreLoadBenchmark {
+
+  @Param({"10", "100", "1000", "10000"})
+  public int storeSize;
+
+  private File dir;
+  private MasterService ms;
+  private CMFKeystoreService ks;
+
+  @Setup
+  public void setup() throws Exception {
+    dir = new File("target/bench-fixtures/load-" + storeSize);
+    ms = new TestCMFMasterService("bench");
+    ms.setupMasterSecret(dir.getPath(), false);
+    ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    if (!new File(dir, "bench-credentials.jceks").exists()) {
+      ks.createCredentialStore();
+      Map<String, String> credentials = new HashMap<String, String>();
+      for (int i = 0; i < storeSize; i++) {
+        credentials.put("alias-" + i, "password-" + i);
+      }
+      ks.addCredentials(credentials);
+    }
+    if (!new File(dir, "bench-credentials.jceks.sha256").exists()) {
+      // fixtures from before checksums were recorded
+      ks.addCredential("alias-0", "password-0");
+    }
+  }
+
+  @Benchmark
+  public KeyStore load() {
+    return ks.getCredentialStore();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public KeyStore loadContended() {
+    return ks.getCredentialStore();
+  }
+
+  @Benchmark
+  public boolean probe() throws Exception {
+    return new CMFKeystoreService(dir.getPath(), "bench", ms).isCredentialStoreAvailable();
+  }
+
+  @Benchmark
+  public boolean verify() throws Exception {
+    CMFKeystoreService fresh = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    fresh.setFullVerification(true);
+    return fresh.isCredentialStoreAvailable();
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.DurabilityMode;
+import org.apache.hadoop.security.cmf.impl.TestCMFMasterService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The latency of a single credential write in each durability mode. The
+ * difference between the modes is the cost of the flushes each one makes,
+ * so run it on the file system the stores will live on; set cmf.bench.dir
+ * to place the store there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.jceks.iterationCount=10000")
+public class WriteDurabilityBenchmark {
+
+  @Param({"STRICT", "BATCHED", "RELAXED"})
+  public DurabilityMode mode;
+
+  private File dir;
+  private CMFKeystoreService ks;
+  private int next = 0;
+
+  @Setup
+  public void setup() throws Exception {
+    String parent = System.getProperty("cmf.bench.dir");
+    dir = parent == null ? Files.createTempDirectory("cmf-bench").toFile()
+        : Files.createTempDirectory(new File(parent).toPath(), "cmf-bench").toFile();
+    MasterService ms = new TestCMFMasterService("bench");
+    ms.setupMasterSecret(dir.getPath(), false);
+    ks = new CMFKeystoreService(dir.getPath(), "bench", ms);
+    ks.createCredentialStore();
+    ks.setDurabilityMode(mode);
+    for (int i = 0; i < 100; i++) {
+      ks.addCredential("alias-" + i, "password-" + i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Benchmark
+  public void addCredential() throws Exception {
+    ks.addCredential("alias-" + (next++ % 100), "password");
+  }
+}
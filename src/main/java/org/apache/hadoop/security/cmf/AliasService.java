@@ -18,16 +18,28 @@
 package org.apache.hadoop.security.cmf;
 
 import java.security.Key;
+import java.util.Collection;
+import java.util.Map;
 
 public interface AliasService {
 
   void addAlias(String alias, String value) throws KeystoreServiceException;
 
+  void addAlias(String alias, char[] value) throws KeystoreServiceException;
+
+  void addAliases(Map<String, String> aliases) throws KeystoreServiceException;
+
   char[] getPasswordFromAlias(String alias);
 
   char[] getPasswordFromAlias(String alias, boolean generate);
 
   void generateAlias(String alias) throws KeystoreServiceException;
+
+  void generateAliases(Collection<String> aliases) throws KeystoreServiceException;
   
   char[] getPasswordFromConfigValue(String configValue);
+
+  ConfigResolution resolveAll(Map<String, String> config);
+
+  ConfigResolution resolveAll(Iterable<Map.Entry<String, String>> config);
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking view of an {@link AliasService}.
+ * Futures complete exceptionally with a KeystoreServiceException where the
+ * blocking call would have thrown one.
+ */
+public interface AsyncAliasService {
+
+  CompletableFuture<char[]> getPasswordFromAlias(String alias);
+
+  CompletableFuture<char[]> getPasswordFromAlias(String alias, boolean generate);
+
+  CompletableFuture<char[]> getPasswordFromConfigValue(String configValue);
+
+  /**
+   * Add the alias, completing with a copy of its value once it is stored.
+   */
+  CompletableFuture<char[]> addAlias(String alias, String value);
+
+  /**
+   * Generate a password for the alias, completing with the stored password.
+   */
+  CompletableFuture<char[]> generateAlias(String alias);
+}
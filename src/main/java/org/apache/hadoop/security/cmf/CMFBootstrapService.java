@@ -23,6 +23,7 @@ import org.apache.hadoop.security.cmf.AliasService;
 import org.apache.hadoop.security.cmf.impl.CMFAliasService;
 import org.apache.hadoop.security.cmf.impl.CMFMasterService;
 import org.apache.hadoop.security.cmf.impl.CMFKeystoreService;
+import org.apache.hadoop.security.cmf.impl.CMFMetrics;
 
 /**
 * This is a simple example of a service to bootstrap the CMF framework.
@@ -49,6 +50,13 @@ public class CMFBootstrapService {
           System.exit(1);
 		}
 		as = new CMFAliasService(ks);
+		try {
+			CMFMetrics.getInstance().registerMBean();
+		}
+		catch(Exception e) {
+		  // metrics are optional, carry on without the JMX view
+		  e.printStackTrace();
+		}
 	}
 	
 	public void start(boolean persist) {
@@ -76,6 +84,12 @@ public class CMFBootstrapService {
 	}
 	
 	public void destroy() {
+		try {
+			CMFMetrics.getInstance().unregisterMBean();
+		}
+		catch(Exception e) {
+		  e.printStackTrace();
+		}
 	}
 	
 	public AliasService getAliasService() {
@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of resolving a set of configuration values through
+ * {@link AliasService#resolveAll(Map)}. Every key of the input ends up either
+ * in the resolved values or in the errors, never both.
+ */
+public class ConfigResolution {
+  private final Map<String, char[]> values;
+  private final Map<String, KeystoreServiceException> errors;
+
+  public ConfigResolution(Map<String, char[]> values, Map<String, KeystoreServiceException> errors) {
+    this.values = Collections.unmodifiableMap(values);
+    this.errors = Collections.unmodifiableMap(errors);
+  }
+
+  public Map<String, char[]> getValues() {
+    return values;
+  }
+
+  public Map<String, KeystoreServiceException> getErrors() {
+    return errors;
+  }
+
+  public boolean hasErrors() {
+    return !errors.isEmpty();
+  }
+}
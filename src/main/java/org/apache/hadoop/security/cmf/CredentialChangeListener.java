@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf;
+
+import java.util.Set;
+
+/**
+ * Told when a credential store has been reloaded because its file was
+ * changed by another writer. Listeners are called on a background thread
+ * and should hand off anything slow.
+ */
+public interface CredentialChangeListener {
+
+  /**
+   * @param serviceName the service whose store changed
+   * @param aliases the aliases that were added, removed or replaced
+   */
+  void credentialsChanged(String serviceName, Set<String> aliases);
+}
@@ -24,6 +24,8 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Collection;
+import java.util.Map;
 
 public interface KeystoreService {
 
@@ -45,6 +47,31 @@ public interface KeystoreService {
 
   public void addCredential(String alias, String key) throws KeystoreServiceException;
 
+  /**
+   * Add a credential without it ever becoming a String. The caller keeps
+   * ownership of the array and may wipe it once this returns.
+   */
+  public void addCredential(String alias, char[] key) throws KeystoreServiceException;
+
+  public void addCredentials(Map<String, String> credentials) throws KeystoreServiceException;
+
+  /**
+   * Add credentials given as char arrays, which are left for the caller to
+   * wipe.
+   */
+  public void addCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException;
+
+  /**
+   * Add the credential unless the alias already exists.
+   * @return the credential now stored under the alias, which is the given
+   * value only if this call added it
+   */
+  public char[] addCredentialIfAbsent(String alias, String value) throws KeystoreServiceException;
+
+  public char[] addCredentialIfAbsent(String alias, char[] value) throws KeystoreServiceException;
+
   public char[] getCredential(String alias);
 
+  public Map<String, char[]> getCredentials(Collection<String> aliases);
+
 }
@@ -20,6 +20,10 @@ package org.apache.hadoop.security.cmf;
 @SuppressWarnings("serial")
 public class KeystoreServiceException extends Exception {
 
+  public KeystoreServiceException(String msg) {
+    super(msg);
+  }
+
   public KeystoreServiceException(Exception e) {
     super(e);
   }
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf;
+
+/**
+ * Receives the measurements taken by the framework while metrics are
+ * enabled, for forwarding to whatever monitoring system is in use.
+ * Implementations are called on the thread doing the work and must be cheap
+ * and thread safe.
+ */
+public interface MetricsSink {
+
+  /**
+   * @param operation the name of the timed operation, e.g. "GET" or "KDF"
+   * @param latencyNanos how long the operation took
+   */
+  void recordOperation(String operation, long latencyNanos);
+
+  /**
+   * @param hit whether a credential lookup was served from the cache
+   */
+  void recordCacheAccess(boolean hit);
+}
@@ -18,82 +18,67 @@
 package org.apache.hadoop.security.cmf.impl;
 
 import org.apache.hadoop.security.cmf.EncryptionResult;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.io.Closeable;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
-import java.security.spec.KeySpec;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
-public class AESEncryptor {
+/**
+ * Encrypts and decrypts with AES/CBC using a key derived from a passphrase.
+ * <p>
+ * An instance may be shared by any number of threads. Each thread uses its
+ * own Cipher and every encryption gets a fresh random IV, so no call mutates
+ * state shared with another.
+ * <p>
+ * Keys derived from the passphrase are kept in a small cache keyed by the
+ * passphrase, salt and iteration count, so decrypting repeatedly with the
+ * same salt runs PBKDF2 only once. Closing the encryptor wipes the cache.
+ */
+public class AESEncryptor implements Closeable {
   
   private static final int ITERATION_COUNT = 65536;
   private static final int KEY_LENGTH = 128;
-  private Cipher ecipher;
-  private Cipher dcipher;
-  private SecretKey secret;
-  private byte[] salt = null;
-  private char[] passPhrase = null;
- 
-  public AESEncryptor(String passPhrase) {
+  private static final int IV_LENGTH = 16;
+  private static final int KEY_CACHE_SIZE = 16;
+  private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+  // a per-thread generator avoids the process wide lock of the native PRNG
+  private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+    @Override
+    protected SecureRandom initialValue() {
       try {
-        this.passPhrase = passPhrase.toCharArray();
-        salt = new byte[8];
-        SecureRandom rnd = new SecureRandom();
-        rnd.nextBytes(salt);
-        
-        SecretKey tmp = getKeyFromPassword(passPhrase);
-        secret = new SecretKeySpec (tmp.getEncoded(), "AES");
- 
-        ecipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        ecipher.init(Cipher.ENCRYPT_MODE, secret);
-       
-        dcipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        byte[] iv = ecipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
-        dcipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
+        return SecureRandom.getInstance("SHA1PRNG");
       } catch (NoSuchAlgorithmException e) {
-        e.printStackTrace();
-      } catch (NoSuchPaddingException e) {
-        e.printStackTrace();
-      } catch (InvalidKeyException e) {
-        e.printStackTrace();
-      } catch (InvalidParameterSpecException e) {
-        e.printStackTrace();
-      } catch (InvalidAlgorithmParameterException e) {
-        e.printStackTrace();
+        return new SecureRandom();
       }
+    }
+  };
+
+  private final DerivedKeyCache keyCache = new DerivedKeyCache(KEY_CACHE_SIZE);
+  private final SecretKey secret;
+  private final byte[] salt;
+  private final char[] passPhrase;
+ 
+  public AESEncryptor(String passPhrase) {
+    this.passPhrase = passPhrase.toCharArray();
+    this.salt = new byte[8];
+    RANDOM.get().nextBytes(salt);
+    SecretKey tmp = getKeyFromPassword(passPhrase);
+    this.secret = tmp == null ? null : new SecretKeySpec(tmp.getEncoded(), "AES");
   }
   
   AESEncryptor(SecretKey secret) {
-    try {
-      this.secret = new SecretKeySpec (secret.getEncoded(), "AES");
-
-      ecipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      ecipher.init(Cipher.ENCRYPT_MODE, secret);
-     
-      dcipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      byte[] iv = ecipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
-      dcipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
-    } catch (NoSuchAlgorithmException e) {
-      e.printStackTrace();
-    } catch (NoSuchPaddingException e) {
-      e.printStackTrace();
-    } catch (InvalidKeyException e) {
-      e.printStackTrace();
-    } catch (InvalidParameterSpecException e) {
-      e.printStackTrace();
-    } catch (InvalidAlgorithmParameterException e) {
-      e.printStackTrace();
-    }
+    this.passPhrase = null;
+    this.salt = null;
+    this.secret = new SecretKeySpec(secret.getEncoded(), "AES");
   }
 
   public SecretKey getKeyFromPassword(String passPhrase) {
@@ -101,21 +86,60 @@ public class AESEncryptor {
   }
   
   public SecretKey getKeyFromPassword(String passPhrase, byte[] salt) {
+    char[] chars = passPhrase.toCharArray();
+    DerivedKeyCache.Id id = new DerivedKeyCache.Id(chars, salt, ITERATION_COUNT);
+    byte[] cached = keyCache.get(id);
+    if (cached != null) {
+      Arrays.fill(chars, ' ');
+      try {
+        return new SecretKeySpec(cached, "PBKDF2WithHmacSHA1");
+      } finally {
+        Arrays.fill(cached, (byte) 0);
+      }
+    }
+
     SecretKeyFactory factory;
     SecretKey key = null;
+    long start = CMFMetrics.start();
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      KeySpec spec = new PBEKeySpec(passPhrase.toCharArray(), salt, ITERATION_COUNT, KEY_LENGTH);
+      factory = CryptoPrimitives.getSecretKeyFactory("PBKDF2WithHmacSHA1");
+      PBEKeySpec spec = new PBEKeySpec(chars, salt, ITERATION_COUNT, KEY_LENGTH);
       key = factory.generateSecret(spec);
+      spec.clearPassword();
+      byte[] encoded = key.getEncoded();
+      keyCache.put(id, encoded);
+      Arrays.fill(encoded, (byte) 0);
     } catch (NoSuchAlgorithmException e) {
       e.printStackTrace();
     } catch (InvalidKeySpecException e) {
       e.printStackTrace();
+    } finally {
+      Arrays.fill(chars, ' ');
+      CMFMetrics.stop(CMFMetrics.Operation.KDF, start);
     }
     
     return key;
   }
 
+  public long getKeyCacheHits() {
+    return keyCache.getHits();
+  }
+
+  public long getKeyCacheMisses() {
+    return keyCache.getMisses();
+  }
+
+  /**
+   * Wipe the cached derived keys and the passphrase.
+   */
+  @Override
+  public void close() {
+    keyCache.clear();
+    if (passPhrase != null) {
+      Arrays.fill(passPhrase, ' ');
+    }
+  }
+
   public EncryptionResult encrypt(String encrypt) throws Exception {
       byte[] bytes = encrypt.getBytes("UTF8");
       EncryptionResult atom = encrypt(bytes);
@@ -123,8 +147,17 @@ public class AESEncryptor {
   }
 
   public EncryptionResult encrypt(byte[] plain) throws Exception {
-    EncryptionResult atom = new EncryptionResult(salt, ecipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV(), ecipher.doFinal(plain));
-    return atom;
+    long start = CMFMetrics.start();
+    try {
+      byte[] iv = new byte[IV_LENGTH];
+      RANDOM.get().nextBytes(iv);
+      Cipher ecipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+      ecipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(iv));
+      EncryptionResult atom = new EncryptionResult(salt, iv, ecipher.doFinal(plain));
+      return atom;
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.ENCRYPT, start);
+    }
   }
 
   public String decrypt(String salt, String iv, String cipher) throws Exception {
@@ -133,15 +166,27 @@ public class AESEncryptor {
   }
 
   public byte[] decrypt(byte[] salt, byte[] iv, byte[] encrypt) throws Exception {
-    SecretKey tmp = getKeyFromPassword(new String(passPhrase), salt);
-    secret = new SecretKeySpec(tmp.getEncoded(), "AES");
-    
-    dcipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(iv));
-    return dcipher.doFinal(encrypt);
+    long start = CMFMetrics.start();
+    try {
+      SecretKey tmp = getKeyFromPassword(new String(passPhrase), salt);
+      SecretKey key = new SecretKeySpec(tmp.getEncoded(), "AES");
+
+      Cipher dcipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+      dcipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+      return dcipher.doFinal(encrypt);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.DECRYPT, start);
+    }
   }
   
   public byte[] decrypt(byte[] encrypt) throws Exception {
-    dcipher.init(Cipher.DECRYPT_MODE, secret);
-    return dcipher.doFinal(encrypt);
+    long start = CMFMetrics.start();
+    try {
+      Cipher dcipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+      dcipher.init(Cipher.DECRYPT_MODE, secret);
+      return dcipher.doFinal(encrypt);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.DECRYPT, start);
+    }
   }
 }
@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * A Bloom filter over the aliases of one version of a credential store.
+ * <p>
+ * {@link #mightContain(String)} returning false means the alias is
+ * definitely not in the store, so a lookup of a missing alias can be
+ * answered without unsealing anything. A true answer is wrong with roughly
+ * {@link #getExpectedFalsePositiveRate()}. The filter is immutable and is
+ * built together with the snapshot it describes, so it always changes
+ * atomically with the store.
+ * <p>
+ * JCEKS keeps aliases lowercased and matches them regardless of case, so
+ * the filter hashes the lowercased alias too.
+ */
+public final class AliasFilter {
+
+  static final double TARGET_FALSE_POSITIVE_RATE = 0.01;
+  private static final double LN2 = Math.log(2);
+
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashes;
+  private final int entries;
+
+  private AliasFilter(long[] bits, int hashes, int entries) {
+    this.bits = bits;
+    this.bitCount = (long) bits.length * 64;
+    this.hashes = hashes;
+    this.entries = entries;
+  }
+
+  static AliasFilter of(Collection<String> aliases) {
+    int n = Math.max(aliases.size(), 1);
+    // optimal size and number of hash functions for the target rate
+    long m = (long) Math.ceil(-n * Math.log(TARGET_FALSE_POSITIVE_RATE) / (LN2 * LN2));
+    int k = Math.max(1, (int) Math.round((double) m / n * LN2));
+    AliasFilter filter = new AliasFilter(new long[(int) ((m + 63) / 64)], k, aliases.size());
+    for (String alias : aliases) {
+      filter.add(alias);
+    }
+    return filter;
+  }
+
+  private void add(String alias) {
+    long h1 = IndexedCredentialStore.hash(alias.toLowerCase(Locale.ENGLISH));
+    long h2 = mix(h1);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * @return false if the alias is definitely not present
+   */
+  public boolean mightContain(String alias) {
+    long h1 = IndexedCredentialStore.hash(alias.toLowerCase(Locale.ENGLISH));
+    long h2 = mix(h1);
+    for (int i = 0; i < hashes; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The second hash for double hashing, forced odd so that probes never
+   * collapse onto a single bit.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h | 1;
+  }
+
+  public int getEntryCount() {
+    return entries;
+  }
+
+  public long getMemoryBytes() {
+    return bits.length * 8L;
+  }
+
+  /**
+   * @return the probability that a missing alias passes the filter, given
+   * the number of aliases it was built from
+   */
+  public double getExpectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) hashes * entries / bitCount), hashes);
+  }
+}
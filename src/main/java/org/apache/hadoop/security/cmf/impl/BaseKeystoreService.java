@@ -17,12 +17,20 @@
  */
 package org.apache.hadoop.security.cmf.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
@@ -34,7 +42,16 @@ import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.spec.SecretKeySpec;
 
@@ -56,8 +73,17 @@ import sun.security.x509.X509CertInfo;
 
 public class BaseKeystoreService {
 
+  static final String CHECKSUM_SUFFIX = ".sha256";
+  private static final int JCEKS_MAGIC = 0xcececece;
+  private static final int JKS_MAGIC = 0xfeedfeed;
+  private static final long BATCHED_SYNC_INTERVAL_MILLIS = 1000;
+  private static final Set<Path> unsyncedDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+  private static ScheduledExecutorService dirSyncer = null;
+
   protected MasterService masterService;
   protected String keyStoreDir;
+  private volatile DurabilityMode durabilityMode = DurabilityMode.STRICT;
+  private volatile boolean fullVerification = false;
 
   public BaseKeystoreService(MasterService ms) {
 	setMasterService(ms);
@@ -66,7 +92,7 @@ public class BaseKeystoreService {
   private static KeyStore loadKeyStore(final File keyStoreFile, final char[] masterPassword, String storeType) throws CertificateException, IOException, KeyStoreException,
    NoSuchAlgorithmException {     
    
-    final KeyStore  keyStore = KeyStore.getInstance(storeType);
+    final KeyStore  keyStore = CryptoPrimitives.newKeyStore(storeType);
     if ( keyStoreFile.exists() )
     {
         final FileInputStream   input   = new FileInputStream( keyStoreFile );
@@ -125,29 +151,34 @@ public class BaseKeystoreService {
 
   protected void createKeystore(String filename, String keystoreType) throws KeystoreServiceException {
     try {
-      FileOutputStream out = new FileOutputStream( filename );
-      KeyStore ks = KeyStore.getInstance(keystoreType);  
+      KeyStore ks = CryptoPrimitives.newKeyStore(keystoreType);  
       ks.load( null, null );  
-      ks.store( out, masterService.getMasterSecret() );
+      writeKeystoreToFile(ks, new File(filename));
     } catch (KeyStoreException e) {
       throw new KeystoreServiceException("Unable to create the keystore.", e);
     } catch (NoSuchAlgorithmException e) {
       throw new KeystoreServiceException("Unable to create the keystore.", e);
     } catch (CertificateException e) {
       throw new KeystoreServiceException("Unable to create the keystore.", e);
-    } catch (FileNotFoundException e) {
-      throw new KeystoreServiceException("Unable to create the keystore.", e);
     } catch (IOException e) {
       throw new KeystoreServiceException("Unable to create the keystore.", e);
     }
   }
 
+  /**
+   * Check that the keystore exists and opens. Unless full verification is
+   * on this is answered by {@link #probeKeystore(File, String)} where it
+   * can be, and the keystore is only loaded when the probe cannot tell.
+   */
   protected boolean isKeystoreAvailable(final File keyStoreFile, String storeType) throws KeystoreServiceException, KeyStoreException, IOException {
     if ( keyStoreFile.exists() )
     {
+      if (!fullVerification && probeKeystore(keyStoreFile, storeType)) {
+        return true;
+      }
       FileInputStream input = null;
       try {
-        final KeyStore  keyStore = KeyStore.getInstance(storeType);
+        final KeyStore  keyStore = CryptoPrimitives.newKeyStore(storeType);
         input   = new FileInputStream( keyStoreFile );
         keyStore.load( input, masterService.getMasterSecret() );
         return true;
@@ -173,6 +204,7 @@ public class BaseKeystoreService {
 
   protected KeyStore getKeystore(final File keyStoreFile, String storeType) throws KeystoreServiceException {
     KeyStore credStore = null;
+    long start = CMFMetrics.start();
     try {
       credStore = loadKeyStore( keyStoreFile, masterService.getMasterSecret(), storeType);
     } catch (CertificateException e) {
@@ -183,23 +215,62 @@ public class BaseKeystoreService {
 		throw new KeystoreServiceException("Unable to get the keystore.", e);
     } catch (IOException e) {
 		throw new KeystoreServiceException("Unable to get the keystore.", e);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.LOAD, start);
     }
     return credStore;
   }
 
+  protected KeyStore getKeystore(final byte[] contents, String storeType) throws KeystoreServiceException {
+    long start = CMFMetrics.start();
+    try {
+      final KeyStore keyStore = CryptoPrimitives.newKeyStore(storeType);
+      keyStore.load( new ByteArrayInputStream( contents ), masterService.getMasterSecret() );
+      return keyStore;
+    } catch (CertificateException e) {
+      throw new KeystoreServiceException("Unable to get the keystore.", e);
+    } catch (KeyStoreException e) {
+      throw new KeystoreServiceException("Unable to get the keystore.", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new KeystoreServiceException("Unable to get the keystore.", e);
+    } catch (IOException e) {
+      throw new KeystoreServiceException("Unable to get the keystore.", e);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.LOAD, start);
+    }
+  }
+
   public BaseKeystoreService() {
     super();
   }
 
   protected void addCredential(String alias, String value, KeyStore ks) throws KeystoreServiceException {
+    char[] chars = value.toCharArray();
+    try {
+      addCredential(alias, chars, ks);
+    } finally {
+      Arrays.fill(chars, ' ');
+    }
+  }
+
+  protected void addCredential(String alias, char[] value, KeyStore ks) throws KeystoreServiceException {
+    addCredential(alias, CharBuffer.wrap(value), ks);
+  }
+
+  /**
+   * Add the remaining chars of the buffer as a credential. Nothing but the
+   * key entry itself keeps a copy of the value.
+   */
+  protected void addCredential(String alias, CharBuffer value, KeyStore ks) throws KeystoreServiceException {
     if (ks != null) {
+      byte[] encoded = CredentialCodec.encode(value);
       try {
-        final Key key = new SecretKeySpec(value.getBytes("UTF8"), "AES");
+        final Key key = new SecretKeySpec(encoded, "AES");
         ks.setKeyEntry( alias, key, masterService.getMasterSecret(), null);
       } catch (KeyStoreException e) {
 		throw new KeystoreServiceException("Unable to add credential to credential store.", e);
-      } catch (IOException e) {
-		throw new KeystoreServiceException("Unable to add credential to credential store.", e);
+      } finally {
+        Arrays.fill(encoded, (byte) 0);
       }
     }
   }
@@ -207,7 +278,12 @@ public class BaseKeystoreService {
   protected char[] getCredential(String alias, char[] credential, KeyStore ks) {
     if (ks != null) {
       try {
-        credential = new String(ks.getKey(alias, masterService.getMasterSecret()).getEncoded()).toCharArray();
+        Key key = ks.getKey(alias, masterService.getMasterSecret());
+        if (key != null) {
+          byte[] encoded = key.getEncoded();
+          credential = CredentialCodec.decode(encoded);
+          Arrays.fill(encoded, (byte) 0);
+        }
       } catch (UnrecoverableKeyException e) {
         e.printStackTrace();
       } catch (KeyStoreException e) {
@@ -219,18 +295,203 @@ public class BaseKeystoreService {
     return credential;
   }
 
+  /**
+   * Check a keystore without loading it: its header must carry the magic
+   * number of its type and its contents must match the checksum recorded
+   * next to it when it was written.
+   *
+   * @return true if the keystore is intact, false if it has no checksum or
+   * one that does not match, e.g. after a crash between writing the store
+   * and its checksum, in which case only loading it can tell
+   * @throws KeystoreServiceException if the file is not a keystore of the type
+   */
+  protected boolean probeKeystore(final File keyStoreFile, String storeType) throws KeystoreServiceException, IOException {
+    byte[] contents = Files.readAllBytes(keyStoreFile.toPath());
+    int magic = contents.length < 4 ? 0 : ByteBuffer.wrap(contents).getInt();
+    if (("JCEKS".equals(storeType) && magic != JCEKS_MAGIC) || ("JKS".equals(storeType) && magic != JKS_MAGIC)) {
+      throw new KeystoreServiceException("Not a " + storeType + " keystore: " + keyStoreFile);
+    }
+    File checksumFile = getChecksumFile(keyStoreFile);
+    if (!checksumFile.exists()) {
+      return false;
+    }
+    String recorded = new String(Files.readAllBytes(checksumFile.toPath()), "UTF8").trim();
+    return recorded.equals(checksum(contents));
+  }
+
   protected void writeKeystoreToFile(final KeyStore keyStore, final File file)
     throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
-    // TODO: backup the keystore on disk before attempting a write and restore on failure
-    final FileOutputStream  out = new FileOutputStream(file);
-    try
-    {
-      keyStore.store( out, masterService.getMasterSecret());
+    writeStoreToFile(storeKeystore(keyStore), file);
+  }
+
+  /**
+   * Replace the keystore file with the given contents and record their
+   * checksum next to it for {@link #probeKeystore(File, String)}.
+   * The checksum is written first and never forced on its own: a missing
+   * or stale one only means a full load, and the directory sync of the
+   * store covers its rename too.
+   */
+  protected void writeStoreToFile(final byte[] contents, final File file) throws IOException {
+    long start = CMFMetrics.start();
+    try {
+      replaceFile((checksum(contents) + "\n").getBytes("UTF8"), getChecksumFile(file), DurabilityMode.RELAXED);
+      replaceFile(contents, file, durabilityMode);
     }
-    finally
-    {
-      out.close();
+    finally {
+      CMFMetrics.stop(CMFMetrics.Operation.STORE, start);
+    }
+  }
+
+  static File getChecksumFile(File keyStoreFile) {
+    return new File(keyStoreFile.getPath() + CHECKSUM_SUFFIX);
+  }
+
+  private static String checksum(byte[] contents) {
+    return String.format("%064x", new BigInteger(1, CredentialSnapshot.StoreStamp.digest(contents)));
+  }
+
+  protected byte[] storeKeystore(final KeyStore keyStore)
+    throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    keyStore.store( out, masterService.getMasterSecret());
+    return out.toByteArray();
+  }
+
+  /**
+   * Replace the file with the given contents. The contents are written to
+   * a temporary file next to it which is then renamed over the file, so
+   * readers see either the old or the new store but never a partially
+   * written one, and a failed write leaves the old store intact. What is
+   * forced to disk on the way depends on the {@link DurabilityMode}.
+   */
+  protected void writeToFile(final byte[] contents, final File file) throws IOException {
+    long start = CMFMetrics.start();
+    try {
+      replaceFile(contents, file, durabilityMode);
+    }
+    finally {
+      CMFMetrics.stop(CMFMetrics.Operation.STORE, start);
+    }
+  }
+
+  private void replaceFile(final byte[] contents, final File file, final DurabilityMode mode) throws IOException {
+    final Path dir = file.getAbsoluteFile().getParentFile().toPath();
+    final Path temp = Files.createTempFile(dir, file.getName(), ".tmp");
+    try {
+      final FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        if (mode != DurabilityMode.RELAXED) {
+          channel.force(mode == DurabilityMode.STRICT);
+        }
+      }
+      finally {
+        channel.close();
+      }
+      try {
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      if (mode == DurabilityMode.STRICT) {
+        syncDirectory(dir);
+      }
+      else if (mode == DurabilityMode.BATCHED) {
+        scheduleDirectorySync(dir);
+      }
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Force the directory entries, making a rename into it durable.
+   */
+  static void syncDirectory(Path dir) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(dir, StandardOpenOption.READ);
+    } catch (IOException e) {
+      // not every platform can open a directory, there is nothing to force there
+      return;
+    }
+    try {
+      channel.force(true);
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  private static synchronized void scheduleDirectorySync(Path dir) {
+    unsyncedDirs.add(dir);
+    if (dirSyncer == null) {
+      dirSyncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "cmf-dir-sync");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      dirSyncer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          syncDirectories();
+        }
+      }, BATCHED_SYNC_INTERVAL_MILLIS, BATCHED_SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Force every directory written in {@link DurabilityMode#BATCHED} mode
+   * since the last sync. Runs once per interval in the background; call it
+   * directly to make the batched writes so far durable, e.g. on shutdown.
+   */
+  public static void syncDirectories() {
+    Iterator<Path> dirs = unsyncedDirs.iterator();
+    while (dirs.hasNext()) {
+      Path dir = dirs.next();
+      dirs.remove();
+      try {
+        syncDirectory(dir);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public boolean isFullVerification() {
+    return fullVerification;
+  }
+
+  /**
+   * Load and verify the whole keystore on every availability check rather
+   * than probing its header and checksum. The probe does not use the master
+   * secret, so only a full verification finds out that it does not open the
+   * keystore. Off by default.
+   */
+  public void setFullVerification(boolean fullVerification) {
+    this.fullVerification = fullVerification;
+  }
+
+  public DurabilityMode getDurabilityMode() {
+    return durabilityMode;
+  }
+
+  /**
+   * Set how store writes are made durable, {@link DurabilityMode#STRICT}
+   * by default.
+   */
+  public void setDurabilityMode(DurabilityMode mode) {
+    if (mode == null) {
+      throw new IllegalArgumentException("A durability mode is required.");
     }
+    this.durabilityMode = mode;
   }
 
   public void setMasterService(MasterService ms) {
@@ -19,10 +19,18 @@ package org.apache.hadoop.security.cmf.impl;
 
 import java.security.Key;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
 
 import org.apache.hadoop.security.cmf.AliasService;
+import org.apache.hadoop.security.cmf.ConfigResolution;
 import org.apache.hadoop.security.cmf.KeystoreService;
 import org.apache.hadoop.security.cmf.KeystoreServiceException;
 
@@ -34,9 +42,16 @@ public class CMFAliasService implements AliasService {
   'M', 'N', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
   '2', '3', '4', '5', '6', '7', '8', '9',};
 
+  private static final int GENERATION_STRIPES = 64;
+
   private KeystoreService keystoreService;
+  private volatile PasswordGenerator passwordGenerator = null;
+  private final Object[] generationLocks = new Object[GENERATION_STRIPES];
 
   public CMFAliasService(KeystoreService ks) {
+	for (int i = 0; i < generationLocks.length; i++) {
+	  generationLocks[i] = new Object();
+	}
 	setKeystoreService(ks);
   }
   
@@ -45,57 +60,214 @@ public class CMFAliasService implements AliasService {
     return getPasswordFromAlias(alias, false);
   }
 
+  /**
+   * Look up the alias, generating a password for it if it is missing and
+   * generate is set. Concurrent callers that miss on the same alias are
+   * coordinated so that only one password is generated and all of them
+   * receive it; a password generated meanwhile by another process is
+   * returned instead of being overwritten.
+   */
   @Override
   public char[] getPasswordFromAlias(String alias, boolean generate) {
     char[] credential = keystoreService.getCredential(alias);
-    if (credential == null) {
-      if (generate) {
-        try {
-		  generateAlias(alias);
-		}
-		catch (KeystoreServiceException e) {
-          e.printStackTrace();
+    if (credential == null && generate) {
+      synchronized (generationLocks[stripe(alias)]) {
+        // a caller ahead of us may have generated it already
+        credential = keystoreService.getCredential(alias);
+        if (credential == null) {
+          long start = CMFMetrics.start();
+          char[] password = getPasswordGenerator().generate();
+          try {
+            credential = keystoreService.addCredentialIfAbsent(alias, password);
+          } catch (KeystoreServiceException e) {
+            e.printStackTrace();
+          } finally {
+            Arrays.fill(password, ' ');
+            CMFMetrics.stop(CMFMetrics.Operation.GENERATE, start);
+          }
         }
       }
     }
     return credential;
   }
 
+  private static int stripe(String alias) {
+    int h = alias.hashCode();
+    return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+  }
+
+  /**
+   * Expand a configuration value, replacing every <code>${ALIAS=name}</code>
+   * reference it contains with the credential stored under that alias. See
+   * {@link ConfigValueTemplate} for the syntax.
+   *
+   * @return the expanded value or null if a referenced alias is missing and
+   * has no default
+   */
   @Override
   public char[] getPasswordFromConfigValue(String configValue) {
-	char[] credential = null;
-	if (configValue.startsWith("${ALIAS=") && configValue.endsWith("}")){
-	    String pswdAlias = configValue.substring(8, configValue.length()-1);
-		credential = getPasswordFromAlias(pswdAlias);
-	}
-	else {
-		// backward compatibile clear text configValue
-		credential = configValue.toCharArray();
-	}
-    return credential;
+    if (!ConfigValueTemplate.containsReference(configValue)) {
+      // backward compatibile clear text configValue
+      return configValue.toCharArray();
+    }
+    return getPasswordFromConfigValue(ConfigValueTemplate.compile(configValue));
+  }
+
+  /**
+   * Expand a template compiled ahead of time, which saves rescanning a value
+   * that is resolved repeatedly.
+   */
+  public char[] getPasswordFromConfigValue(ConfigValueTemplate template) {
+    return template.expand(new ConfigValueTemplate.Resolver() {
+      @Override
+      public char[] resolve(String alias) {
+        return getPasswordFromAlias(alias);
+      }
+    });
   }
 
-  private String generatePassword(int length) {
-    StringBuffer sb = new StringBuffer();
-    Random r = new Random();
-    for (int i = 0; i < length; i++) {
-      sb.append(chars[r.nextInt(chars.length)]);
+  @Override
+  public ConfigResolution resolveAll(Map<String, String> config) {
+    return resolveAll(config.entrySet());
+  }
+
+  /**
+   * Resolve every value of the configuration, looking up all of the alias
+   * references against a single view of the credential store rather than
+   * one store access per value.
+   */
+  @Override
+  public ConfigResolution resolveAll(Iterable<Map.Entry<String, String>> config) {
+    Map<String, ConfigValueTemplate> templates = new LinkedHashMap<String, ConfigValueTemplate>();
+    Set<String> aliases = new HashSet<String>();
+    Map<String, char[]> values = new LinkedHashMap<String, char[]>();
+    Map<String, KeystoreServiceException> errors = new LinkedHashMap<String, KeystoreServiceException>();
+    for (Map.Entry<String, String> entry : config) {
+      String value = entry.getValue();
+      if (value == null) {
+        errors.put(entry.getKey(), new KeystoreServiceException("No value configured for: " + entry.getKey()));
+        continue;
+      }
+      ConfigValueTemplate template = ConfigValueTemplate.compile(value);
+      templates.put(entry.getKey(), template);
+      aliases.addAll(template.getAliases());
+    }
+
+    Map<String, char[]> credentials = aliases.isEmpty()
+        ? Collections.<String, char[]>emptyMap() : keystoreService.getCredentials(aliases);
+    try {
+      for (Map.Entry<String, ConfigValueTemplate> entry : templates.entrySet()) {
+        ConfigValueTemplate template = entry.getValue();
+        char[] value = template.expand(credentials);
+        if (value != null) {
+          values.put(entry.getKey(), value);
+        }
+        else {
+          errors.put(entry.getKey(), new KeystoreServiceException(
+              "No credential found for alias: " + template.getUnresolvedAlias(credentials)));
+        }
+      }
+    } finally {
+      for (char[] credential : credentials.values()) {
+        Arrays.fill(credential, ' ');
+      }
     }
-    return sb.toString();
+    return new ConfigResolution(values, errors);
   }
-  
+
+  /**
+   * @return the generator of passwords for generated aliases, by default
+   * passwords of {@link PasswordGenerator#DEFAULT_LENGTH} characters drawn
+   * from {@link #chars}
+   */
+  public PasswordGenerator getPasswordGenerator() {
+    PasswordGenerator generator = passwordGenerator;
+    if (generator == null) {
+      synchronized (generationLocks) {
+        generator = passwordGenerator;
+        if (generator == null) {
+          generator = new PasswordGenerator(PasswordGenerator.DEFAULT_LENGTH, chars);
+          passwordGenerator = generator;
+        }
+      }
+    }
+    return generator;
+  }
+
+  /**
+   * Set the length, alphabet and policy of generated passwords.
+   */
+  public void setPasswordGenerator(PasswordGenerator generator) {
+    this.passwordGenerator = generator;
+  }
+
   public void setKeystoreService(KeystoreService ks) {
     this.keystoreService = ks;
   }
 
   @Override
   public void generateAlias(String alias) throws KeystoreServiceException {
-    String passwordString = generatePassword(16);
-    addAlias(alias, passwordString);
+    long start = CMFMetrics.start();
+    try {
+      char[] password = getPasswordGenerator().generate();
+      try {
+        addAlias(alias, password);
+      } finally {
+        Arrays.fill(password, ' ');
+      }
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GENERATE, start);
+    }
+  }
+
+  @Override
+  public void generateAliases(Collection<String> aliases) throws KeystoreServiceException {
+    long start = CMFMetrics.start();
+    try {
+      char[][] generated = getPasswordGenerator().generate(aliases.size());
+      Map<String, char[]> passwords = new LinkedHashMap<String, char[]>();
+      int i = 0;
+      for (String alias : aliases) {
+        passwords.put(alias, generated[i++]);
+      }
+      try {
+        keystoreService.addCredentialValues(passwords);
+      } finally {
+        for (char[] password : generated) {
+          Arrays.fill(password, ' ');
+        }
+      }
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GENERATE, start);
+    }
+  }
+
+  /**
+   * Provision count aliases named prefix0, prefix1 and so on, each with a
+   * generated password, in a single write of the credential store.
+   * @return the aliases generated
+   */
+  public List<String> generateAliases(String prefix, int count) throws KeystoreServiceException {
+    List<String> aliases = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      aliases.add(prefix + i);
+    }
+    generateAliases(aliases);
+    return aliases;
   }
 
   @Override
   public void addAlias(String alias, String value) throws KeystoreServiceException {
     keystoreService.addCredential(alias, value);
   }
+
+  @Override
+  public void addAlias(String alias, char[] value) throws KeystoreServiceException {
+    keystoreService.addCredential(alias, value);
+  }
+
+  @Override
+  public void addAliases(Map<String, String> aliases) throws KeystoreServiceException {
+    keystoreService.addCredentials(aliases);
+  }
 }
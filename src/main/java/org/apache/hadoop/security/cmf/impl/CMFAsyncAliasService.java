@@ -0,0 +1,249 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.security.cmf.AliasService;
+import org.apache.hadoop.security.cmf.AsyncAliasService;
+
+/**
+ * Runs the calls of a blocking {@link AliasService} on an executor.
+ * <p>
+ * Concurrent lookups of the same alias share a single call to the wrapped
+ * service; each caller still receives its own copy of the credential and
+ * the shared one is wiped once every copy has been taken.
+ * Unless an executor is supplied, virtual threads are used when the running
+ * JVM provides them and a cached pool of daemon threads otherwise.
+ */
+public class CMFAsyncAliasService implements AsyncAliasService {
+
+  private final AliasService aliasService;
+  private final Executor executor;
+  private final boolean ownsExecutor;
+  private final ConcurrentHashMap<String, Lookup> lookups =
+      new ConcurrentHashMap<String, Lookup>();
+  private final ConcurrentHashMap<String, Lookup> generatingLookups =
+      new ConcurrentHashMap<String, Lookup>();
+
+  /**
+   * The callers waiting on one call to the wrapped service. Once closed no
+   * caller can join, so the credential can be wiped after it is copied.
+   */
+  private static class Lookup {
+    private final List<CompletableFuture<char[]>> callers =
+        new ArrayList<CompletableFuture<char[]>>();
+    private boolean closed;
+
+    synchronized boolean join(CompletableFuture<char[]> caller) {
+      if (closed) {
+        return false;
+      }
+      callers.add(caller);
+      return true;
+    }
+
+    synchronized List<CompletableFuture<char[]>> close() {
+      closed = true;
+      return callers;
+    }
+  }
+
+  public CMFAsyncAliasService(AliasService as) {
+    this(as, defaultExecutor(), true);
+  }
+
+  public CMFAsyncAliasService(AliasService as, Executor executor) {
+    this(as, executor, false);
+  }
+
+  private CMFAsyncAliasService(AliasService as, Executor executor, boolean ownsExecutor) {
+    this.aliasService = as;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  @Override
+  public CompletableFuture<char[]> getPasswordFromAlias(String alias) {
+    return getPasswordFromAlias(alias, false);
+  }
+
+  @Override
+  public CompletableFuture<char[]> getPasswordFromAlias(final String alias, final boolean generate) {
+    final ConcurrentHashMap<String, Lookup> inflight = generate ? generatingLookups : lookups;
+    CompletableFuture<char[]> result = new CompletableFuture<char[]>();
+    while (true) {
+      Lookup shared = inflight.get(alias);
+      if (shared == null) {
+        final Lookup created = new Lookup();
+        created.join(result);
+        shared = inflight.putIfAbsent(alias, created);
+        if (shared == null) {
+          try {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                char[] credential;
+                try {
+                  credential = aliasService.getPasswordFromAlias(alias, generate);
+                } catch (Throwable t) {
+                  fail(inflight, alias, created, t);
+                  return;
+                }
+                // later callers must start a fresh lookup rather than join a finished one
+                inflight.remove(alias, created);
+                try {
+                  for (CompletableFuture<char[]> caller : created.close()) {
+                    caller.complete(copy(credential));
+                  }
+                } finally {
+                  if (credential != null) {
+                    Arrays.fill(credential, ' ');
+                  }
+                }
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            fail(inflight, alias, created, e);
+          }
+          return result;
+        }
+      }
+      if (shared.join(result)) {
+        return result;
+      }
+      // finished but not yet removed
+      inflight.remove(alias, shared);
+    }
+  }
+
+  private static void fail(ConcurrentHashMap<String, Lookup> inflight, String alias,
+      Lookup lookup, Throwable t) {
+    inflight.remove(alias, lookup);
+    for (CompletableFuture<char[]> caller : lookup.close()) {
+      caller.completeExceptionally(t);
+    }
+  }
+
+  @Override
+  public CompletableFuture<char[]> getPasswordFromConfigValue(final String configValue) {
+    final CompletableFuture<char[]> result = new CompletableFuture<char[]>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            result.complete(aliasService.getPasswordFromConfigValue(configValue));
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<char[]> addAlias(final String alias, final String value) {
+    final CompletableFuture<char[]> result = new CompletableFuture<char[]>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            aliasService.addAlias(alias, value);
+            result.complete(value.toCharArray());
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<char[]> generateAlias(final String alias) {
+    final CompletableFuture<char[]> result = new CompletableFuture<char[]>();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            aliasService.generateAlias(alias);
+            result.complete(aliasService.getPasswordFromAlias(alias));
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /**
+   * Shut down the executor if it was created by this service.
+   */
+  public void shutdown() {
+    if (ownsExecutor && executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  private static char[] copy(char[] credential) {
+    return credential == null ? null : credential.clone();
+  }
+
+  /**
+   * A virtual thread per task executor on JVMs that have one, looked up
+   * reflectively so that this class still runs on older JVMs.
+   */
+  static ExecutorService defaultExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      final AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "cmf-async-alias-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+  }
+}
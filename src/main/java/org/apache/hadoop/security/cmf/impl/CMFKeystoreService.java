@@ -19,6 +19,8 @@ package org.apache.hadoop.security.cmf.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
@@ -29,6 +31,26 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.security.cmf.KeystoreServiceException;
 import org.apache.hadoop.security.cmf.KeystoreService;
@@ -39,8 +61,27 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
 
   private static final String SS_CERT_DN = "CN=hadoop,OU=Test,O=Hadoop,L=Test,ST=Test,C=US";
   private static final String CREDENTIALS_SUFFIX = "-credentials.jceks";
+  private static final String LOCK_SUFFIX = "-credentials.lock";
+  private static final long DEFAULT_CACHE_CHECK_INTERVAL = 1000;
+  private static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+  // writers of the same store file within this JVM, whichever service instance they use
+  private static final ConcurrentHashMap<String, Object> STORE_LOCKS = new ConcurrentHashMap<String, Object>();
+  // the lock files this JVM holds, only changed under the store lock of the
+  // store; a service name is used by one kind of store at a time
+  private static final ConcurrentHashMap<String, HeldFileLock> FILE_LOCKS =
+      new ConcurrentHashMap<String, HeldFileLock>();
 
   private String serviceName = null;
+  private final AtomicReference<CredentialSnapshot> snapshot = new AtomicReference<CredentialSnapshot>();
+  private volatile long cacheCheckInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CACHE_CHECK_INTERVAL);
+  private volatile OffHeapCredentialStore offHeap = null;
+  // the store whose credentials the off-heap store currently holds
+  private volatile KeyStore offHeapSource = null;
+  private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+  private volatile long commitWindow = 0;
+  private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  private ExecutorService committer = null;
   
   public CMFKeystoreService(String keystoreDir, String serviceName, MasterService ms)
       throws KeystoreServiceException {
@@ -72,7 +113,7 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
   public void addSelfSignedCert(String alias, char[] passphrase) throws KeystoreServiceException {
     KeyPairGenerator keyPairGenerator;
     try {
-      keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+      keyPairGenerator = CryptoPrimitives.newKeyPairGenerator("RSA");
       keyPairGenerator.initialize(1024);  
       KeyPair KPair = keyPairGenerator.generateKeyPair();
       X509Certificate cert = generateCertificate(SS_CERT_DN, KPair, 365, "SHA1withRSA");
@@ -97,10 +138,29 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
     createKeystore(filename, "JCEKS");
   }
 
+  /**
+   * Check that the credential store exists and opens, see
+   * {@link #probeKeystore(File, String)}. When the store has to be loaded
+   * to tell, because full verification is on or the probe was not
+   * conclusive, the loaded store becomes the current snapshot so that the
+   * first lookup does not load it again.
+   */
   public boolean isCredentialStoreAvailable() throws KeystoreServiceException {
-    final File  keyStoreFile = new File( keyStoreDir + serviceName + CREDENTIALS_SUFFIX  );
+    final File  keyStoreFile = getCredentialStoreFile();
     try {
-      return isKeystoreAvailable(keyStoreFile, "JCEKS");
+      if (!keyStoreFile.exists()) {
+        return false;
+      }
+      if (!isFullVerification() && probeKeystore(keyStoreFile, "JCEKS")) {
+        return true;
+      }
+      CredentialSnapshot current = snapshot.get();
+      CredentialSnapshot loaded = load(keyStoreFile, current, System.nanoTime());
+      if (loaded == null) {
+        return false;
+      }
+      snapshot.compareAndSet(current, loaded);
+      return true;
     } catch (KeyStoreException e) {
       throw new KeystoreServiceException(e);
     } catch (IOException e) {
@@ -137,7 +197,7 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
   }  
   
   public KeyStore getCredentialStore() {
-    final File  keyStoreFile = new File( keyStoreDir + serviceName + CREDENTIALS_SUFFIX  );
+    final File  keyStoreFile = getCredentialStoreFile();
     try {
       return getKeystore(keyStoreFile, "JCEKS");
     }
@@ -148,11 +208,194 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
   }
 
   public void addCredential(String alias, String value) throws KeystoreServiceException {
+    addCredentials(Collections.singletonMap(alias, value));
+  }
+
+  public void addCredential(String alias, char[] value) throws KeystoreServiceException {
+    addCredentialValues(Collections.singletonMap(alias, value));
+  }
+
+  public void addCredentials(Map<String, String> credentials) throws KeystoreServiceException {
+    Map<String, char[]> values = new LinkedHashMap<String, char[]>();
     try {
-	  KeyStore ks = getCredentialStore();
-	  addCredential(alias, value, ks);
-	  final File  keyStoreFile = new File( keyStoreDir + serviceName + CREDENTIALS_SUFFIX  );
-      writeKeystoreToFile(ks, keyStoreFile);
+      for (Map.Entry<String, String> credential : credentials.entrySet()) {
+        values.put(credential.getKey(), credential.getValue().toCharArray());
+      }
+      addCredentialValues(values);
+    } finally {
+      for (char[] value : values.values()) {
+        Arrays.fill(value, ' ');
+      }
+    }
+  }
+
+  /**
+   * Add all of the given credentials in a single write of the credential
+   * store, returning once that write is on disk. The arrays are left for
+   * the caller to wipe.
+   * <p>
+   * Writes are group committed: the caller queues its credentials and the
+   * first writer to get hold of the store lock writes everything queued so
+   * far, up to the batch size, with one load and one write of the store.
+   * Concurrent writers therefore share store rewrites instead of each
+   * paying for one, see {@link #setGroupCommit(long, int)}. Each batch is
+   * written by {@link #writeCredentialValues(Map)}.
+   */
+  public void addCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    PendingWrite write = new PendingWrite(credentials);
+    pendingWrites.add(write);
+    commit(write);
+    try {
+      write.done.join();
+    } catch (CompletionException e) {
+      throw (KeystoreServiceException) e.getCause();
+    }
+  }
+
+  /**
+   * Queue credentials to be added without waiting for the write. The
+   * arrays must not be wiped before the returned future completes, which
+   * happens once they are on disk.
+   */
+  public CompletableFuture<Void> submitCredentialValues(Map<String, char[]> credentials) {
+    final PendingWrite write = new PendingWrite(credentials);
+    pendingWrites.add(write);
+    try {
+      getCommitter().execute(new Runnable() {
+        @Override
+        public void run() {
+          commit(write);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      commit(write);
+    }
+    return write.done;
+  }
+
+  /**
+   * Configure group commit.
+   * @param windowMillis how long the writer that commits a batch waits for
+   * more writes to join it, 0 to commit whatever has queued up right away
+   * @param maxBatchSize the most writes merged into one store write
+   */
+  public void setGroupCommit(long windowMillis, int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("A batch needs room for at least one write.");
+    }
+    this.commitWindow = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  private synchronized ExecutorService getCommitter() {
+    if (committer == null) {
+      committer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "cmf-committer-" + serviceName);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return committer;
+  }
+
+  /**
+   * Write queued batches until the given write is done, unless a writer
+   * ahead of us has already taken it along.
+   */
+  private void commit(PendingWrite write) {
+    synchronized (getStoreLock()) {
+      while (!write.done.isDone()) {
+        long window = commitWindow;
+        if (window > 0) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(window);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        PendingWrite next;
+        while (batch.size() < maxBatchSize && (next = pendingWrites.poll()) != null) {
+          batch.add(next);
+        }
+        if (batch.isEmpty()) {
+          // cannot happen while the write is queued, but never spin
+          return;
+        }
+        try {
+          writeBatch(batch);
+        } catch (KeystoreServiceException e) {
+          fail(batch, e);
+          continue;
+        } catch (RuntimeException e) {
+          fail(batch, new KeystoreServiceException("Unable to add credential.", e));
+          continue;
+        } catch (Error e) {
+          // whatever went wrong, no writer of the batch may be left waiting
+          KeystoreServiceException failure = new KeystoreServiceException("Unable to add credential.");
+          failure.initCause(e);
+          fail(batch, failure);
+          throw e;
+        }
+        for (PendingWrite written : batch) {
+          written.done.complete(null);
+        }
+      }
+    }
+  }
+
+  private static void fail(List<PendingWrite> batch, KeystoreServiceException e) {
+    for (PendingWrite failed : batch) {
+      failed.done.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Merge the writes in the order they were queued so that the whole batch
+   * takes a single write.
+   */
+  private void writeBatch(List<PendingWrite> batch) throws KeystoreServiceException {
+    Map<String, char[]> merged = new LinkedHashMap<String, char[]>();
+    for (PendingWrite write : batch) {
+      for (Map.Entry<String, char[]> credential : write.credentials.entrySet()) {
+        // moved to the end so that writes still apply in the order queued
+        merged.remove(credential.getKey());
+        merged.put(credential.getKey(), credential.getValue());
+      }
+    }
+    writeCredentialValues(merged);
+  }
+
+  /**
+   * Write the credentials of a batch, applying them in iteration order,
+   * and return once they are on disk. Every way of adding credentials ends
+   * up here, so this is what subclasses storing them differently override.
+   * Called with the store lock held; the arrays are left for the caller
+   * to wipe.
+   * <p>
+   * The credential store is loaded once, updated, written aside, renamed
+   * into place and then published as the new snapshot; readers keep using
+   * the previous snapshot until then.
+   */
+  protected void writeCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    long start = CMFMetrics.start();
+    try {
+      KeyStore ks = getCredentialStore();
+      if (ks == null) {
+        throw new KeystoreServiceException("Unable to load the credential store " + getCredentialStoreFile());
+      }
+      for (Map.Entry<String, char[]> credential : credentials.entrySet()) {
+        addCredential(credential.getKey(), credential.getValue(), ks);
+      }
+      final File  keyStoreFile = getCredentialStoreFile();
+      byte[] contents = storeKeystore(ks);
+      writeStoreToFile(contents, keyStoreFile);
+      CMFMetrics.storeLoaded(ks.size(), contents.length);
+      publish(new CredentialSnapshot(ks, CredentialSnapshot.StoreStamp.of(keyStoreFile, contents),
+          System.nanoTime() + cacheCheckInterval));
     } catch (KeyStoreException e) {
       throw new KeystoreServiceException("Unable to add credential.",e);
     } catch (NoSuchAlgorithmException e) {
@@ -161,14 +404,472 @@ public class CMFKeystoreService extends BaseKeystoreService implements KeystoreS
       throw new KeystoreServiceException("Unable to add credential.",e);
     } catch (IOException e) {
       throw new KeystoreServiceException("Unable to add credential.",e);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.ADD, start);
     }
   }
 
+  private static final class PendingWrite {
+    final Map<String, char[]> credentials;
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+    PendingWrite(Map<String, char[]> credentials) {
+      this.credentials = credentials;
+    }
+  }
+
+  /**
+   * Add the credential unless the alias already exists, checking and adding
+   * under the store lock of this JVM and an exclusive lock on the
+   * <code>-credentials.lock</code> file shared with other processes. The
+   * check reloads the store so that a credential added by another writer is
+   * found rather than overwritten.
+   */
+  public char[] addCredentialIfAbsent(String alias, String value) throws KeystoreServiceException {
+    char[] chars = value.toCharArray();
+    try {
+      return addCredentialIfAbsent(alias, chars);
+    } finally {
+      Arrays.fill(chars, ' ');
+    }
+  }
+
+  public char[] addCredentialIfAbsent(String alias, char[] value) throws KeystoreServiceException {
+    char[] existing = getCredential(alias);
+    if (existing != null) {
+      return existing;
+    }
+    synchronized (getStoreLock()) {
+      boolean locked = false;
+      try {
+        lockStoreFile();
+        locked = true;
+        invalidateCredentialCache();
+        existing = getCredential(alias);
+        if (existing != null) {
+          return existing;
+        }
+        addCredentialValues(Collections.singletonMap(alias, value));
+        return value.clone();
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to add credential.", e);
+      } finally {
+        if (locked) {
+          unlockStoreFile();
+        }
+      }
+    }
+  }
+
+  /**
+   * Take the exclusive lock on the <code>-credentials.lock</code> file,
+   * shared with other processes writing the store. Must be called holding
+   * {@link #getStoreLock()} and paired with {@link #unlockStoreFile()};
+   * taking it again on the same thread only counts the extra holder.
+   */
+  protected void lockStoreFile() throws IOException {
+    String path = getStoreLockPath();
+    HeldFileLock held = FILE_LOCKS.get(path);
+    if (held == null) {
+      RandomAccessFile lockFile = new RandomAccessFile(path, "rw");
+      try {
+        lockFile.getChannel().lock();
+      } catch (IOException e) {
+        lockFile.close();
+        throw e;
+      }
+      held = new HeldFileLock(lockFile);
+      FILE_LOCKS.put(path, held);
+    }
+    held.holders++;
+  }
+
+  protected void unlockStoreFile() {
+    String path = getStoreLockPath();
+    HeldFileLock held = FILE_LOCKS.get(path);
+    if (held == null || --held.holders > 0) {
+      return;
+    }
+    FILE_LOCKS.remove(path);
+    try {
+      // closing the file releases the lock
+      held.file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private String getStoreLockPath() {
+    return new File( keyStoreDir + serviceName + LOCK_SUFFIX ).getAbsolutePath();
+  }
+
+  private static final class HeldFileLock {
+    final RandomAccessFile file;
+    int holders = 0;
+
+    HeldFileLock(RandomAccessFile file) {
+      this.file = file;
+    }
+  }
+
+  /**
+   * @return the object that writers of this service's store synchronize on,
+   * shared by every service instance in the JVM that writes the same file
+   */
+  protected Object getStoreLock() {
+    String path = getCredentialStoreFile().getAbsolutePath();
+    Object lock = STORE_LOCKS.get(path);
+    if (lock == null) {
+      Object created = new Object();
+      lock = STORE_LOCKS.putIfAbsent(path, created);
+      if (lock == null) {
+        lock = created;
+      }
+    }
+    return lock;
+  }
+
   public char[] getCredential(String alias) {
-    char[] credential = null;
-    KeyStore ks = getCredentialStore();
-    credential = getCredential(alias, credential, ks);
-    return credential;
+    long start = CMFMetrics.start();
+    try {
+      CredentialSnapshot cache = getSnapshot();
+      if (cache == null) {
+        return null;
+      }
+      return getCredential(alias, cache);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GET, start);
+    }
+  }
+
+  /**
+   * Look up several credentials against a single view of the credential store.
+   * Aliases that are not present are left out of the returned map.
+   */
+  public Map<String, char[]> getCredentials(Collection<String> aliases) {
+    long start = CMFMetrics.start();
+    Map<String, char[]> credentials = new HashMap<String, char[]>();
+    try {
+      CredentialSnapshot cache = getSnapshot();
+      if (cache == null) {
+        return credentials;
+      }
+      for (String alias : aliases) {
+        char[] credential = getCredential(alias, cache);
+        if (credential != null) {
+          credentials.put(alias, credential);
+        }
+      }
+      return credentials;
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GET, start);
+    }
+  }
+
+  /**
+   * Copy a credential into a caller supplied array. Once the credential is
+   * held in the off-heap store this does not allocate on the heap.
+   * @return the length of the credential, which has only been copied if it
+   * fits into dest, or -1 if the alias is not present
+   */
+  public int copyCredential(String alias, char[] dest) {
+    OffHeapCredentialStore offHeap = this.offHeap;
+    if (offHeap == null) {
+      char[] credential = getCredential(alias);
+      if (credential == null) {
+        return -1;
+      }
+      if (credential.length <= dest.length) {
+        System.arraycopy(credential, 0, dest, 0, credential.length);
+      }
+      Arrays.fill(credential, ' ');
+      return credential.length;
+    }
+    long start = CMFMetrics.start();
+    try {
+      CredentialSnapshot cache = getSnapshot();
+      if (cache == null) {
+        return -1;
+      }
+      return copyCredential(alias, dest, cache, offHeap);
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GET, start);
+    }
+  }
+
+  /**
+   * Keep decrypted credentials in the given off-heap store instead of on the
+   * heap. The store is cleared whenever a new version of the credential
+   * store is loaded; closing it is left to the caller. Exposed by
+   * {@link OffHeapKeystoreService}, subclasses that keep their credentials
+   * outside the JCEKS snapshot must not offer it.
+   * @param store the off-heap store, or null to go back to the heap
+   */
+  protected void setOffHeapCredentialStore(OffHeapCredentialStore store) {
+    this.offHeap = store;
+    this.offHeapSource = null;
+  }
+
+  private int copyCredential(String alias, char[] dest, CredentialSnapshot cache, OffHeapCredentialStore offHeap) {
+    KeyStore source = cache.getStore();
+    if (offHeapSource != source) {
+      synchronized (offHeap) {
+        if (offHeapSource != source) {
+          offHeap.clear();
+          offHeapSource = source;
+        }
+      }
+    }
+    int length = offHeap.copyCredential(alias, dest);
+    CMFMetrics.cacheAccess(length >= 0);
+    if (length >= 0) {
+      return length;
+    }
+    if (!cache.mightContain(alias)) {
+      CMFMetrics.aliasFilterLookup(true);
+      return -1;
+    }
+    char[] credential = getCredential(alias, null, source);
+    if (credential == null) {
+      CMFMetrics.aliasFilterLookup(false);
+      return -1;
+    }
+    try {
+      try {
+        synchronized (offHeap) {
+          // a reader of an older snapshot must not repopulate a cleared store
+          if (offHeapSource == source) {
+            offHeap.put(alias, credential);
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        // too long to cache off-heap, serve it uncached
+      } catch (IllegalStateException e) {
+        // the off-heap store is full or closed, serve it uncached
+      }
+      if (credential.length <= dest.length) {
+        System.arraycopy(credential, 0, dest, 0, credential.length);
+      }
+      return credential.length;
+    } finally {
+      Arrays.fill(credential, ' ');
+    }
+  }
+
+  private char[] getCredential(String alias, CredentialSnapshot cache) {
+    OffHeapCredentialStore offHeap = this.offHeap;
+    if (offHeap != null) {
+      // size the array from the stored length, retrying if it changes underneath
+      char[] credential = new char[0];
+      int length;
+      while ((length = copyCredential(alias, credential, cache, offHeap)) > credential.length) {
+        Arrays.fill(credential, ' ');
+        credential = new char[length];
+      }
+      if (length == credential.length) {
+        return credential;
+      }
+      char[] trimmed = length < 0 ? null : Arrays.copyOf(credential, length);
+      Arrays.fill(credential, ' ');
+      return trimmed;
+    }
+    char[] credential = cache.get(alias);
+    CMFMetrics.cacheAccess(credential != null);
+    if (credential == null) {
+      if (!cache.mightContain(alias)) {
+        CMFMetrics.aliasFilterLookup(true);
+        return null;
+      }
+      credential = getCredential(alias, credential, cache.getStore());
+      if (credential == null) {
+        CMFMetrics.aliasFilterLookup(false);
+        return null;
+      }
+      cache.put(alias, credential);
+    }
+    // hand out a copy so that callers are free to wipe what they receive
+    return credential.clone();
+  }
+
+  /**
+   * @return the filter of aliases known to be absent from the current
+   * snapshot of the store, or null if no store is loaded
+   */
+  public AliasFilter getAliasFilter() {
+    CredentialSnapshot current = getSnapshot();
+    return current == null ? null : current.getFilter();
+  }
+
+  protected String getServiceName() {
+    return serviceName;
+  }
+
+  protected File getCredentialStoreFile() {
+    return new File( keyStoreDir + serviceName + CREDENTIALS_SUFFIX );
+  }
+
+  /**
+   * Set how often the cached credential store is checked against the file
+   * on disk. Lookups within this interval are served purely from memory.
+   * @param millis the interval in milliseconds, 0 checks on every lookup
+   */
+  public void setCacheCheckInterval(long millis) {
+    this.cacheCheckInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  protected long getCacheCheckIntervalNanos() {
+    return cacheCheckInterval;
+  }
+
+  /**
+   * @return whether a {@link CredentialStoreWatcher} can reload this
+   * service through {@link #reloadCredentialStore()} when the file of
+   * {@link #getCredentialStoreFile()} changes
+   */
+  protected boolean isReloadSupported() {
+    return true;
+  }
+
+  /**
+   * Load the store file now and make it the current snapshot if its
+   * contents differ from the snapshot being served. The new file must load
+   * cleanly, which checks its integrity against the master secret; if it
+   * does not, the current snapshot stays in place.
+   * <p>
+   * An entry counts as replaced when its creation date differs, which JCEKS
+   * records for every entry when it is set. This avoids unsealing every
+   * entry to compare values.
+   * @return the aliases added, removed or replaced, empty if nothing changed
+   * @throws KeystoreServiceException if the file is missing or does not load
+   */
+  public Set<String> reloadCredentialStore() throws KeystoreServiceException {
+    synchronized (getStoreLock()) {
+      final File keyStoreFile = getCredentialStoreFile();
+      CredentialSnapshot current = snapshot.get();
+      long now = System.nanoTime();
+      try {
+        byte[] contents = Files.readAllBytes(keyStoreFile.toPath());
+        CredentialSnapshot.StoreStamp stamp = CredentialSnapshot.StoreStamp.of(keyStoreFile, contents);
+        if (current != null && current.getStamp().matchesContent(contents)) {
+          publish(current.withStamp(stamp, now + cacheCheckInterval));
+          return Collections.emptySet();
+        }
+        KeyStore ks = getKeystore(contents, "JCEKS");
+        CMFMetrics.storeLoaded(ks.size(), contents.length);
+        Set<String> changed = changedAliases(current == null ? null : current.getStore(), ks);
+        publish(new CredentialSnapshot(ks, stamp, now + cacheCheckInterval));
+        return changed;
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to reload the credential store.", e);
+      } catch (KeyStoreException e) {
+        throw new KeystoreServiceException("Unable to reload the credential store.", e);
+      }
+    }
+  }
+
+  private static Set<String> changedAliases(KeyStore previous, KeyStore next) throws KeyStoreException {
+    Set<String> changed = new HashSet<String>();
+    for (String alias : Collections.list(next.aliases())) {
+      if (previous == null || !previous.containsAlias(alias)
+          || !next.getCreationDate(alias).equals(previous.getCreationDate(alias))) {
+        changed.add(alias);
+      }
+    }
+    if (previous != null) {
+      for (String alias : Collections.list(previous.aliases())) {
+        if (!next.containsAlias(alias)) {
+          changed.add(alias);
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @return an estimate of the heap held by the cached snapshot of the
+   * credential store, 0 if none is loaded
+   */
+  long getCachedBytes() {
+    CredentialSnapshot current = snapshot.get();
+    return current == null ? 0 : current.getWeight();
+  }
+
+  /**
+   * Drop the current snapshot of the credential store so that the next
+   * lookup reloads it.
+   */
+  public void invalidateCredentialCache() {
+    snapshot.set(null);
+  }
+
+  /**
+   * @return the current snapshot of the credential store, refreshed from the
+   * file first if a check is due. Readers never wait on a lock: one reader
+   * claims a due check and the others keep using the current snapshot until
+   * a newer one is published.
+   */
+  private CredentialSnapshot getSnapshot() {
+    CredentialSnapshot current = snapshot.get();
+    long now = System.nanoTime();
+    if (current != null && !current.claimCheck(now, cacheCheckInterval)) {
+      return current;
+    }
+    CredentialSnapshot next = refresh(current, now);
+    if (next == current || snapshot.compareAndSet(current, next)) {
+      return next;
+    }
+    // someone else published first, prefer theirs
+    CredentialSnapshot published = snapshot.get();
+    return published != null ? published : next;
+  }
+
+  private CredentialSnapshot refresh(CredentialSnapshot current, long now) {
+    final File keyStoreFile = getCredentialStoreFile();
+    if (current != null && current.getStamp().matchesAttributes(keyStoreFile)) {
+      return current;
+    }
+    try {
+      return load(keyStoreFile, current, now);
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (KeyStoreException e) {
+      e.printStackTrace();
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    }
+    // keep serving the last good store, the claim has already deferred the next check
+    return current;
+  }
+
+  /**
+   * @return a snapshot of the store file, the given one if the file is
+   * unchanged, or null if there is no file
+   */
+  private CredentialSnapshot load(File keyStoreFile, CredentialSnapshot current, long now)
+      throws IOException, KeyStoreException, KeystoreServiceException {
+    if (!keyStoreFile.exists()) {
+      return null;
+    }
+    // writers rename a complete file into place, so this never sees a torn store
+    byte[] contents = Files.readAllBytes(keyStoreFile.toPath());
+    CredentialSnapshot.StoreStamp stamp = CredentialSnapshot.StoreStamp.of(keyStoreFile, contents);
+    if (current != null && current.getStamp().matchesContent(contents)) {
+      // touched but unchanged, keep serving what we have
+      return current.withStamp(stamp, now + cacheCheckInterval);
+    }
+    KeyStore ks = getKeystore(contents, "JCEKS");
+    CMFMetrics.storeLoaded(ks.size(), contents.length);
+    return new CredentialSnapshot(ks, stamp, now + cacheCheckInterval);
+  }
+
+  /**
+   * Make a store that has just been written the current snapshot.
+   */
+  private void publish(CredentialSnapshot next) {
+    CredentialSnapshot current;
+    do {
+      current = snapshot.get();
+    } while (!snapshot.compareAndSet(current, next));
   }
 
 }
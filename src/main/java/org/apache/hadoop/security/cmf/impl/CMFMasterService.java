@@ -56,10 +56,13 @@ public class CMFMasterService implements MasterService {
   protected void getMasterSecret(String securityDir, String filename, boolean persisting) throws MasterServiceException {
     File masterFile = new File(securityDir, filename);
     if (masterFile.exists()) {
+      long start = CMFMetrics.start();
       try {
         initializeFromMaster(masterFile);
       } catch (Exception e) {
         throw new MasterServiceException("Unable to load the persisted master secret.", e);
+      } finally {
+        CMFMetrics.stop(CMFMetrics.Operation.MASTER_LOAD, start);
       }
     }
     else {
@@ -0,0 +1,385 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.security.cmf.MetricsSink;
+
+/**
+ * Process wide operational metrics of the credential services: per operation
+ * counts and latency histograms, credential cache hits and misses, the
+ * size and reload time of the last credential store loaded, and how well
+ * the {@link AliasFilter} answers lookups of missing aliases.
+ * <p>
+ * Metrics are off unless enabled through {@link #setEnabled(boolean)}, JMX or
+ * the <code>cmf.metrics.enabled</code> system property. While they are off an
+ * instrumented call costs a single volatile read:
+ * <pre>
+ *   long start = CMFMetrics.start();
+ *   ...
+ *   CMFMetrics.stop(CMFMetrics.Operation.GET, start);
+ * </pre>
+ * Latencies are kept in power of two buckets, so percentiles are reported as
+ * the upper bound of the bucket they fall in.
+ */
+public final class CMFMetrics implements CMFMetricsMBean {
+
+  public enum Operation {
+    LOAD, STORE, GET, ADD, GENERATE, ENCRYPT, DECRYPT, KDF, MASTER_LOAD
+  }
+
+  static final String OBJECT_NAME = "org.apache.hadoop.security.cmf:type=CMFMetrics";
+  private static final long DISABLED = Long.MIN_VALUE;
+  private static final CMFMetrics INSTANCE = new CMFMetrics();
+
+  private static volatile boolean enabled = Boolean.getBoolean("cmf.metrics.enabled");
+
+  private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  private final LongAdder filterRejections = new LongAdder();
+  private final LongAdder filterFalsePositives = new LongAdder();
+  private final CopyOnWriteArrayList<MetricsSink> sinks = new CopyOnWriteArrayList<MetricsSink>();
+  private volatile long storeEntries = 0;
+  private volatile long storeBytes = 0;
+  private volatile long lastReloadTime = 0;
+  private volatile long filterBytes = 0;
+  private volatile double filterExpectedFalsePositiveRate = 0;
+  private ObjectName registered = null;
+
+  private CMFMetrics() {
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+  }
+
+  public static CMFMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the start time of an operation to pass to
+   * {@link #stop(Operation, long)}, or a marker that makes it a no-op when
+   * metrics are disabled
+   */
+  public static long start() {
+    return enabled ? System.nanoTime() : DISABLED;
+  }
+
+  public static void stop(Operation operation, long start) {
+    if (start == DISABLED) {
+      return;
+    }
+    long latency = System.nanoTime() - start;
+    INSTANCE.latencies[operation.ordinal()].record(latency);
+    for (MetricsSink sink : INSTANCE.sinks) {
+      sink.recordOperation(operation.name(), latency);
+    }
+  }
+
+  public static void cacheAccess(boolean hit) {
+    if (!enabled) {
+      return;
+    }
+    if (hit) {
+      INSTANCE.cacheHits.increment();
+    }
+    else {
+      INSTANCE.cacheMisses.increment();
+    }
+    for (MetricsSink sink : INSTANCE.sinks) {
+      sink.recordCacheAccess(hit);
+    }
+  }
+
+  /**
+   * Record the size of a credential store that has just been (re)loaded.
+   */
+  public static void storeLoaded(long entries, long bytes) {
+    if (!enabled) {
+      return;
+    }
+    INSTANCE.storeEntries = entries;
+    INSTANCE.storeBytes = bytes;
+    INSTANCE.lastReloadTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Record the size and expected accuracy of a newly built alias filter.
+   */
+  public static void aliasFilterBuilt(AliasFilter filter) {
+    if (!enabled) {
+      return;
+    }
+    INSTANCE.filterBytes = filter.getMemoryBytes();
+    INSTANCE.filterExpectedFalsePositiveRate = filter.getExpectedFalsePositiveRate();
+  }
+
+  /**
+   * Record a lookup of an alias that turned out to be missing.
+   * @param rejected whether the alias filter answered it, as opposed to a
+   * false positive that had to be checked against the store
+   */
+  public static void aliasFilterLookup(boolean rejected) {
+    if (!enabled) {
+      return;
+    }
+    if (rejected) {
+      INSTANCE.filterRejections.increment();
+    }
+    else {
+      INSTANCE.filterFalsePositives.increment();
+    }
+  }
+
+  public void addSink(MetricsSink sink) {
+    sinks.addIfAbsent(sink);
+  }
+
+  public void removeSink(MetricsSink sink) {
+    sinks.remove(sink);
+  }
+
+  /**
+   * Register this instance with the platform MBean server under
+   * {@value #OBJECT_NAME}. Registering more than once has no effect.
+   */
+  public synchronized ObjectName registerMBean() throws JMException {
+    if (registered == null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+      registered = name;
+    }
+    return registered;
+  }
+
+  public synchronized void unregisterMBean() throws JMException {
+    if (registered != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(registered)) {
+        server.unregisterMBean(registered);
+      }
+      registered = null;
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    CMFMetrics.enabled = enabled;
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  @Override
+  public double getCacheHitRatio() {
+    long hits = cacheHits.sum();
+    long total = hits + cacheMisses.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public long getStoreEntries() {
+    return storeEntries;
+  }
+
+  @Override
+  public long getStoreBytes() {
+    return storeBytes;
+  }
+
+  @Override
+  public long getLastReloadTime() {
+    return lastReloadTime;
+  }
+
+  @Override
+  public long getAliasFilterBytes() {
+    return filterBytes;
+  }
+
+  @Override
+  public double getAliasFilterExpectedFalsePositiveRate() {
+    return filterExpectedFalsePositiveRate;
+  }
+
+  @Override
+  public long getAliasFilterRejections() {
+    return filterRejections.sum();
+  }
+
+  @Override
+  public long getAliasFilterFalsePositives() {
+    return filterFalsePositives.sum();
+  }
+
+  /**
+   * @return the share of lookups for missing aliases that the filter let
+   * through to the store
+   */
+  @Override
+  public double getAliasFilterObservedFalsePositiveRate() {
+    long falsePositives = filterFalsePositives.sum();
+    long total = falsePositives + filterRejections.sum();
+    return total == 0 ? 0 : (double) falsePositives / total;
+  }
+
+  @Override
+  public String[] getOperations() {
+    Operation[] operations = Operation.values();
+    String[] names = new String[operations.length];
+    for (int i = 0; i < operations.length; i++) {
+      names[i] = operations[i].name();
+    }
+    return names;
+  }
+
+  @Override
+  public long getOperationCount(String operation) {
+    return histogram(operation).getCount();
+  }
+
+  @Override
+  public long getMeanLatencyNanos(String operation) {
+    return histogram(operation).getMean();
+  }
+
+  @Override
+  public long getMaxLatencyNanos(String operation) {
+    return histogram(operation).getMax();
+  }
+
+  @Override
+  public long getLatencyPercentileNanos(String operation, double percentile) {
+    return histogram(operation).getPercentile(percentile);
+  }
+
+  @Override
+  public void reset() {
+    for (LatencyHistogram histogram : latencies) {
+      histogram.reset();
+    }
+    cacheHits.reset();
+    cacheMisses.reset();
+    filterRejections.reset();
+    filterFalsePositives.reset();
+    filterBytes = 0;
+    filterExpectedFalsePositiveRate = 0;
+    storeEntries = 0;
+    storeBytes = 0;
+    lastReloadTime = 0;
+  }
+
+  private LatencyHistogram histogram(String operation) {
+    return latencies[Operation.valueOf(operation).ordinal()];
+  }
+
+  /**
+   * Counts latencies in buckets of powers of two; bucket i holds latencies
+   * in [2^i, 2^(i+1)) nanoseconds.
+   */
+  static class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      if (nanos < 1) {
+        nanos = 1;
+      }
+      buckets[63 - Long.numberOfLeadingZeros(nanos)].increment();
+      total.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets) {
+        count += bucket.sum();
+      }
+      return count;
+    }
+
+    long getMean() {
+      long count = getCount();
+      return count == 0 ? 0 : total.sum() / count;
+    }
+
+    long getMax() {
+      return max.get();
+    }
+
+    long getPercentile(double percentile) {
+      long[] counts = new long[buckets.length];
+      long count = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+        count += counts[i];
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && counts[i] > 0) {
+          return Math.min((1L << (i + 1)) - 1, getMax());
+        }
+      }
+      return getMax();
+    }
+
+    void reset() {
+      for (LongAdder bucket : buckets) {
+        bucket.reset();
+      }
+      total.reset();
+      max.reset();
+    }
+  }
+}
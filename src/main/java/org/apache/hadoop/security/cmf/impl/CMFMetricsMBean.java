@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+/**
+ * The JMX view of {@link CMFMetrics}. Latency operations take the name of a
+ * {@link CMFMetrics.Operation}.
+ */
+public interface CMFMetricsMBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  double getCacheHitRatio();
+
+  long getStoreEntries();
+
+  long getStoreBytes();
+
+  long getLastReloadTime();
+
+  long getAliasFilterBytes();
+
+  double getAliasFilterExpectedFalsePositiveRate();
+
+  long getAliasFilterRejections();
+
+  long getAliasFilterFalsePositives();
+
+  double getAliasFilterObservedFalsePositiveRate();
+
+  String[] getOperations();
+
+  long getOperationCount(String operation);
+
+  long getMeanLatencyNanos(String operation);
+
+  long getMaxLatencyNanos(String operation);
+
+  long getLatencyPercentileNanos(String operation, double percentile);
+
+  void reset();
+}
@@ -0,0 +1,287 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A configuration value compiled into literal text and alias references.
+ * <p>
+ * A value may embed any number of <code>${ALIAS=name}</code> references,
+ * for example <code>jdbc:user=${ALIAS=db.user};pw=${ALIAS=db.pw}</code>.
+ * A reference may carry a default that is used when the alias is not
+ * present: <code>${ALIAS=name:-default}</code>. In a value that contains a
+ * reference, <code>$${</code> produces a literal <code>${</code>. Anything
+ * else, including an unterminated reference, is taken literally, and a value
+ * without any <code>${ALIAS=</code> is returned unchanged, so existing clear
+ * text values keep their meaning.
+ * <p>
+ * The value is scanned once at compile time. Expansion writes into a per
+ * thread buffer that is reused across calls and wiped afterwards, so
+ * expanding a compiled template allocates nothing but the result.
+ */
+public final class ConfigValueTemplate {
+
+  private static final String REFERENCE_START = "${ALIAS=";
+  private static final String DEFAULT_SEPARATOR = ":-";
+  private static final int INITIAL_BUFFER = 256;
+
+  private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[INITIAL_BUFFER];
+    }
+  };
+
+  /**
+   * Looks up the credential for an alias during expansion.
+   */
+  public interface Resolver {
+    /**
+     * @return the credential or null if the alias is not present. The
+     * returned array is wiped once it has been copied into the result.
+     */
+    char[] resolve(String alias);
+  }
+
+  private final char[] source;
+  // segment i is either literal source[starts[i], ends[i]) or, when
+  // aliases[i] is set, a reference with an optional default
+  private final int[] starts;
+  private final int[] ends;
+  private final String[] aliases;
+  private final char[][] defaults;
+  private final int segments;
+  private final Set<String> referenced;
+
+  private ConfigValueTemplate(char[] source, int capacity) {
+    this.source = source;
+    this.starts = new int[capacity];
+    this.ends = new int[capacity];
+    this.aliases = new String[capacity];
+    this.defaults = new char[capacity][];
+    this.segments = compile(source, starts, ends, aliases, defaults);
+    Set<String> names = new LinkedHashSet<String>();
+    for (int i = 0; i < segments; i++) {
+      if (aliases[i] != null) {
+        names.add(aliases[i]);
+      }
+    }
+    this.referenced = Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * @return whether the value contains a reference and so needs expanding;
+   * any other value is clear text
+   */
+  public static boolean containsReference(String value) {
+    return value.indexOf(REFERENCE_START) >= 0;
+  }
+
+  public static ConfigValueTemplate compile(String value) {
+    char[] source = value.toCharArray();
+    // every "${" adds at most one reference and one literal segment
+    int capacity = 1;
+    for (int i = 0; i < source.length - 1; i++) {
+      if (source[i] == '$' && source[i + 1] == '{') {
+        capacity += 2;
+      }
+    }
+    return new ConfigValueTemplate(source, capacity);
+  }
+
+  private static int compile(char[] source, int[] starts, int[] ends, String[] aliases, char[][] defaults) {
+    if (indexOf(source, REFERENCE_START, 0, source.length) < 0) {
+      // clear text, not even "$${" is unescaped
+      return addLiteral(starts, ends, 0, 0, source.length);
+    }
+    int count = 0;
+    int literal = 0;
+    int i = 0;
+    while (i < source.length) {
+      if (source[i] != '$') {
+        i++;
+        continue;
+      }
+      if (i + 2 < source.length && source[i + 1] == '$' && source[i + 2] == '{') {
+        // "$${": keep the text up to and including the first '$'
+        count = addLiteral(starts, ends, count, literal, i + 1);
+        literal = i + 2;
+        i += 3;
+        continue;
+      }
+      if (regionMatches(source, i, REFERENCE_START)) {
+        int nameStart = i + REFERENCE_START.length();
+        int close = indexOf(source, '}', nameStart);
+        if (close > nameStart) {
+          int nameEnd = close;
+          char[] fallback = null;
+          int separator = indexOf(source, DEFAULT_SEPARATOR, nameStart, close);
+          if (separator >= 0) {
+            nameEnd = separator;
+            fallback = Arrays.copyOfRange(source, separator + DEFAULT_SEPARATOR.length(), close);
+          }
+          if (nameEnd > nameStart) {
+            count = addLiteral(starts, ends, count, literal, i);
+            aliases[count] = new String(source, nameStart, nameEnd - nameStart);
+            defaults[count] = fallback;
+            count++;
+            literal = close + 1;
+            i = close + 1;
+            continue;
+          }
+        }
+      }
+      i++;
+    }
+    return addLiteral(starts, ends, count, literal, source.length);
+  }
+
+  private static int addLiteral(int[] starts, int[] ends, int count, int start, int end) {
+    if (end > start) {
+      starts[count] = start;
+      ends[count] = end;
+      return count + 1;
+    }
+    return count;
+  }
+
+  private static boolean regionMatches(char[] source, int offset, String token) {
+    if (offset + token.length() > source.length) {
+      return false;
+    }
+    for (int i = 0; i < token.length(); i++) {
+      if (source[offset + i] != token.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(char[] source, char c, int from) {
+    for (int i = from; i < source.length; i++) {
+      if (source[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(char[] source, String token, int from, int to) {
+    for (int i = from; i + token.length() <= to; i++) {
+      if (regionMatches(source, i, token)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the aliases referenced by this value in order of first use
+   */
+  public Set<String> getAliases() {
+    return referenced;
+  }
+
+  public boolean hasAliases() {
+    return !referenced.isEmpty();
+  }
+
+  /**
+   * @return the expanded value, or null if a referenced alias without a
+   * default could not be resolved
+   */
+  public char[] expand(Resolver resolver) {
+    return expand(resolver, null);
+  }
+
+  /**
+   * Expand against credentials that have already been looked up. The
+   * arrays in the map are neither modified nor wiped.
+   */
+  public char[] expand(Map<String, char[]> credentials) {
+    return expand(null, credentials);
+  }
+
+  /**
+   * @return the first referenced alias that neither resolves in the given
+   * credentials nor has a default, or null if there is none
+   */
+  public String getUnresolvedAlias(Map<String, char[]> credentials) {
+    for (int i = 0; i < segments; i++) {
+      if (aliases[i] != null && defaults[i] == null && credentials.get(aliases[i]) == null) {
+        return aliases[i];
+      }
+    }
+    return null;
+  }
+
+  private char[] expand(Resolver resolver, Map<String, char[]> credentials) {
+    char[] buffer = BUFFER.get();
+    int length = 0;
+    try {
+      for (int i = 0; i < segments; i++) {
+        if (aliases[i] == null) {
+          buffer = append(buffer, length, source, starts[i], ends[i]);
+          length += ends[i] - starts[i];
+          continue;
+        }
+        char[] value = resolver != null ? resolver.resolve(aliases[i]) : credentials.get(aliases[i]);
+        if (value == null) {
+          value = defaults[i];
+          if (value == null) {
+            return null;
+          }
+          buffer = append(buffer, length, value, 0, value.length);
+        }
+        else {
+          buffer = append(buffer, length, value, 0, value.length);
+          if (resolver != null) {
+            Arrays.fill(value, ' ');
+          }
+        }
+        length += value.length;
+      }
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      Arrays.fill(buffer, 0, Math.min(length, buffer.length), ' ');
+    }
+  }
+
+  private static char[] append(char[] buffer, int length, char[] value, int from, int to) {
+    int needed = length + to - from;
+    if (needed > buffer.length) {
+      char[] grown = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+      Arrays.fill(buffer, ' ');
+      BUFFER.set(grown);
+      buffer = grown;
+    }
+    System.arraycopy(value, from, buffer, length, to - from);
+    return buffer;
+  }
+
+  @Override
+  public String toString() {
+    // the source may be clear text, so only describe its shape
+    return "ConfigValueTemplate" + referenced;
+  }
+}
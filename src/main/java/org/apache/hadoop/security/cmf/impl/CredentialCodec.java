@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Converts credentials between chars and UTF-8 bytes without going through
+ * a String.
+ * <p>
+ * Each thread reuses its own encoder, decoder and scratch buffers, so a
+ * conversion allocates only the array it returns. The scratch buffers are
+ * wiped after every call; the array returned belongs to the caller, who is
+ * expected to wipe it when done. Malformed input is replaced the same way
+ * <code>String.getBytes</code> and <code>new String(byte[])</code> do.
+ */
+public final class CredentialCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private CredentialCodec() {
+  }
+
+  public static byte[] encode(char[] value) {
+    Scratch scratch = SCRATCH.get();
+    // copying into the scratch buffer is cheaper than wrapping the array
+    CharBuffer in = scratch.chars(value.length);
+    in.put(value).flip();
+    try {
+      return encode(scratch, in);
+    } finally {
+      Arrays.fill(in.array(), 0, value.length, '\0');
+    }
+  }
+
+  /**
+   * Encode the remaining chars of the buffer, leaving its position alone.
+   */
+  public static byte[] encode(CharBuffer value) {
+    return encode(SCRATCH.get(), value.duplicate());
+  }
+
+  public static char[] decode(byte[] value) {
+    Scratch scratch = SCRATCH.get();
+    ByteBuffer in = scratch.bytes(value.length);
+    in.put(value).flip();
+    try {
+      return decode(scratch, in);
+    } finally {
+      Arrays.fill(in.array(), 0, value.length, (byte) 0);
+    }
+  }
+
+  /**
+   * Decode the remaining bytes of the buffer, leaving its position alone.
+   */
+  public static char[] decode(ByteBuffer value) {
+    return decode(SCRATCH.get(), value.duplicate());
+  }
+
+  private static byte[] encode(Scratch scratch, CharBuffer in) {
+    CharsetEncoder encoder = scratch.encoder;
+    ByteBuffer out = scratch.encoded((int) Math.ceil(in.remaining() * (double) encoder.maxBytesPerChar()));
+    try {
+      encoder.reset();
+      check(encoder.encode(in, out, true));
+      check(encoder.flush(out));
+      return Arrays.copyOf(out.array(), out.position());
+    } finally {
+      Arrays.fill(out.array(), 0, out.position(), (byte) 0);
+    }
+  }
+
+  private static char[] decode(Scratch scratch, ByteBuffer in) {
+    CharsetDecoder decoder = scratch.decoder;
+    CharBuffer out = scratch.decoded((int) Math.ceil(in.remaining() * (double) decoder.maxCharsPerByte()));
+    try {
+      decoder.reset();
+      check(decoder.decode(in, out, true));
+      check(decoder.flush(out));
+      return Arrays.copyOf(out.array(), out.position());
+    } finally {
+      Arrays.fill(out.array(), 0, out.position(), '\0');
+    }
+  }
+
+  private static void check(CoderResult result) {
+    if (!result.isUnderflow()) {
+      // the buffers are sized for the worst case and errors are replaced
+      try {
+        result.throwException();
+      } catch (CharacterCodingException e) {
+        throw new IllegalStateException("Unable to convert credential.", e);
+      }
+    }
+  }
+
+  private static final class Scratch {
+    final CharsetEncoder encoder = UTF8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharsetDecoder decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // inputs copied from arrays
+    ByteBuffer bytes = ByteBuffer.allocate(256);
+    CharBuffer chars = CharBuffer.allocate(256);
+    // outputs
+    ByteBuffer encoded = ByteBuffer.allocate(256);
+    CharBuffer decoded = CharBuffer.allocate(256);
+
+    ByteBuffer bytes(int capacity) {
+      if (bytes.capacity() < capacity) {
+        bytes = ByteBuffer.allocate(capacity);
+      }
+      bytes.clear();
+      return bytes;
+    }
+
+    CharBuffer chars(int capacity) {
+      if (chars.capacity() < capacity) {
+        chars = CharBuffer.allocate(capacity);
+      }
+      chars.clear();
+      return chars;
+    }
+
+    ByteBuffer encoded(int capacity) {
+      if (encoded.capacity() < capacity) {
+        encoded = ByteBuffer.allocate(capacity);
+      }
+      encoded.clear();
+      return encoded;
+    }
+
+    CharBuffer decoded(int capacity) {
+      if (decoded.capacity() < capacity) {
+        decoded = CharBuffer.allocate(capacity);
+      }
+      decoded.clear();
+      return decoded;
+    }
+  }
+}
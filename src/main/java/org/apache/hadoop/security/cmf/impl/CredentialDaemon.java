@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.security.cmf.AliasService;
+import org.apache.hadoop.security.cmf.CMFBootstrapService;
+
+/**
+ * Serves alias lookups of one {@link AliasService} to other processes on
+ * the same host, so that they share a single unlocked credential store
+ * instead of each loading and decrypting their own.
+ * <p>
+ * The daemon listens on a loopback socket; Unix domain sockets are not
+ * available to Java 8. A selector thread does all of the socket I/O and
+ * lookups run on a small pool of workers, so a slow lookup does not hold
+ * up other connections. Clients authenticate with a random token that the
+ * daemon writes, together with its port, to an endpoint file readable only
+ * by the user running it. See {@link DaemonProtocol} for the wire format
+ * and {@link RemoteAliasService} for the client.
+ * <p>
+ * The daemon only reads credentials. Missing aliases are generated when a
+ * client asks for it, as with {@link AliasService#getPasswordFromAlias(String, boolean)}.
+ */
+public class CredentialDaemon implements Closeable {
+
+  private final AliasService aliasService;
+  private final ExecutorService workers;
+  private final byte[] token = new byte[DaemonProtocol.TOKEN_LENGTH];
+  private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+  private ServerSocketChannel server;
+  private Selector selector;
+  private Thread loop;
+  private File endpointFile;
+  private volatile boolean running = false;
+
+  public CredentialDaemon(AliasService aliasService, int workerThreads) {
+    this.aliasService = aliasService;
+    final AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "cmf-daemon-worker-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    new SecureRandom().nextBytes(token);
+  }
+
+  /**
+   * Listen on the given loopback port, 0 for any free one, and publish the
+   * port and token in the endpoint file.
+   */
+  public void start(int port, File endpointFile) throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    writeEndpoint(endpointFile);
+    this.endpointFile = endpointFile;
+    running = true;
+    loop = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "cmf-daemon");
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * Stop serving, close every connection and remove the endpoint file.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    if (selector != null) {
+      selector.wakeup();
+      try {
+        loop.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    workers.shutdownNow();
+    Arrays.fill(token, (byte) 0);
+    if (endpointFile != null) {
+      endpointFile.delete();
+    }
+  }
+
+  private void writeEndpoint(File file) throws IOException {
+    Properties endpoint = new Properties();
+    endpoint.setProperty(DaemonProtocol.PORT_PROPERTY, Integer.toString(getPort()));
+    endpoint.setProperty(DaemonProtocol.TOKEN_PROPERTY, Hex.encodeHexString(token));
+    File temp = new File(file.getPath() + ".tmp");
+    temp.delete();
+    Files.createFile(temp.toPath());
+    try {
+      Files.setPosixFilePermissions(temp.toPath(), PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      temp.setReadable(false, false);
+      temp.setReadable(true, true);
+    }
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      endpoint.store(out, "CMF credential daemon");
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to publish the daemon endpoint " + file);
+    }
+  }
+
+  private void serve() {
+    try {
+      while (running) {
+        selector.select();
+        Connection ready;
+        while ((ready = writable.poll()) != null) {
+          SelectionKey key = ready.channel.keyFor(selector);
+          if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            }
+            else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write(key);
+              }
+            }
+          } catch (IOException e) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+              ((Connection) attachment).close();
+            }
+          } catch (RuntimeException e) {
+            // a bad client must not take down the others
+            e.printStackTrace();
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+              ((Connection) attachment).close();
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        try {
+          key.channel().close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+  }
+
+  private void lookup(final Connection connection, final int id, final boolean generate, final String[] aliases) {
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          ByteBuffer response;
+          try {
+            char[][] credentials = new char[aliases.length][];
+            for (int i = 0; i < aliases.length; i++) {
+              credentials[i] = aliasService.getPasswordFromAlias(aliases[i], generate);
+            }
+            response = DaemonProtocol.response(id, credentials);
+            if (response.remaining() - 4 > DaemonProtocol.MAX_FRAME) {
+              // the client would drop the connection, answer this request alone
+              Arrays.fill(response.array(), (byte) 0);
+              response = DaemonProtocol.error(id, "The response exceeds " + DaemonProtocol.MAX_FRAME
+                  + " bytes, look up fewer aliases at once.");
+            }
+          } catch (RuntimeException e) {
+            response = DaemonProtocol.error(id, String.valueOf(e.getMessage()));
+          }
+          connection.send(response);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down
+      connection.close();
+    }
+  }
+
+  /**
+   * The state of one client connection. Reads happen on the selector
+   * thread; responses are queued by workers and written by the selector.
+   */
+  private final class Connection {
+    final SocketChannel channel;
+    final ConcurrentLinkedQueue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+    ByteBuffer in = ByteBuffer.allocate(4096);
+    boolean authenticated = false;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (channel.read(in) < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while (in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        // nothing but the token is accepted, or buffered, before it is checked
+        int limit = authenticated ? DaemonProtocol.MAX_FRAME : DaemonProtocol.TOKEN_LENGTH;
+        if (length < 0 || length > limit) {
+          close();
+          return;
+        }
+        if (in.remaining() < 4 + length) {
+          if (in.capacity() < 4 + length) {
+            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(in);
+            in = larger;
+            return;
+          }
+          break;
+        }
+        in.position(in.position() + 4);
+        ByteBuffer body = in.slice();
+        body.limit(length);
+        in.position(in.position() + length);
+        if (!handle(body)) {
+          close();
+          return;
+        }
+      }
+      in.compact();
+    }
+
+    private boolean handle(ByteBuffer body) throws IOException {
+      if (!authenticated) {
+        byte[] presented = new byte[body.remaining()];
+        body.get(presented);
+        if (!MessageDigest.isEqual(presented, token)) {
+          return false;
+        }
+        authenticated = true;
+        send(DaemonProtocol.response(0, new char[0][]));
+        return true;
+      }
+      if (body.remaining() < 4 + 1 + 1) {
+        return false;
+      }
+      int id = body.getInt();
+      byte op = body.get();
+      byte flags = body.get();
+      if (op != DaemonProtocol.OP_LOOKUP) {
+        send(DaemonProtocol.error(id, "Unknown operation " + op));
+        return true;
+      }
+      lookup(this, id, (flags & DaemonProtocol.FLAG_GENERATE) != 0, DaemonProtocol.aliases(body));
+      return true;
+    }
+
+    void send(ByteBuffer response) {
+      responses.add(response);
+      writable.add(this);
+      selector.wakeup();
+    }
+
+    void write(SelectionKey key) throws IOException {
+      ByteBuffer response;
+      while ((response = responses.peek()) != null) {
+        channel.write(response);
+        if (response.hasRemaining()) {
+          return;
+        }
+        // responses carry credentials
+        Arrays.fill(response.array(), (byte) 0);
+        responses.poll();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      if (!responses.isEmpty()) {
+        // a worker queued more after we drained, keep writing
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      ByteBuffer response;
+      while ((response = responses.poll()) != null) {
+        Arrays.fill(response.array(), (byte) 0);
+      }
+      Arrays.fill(in.array(), (byte) 0);
+    }
+  }
+
+  /**
+   * Run a daemon for one service until the process is stopped.
+   * <p>
+   * Usage: <code>CredentialDaemon securityDir keystoreDir serviceName [port [workers]]</code>
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: CredentialDaemon securityDir keystoreDir serviceName [port [workers]]");
+      System.exit(1);
+    }
+    CMFBootstrapService bootstrap = new CMFBootstrapService();
+    bootstrap.init(args[0], args[1], args[2]);
+    bootstrap.start(false);
+    int port = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+    int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+    final CredentialDaemon daemon = new CredentialDaemon(bootstrap.getAliasService(), threads);
+    daemon.start(port, DaemonProtocol.endpointFile(args[1], args[2]));
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          daemon.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    System.out.println("CMF credential daemon listening on port " + daemon.getPort());
+    Thread.currentThread().join();
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An append-only file of encrypted credential records.
+ * <p>
+ * The file starts with a header of magic, version and the salt used to derive
+ * the record key from the master secret. Every record is a length prefix
+ * followed by a random IV and the AES/GCM encryption of the alias and value,
+ * so a torn or corrupted record fails authentication.
+ */
+class CredentialJournal implements Closeable {
+
+  private static final int MAGIC = 0x434d464a; // "CMFJ"
+  private static final int VERSION = 1;
+  private static final int SALT_LENGTH = 16;
+  private static final int HEADER_LENGTH = 4 + 4 + SALT_LENGTH;
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_LENGTH = 128;
+  private static final int ITERATION_COUNT = 65536;
+  private static final int KEY_LENGTH = 128;
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+  private final File file;
+  private final FileChannel channel;
+  private final byte[] salt;
+  private final SecretKeySpec key;
+  private final SecureRandom random = new SecureRandom();
+  private int entryCount = 0;
+  private long length = HEADER_LENGTH;
+
+  private CredentialJournal(File file, FileChannel channel, byte[] salt, SecretKeySpec key) {
+    this.file = file;
+    this.channel = channel;
+    this.salt = salt;
+    this.key = key;
+  }
+
+  /**
+   * Open the journal at the given location, creating it if it does not exist.
+   */
+  static CredentialJournal open(File file, char[] master) throws IOException, GeneralSecurityException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      byte[] salt = new byte[SALT_LENGTH];
+      if (channel.size() < HEADER_LENGTH) {
+        new SecureRandom().nextBytes(salt);
+        writeHeader(channel, salt);
+      }
+      else {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, 0);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+          throw new IOException("Not a credential journal: " + file);
+        }
+        header.get(salt);
+      }
+      return new CredentialJournal(file, channel, salt, deriveKey(master, salt));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (GeneralSecurityException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Start a new, empty journal at the given location that shares the salt and
+   * key of this one so that no key derivation is needed.
+   */
+  CredentialJournal startNext(File next) throws IOException {
+    FileChannel channel = FileChannel.open(next.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    writeHeader(channel, salt);
+    return new CredentialJournal(next, channel, salt, key);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  synchronized long size() {
+    return length;
+  }
+
+  synchronized int getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Replay every intact record into the given map, keyed by the lowercased
+   * alias since aliases match regardless of case. A trailing record that is
+   * incomplete or fails authentication is truncated so that appends continue
+   * from the last good record.
+   * @throws IOException if a record fails authentication but complete
+   * records follow it, which a torn append cannot explain
+   */
+  synchronized void replay(Map<String, char[]> credentials) throws IOException, GeneralSecurityException {
+    long position = HEADER_LENGTH;
+    long size = channel.size();
+    ByteBuffer prefix = ByteBuffer.allocate(4);
+    Cipher cipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+    entryCount = 0;
+    while (position + 4 <= size) {
+      prefix.clear();
+      readFully(channel, prefix, position);
+      int recordLength = prefix.getInt(0);
+      if (recordLength <= IV_LENGTH || position + 4 + recordLength > size) {
+        break;
+      }
+      ByteBuffer record = ByteBuffer.allocate(recordLength);
+      readFully(channel, record, position + 4);
+      byte[] plain;
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, record.array(), 0, IV_LENGTH));
+        plain = cipher.doFinal(record.array(), IV_LENGTH, recordLength - IV_LENGTH);
+      } catch (AEADBadTagException e) {
+        if (hasCompleteRecord(position + 4 + recordLength, size)) {
+          throw new IOException("Credential journal record at " + position + " failed authentication: " + file, e);
+        }
+        break;
+      }
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+      String alias = in.readUTF();
+      credentials.put(alias.toLowerCase(Locale.ENGLISH), in.readUTF().toCharArray());
+      Arrays.fill(plain, (byte) 0);
+      entryCount++;
+      position += 4 + recordLength;
+    }
+    if (position < size) {
+      channel.truncate(position);
+      channel.force(true);
+    }
+    channel.position(position);
+    length = position;
+  }
+
+  /**
+   * Append one record per credential and force them to disk together.
+   * @return the number of bytes appended
+   */
+  synchronized int append(Map<String, String> credentials) throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(records);
+    Cipher cipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+    byte[] iv = new byte[IV_LENGTH];
+    for (Map.Entry<String, String> credential : credentials.entrySet()) {
+      ByteArrayOutputStream plain = new ByteArrayOutputStream();
+      DataOutputStream entry = new DataOutputStream(plain);
+      entry.writeUTF(credential.getKey());
+      entry.writeUTF(credential.getValue());
+      random.nextBytes(iv);
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+      byte[] encrypted = cipher.doFinal(plain.toByteArray());
+      out.writeInt(IV_LENGTH + encrypted.length);
+      out.write(iv);
+      out.write(encrypted);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+    int written = buffer.remaining();
+    channel.position(channel.size());
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    channel.force(false);
+    entryCount += credentials.size();
+    length = channel.position();
+    return written;
+  }
+
+  private boolean hasCompleteRecord(long position, long size) throws IOException {
+    if (position + 4 > size) {
+      return false;
+    }
+    ByteBuffer prefix = ByteBuffer.allocate(4);
+    readFully(channel, prefix, position);
+    int recordLength = prefix.getInt(0);
+    return recordLength > IV_LENGTH && position + 4 + recordLength <= size;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private static void writeHeader(FileChannel channel, byte[] salt) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(MAGIC).putInt(VERSION).put(salt);
+    header.flip();
+    channel.truncate(0);
+    while (header.hasRemaining()) {
+      channel.write(header, HEADER_LENGTH - header.remaining());
+    }
+    channel.force(true);
+    channel.position(HEADER_LENGTH);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of credential journal.");
+      }
+    }
+    buffer.flip();
+  }
+
+  private static SecretKeySpec deriveKey(char[] master, byte[] salt) throws GeneralSecurityException {
+    SecretKeyFactory factory = CryptoPrimitives.getSecretKeyFactory("PBKDF2WithHmacSHA1");
+    PBEKeySpec spec = new PBEKeySpec(master, salt, ITERATION_COUNT, KEY_LENGTH);
+    try {
+      return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable in-memory view of one version of a credential store.
+ * <p>
+ * The keystore held here is never modified once the snapshot is published;
+ * a change to the store produces a new snapshot. Decrypted credentials are
+ * memoized per alias so that repeated lookups do not have to unseal the
+ * keystore entry again. The stamp of the file that the store was loaded
+ * from is kept so that on-disk changes can be detected.
+ * <p>
+ * A snapshot that has been replaced may still be in use by readers, so its
+ * decrypted credentials are left to the garbage collector rather than wiped.
+ */
+class CredentialSnapshot {
+
+  private final KeyStore store;
+  private final AliasFilter filter;
+  private final ConcurrentHashMap<String, char[]> credentials;
+  private final AtomicLong credentialChars;
+  private final StoreStamp stamp;
+  private final AtomicLong nextCheck;
+
+  CredentialSnapshot(KeyStore store, StoreStamp stamp, long nextCheck) {
+    this(store, buildFilter(store), new ConcurrentHashMap<String, char[]>(), new AtomicLong(), stamp, nextCheck);
+  }
+
+  private CredentialSnapshot(KeyStore store, AliasFilter filter, ConcurrentHashMap<String, char[]> credentials,
+      AtomicLong credentialChars, StoreStamp stamp, long nextCheck) {
+    this.store = store;
+    this.filter = filter;
+    this.credentials = credentials;
+    this.credentialChars = credentialChars;
+    this.stamp = stamp;
+    this.nextCheck = new AtomicLong(nextCheck);
+  }
+
+  private static AliasFilter buildFilter(KeyStore store) {
+    try {
+      AliasFilter filter = AliasFilter.of(Collections.list(store.aliases()));
+      CMFMetrics.aliasFilterBuilt(filter);
+      return filter;
+    } catch (KeyStoreException e) {
+      // without a filter every alias is looked up in the store
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  KeyStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return the filter over this snapshot's aliases, or null if it could
+   * not be built
+   */
+  AliasFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * @return false if the alias is definitely not in this snapshot
+   */
+  boolean mightContain(String alias) {
+    return filter == null || filter.mightContain(alias);
+  }
+
+  StoreStamp getStamp() {
+    return stamp;
+  }
+
+  char[] get(String alias) {
+    return credentials.get(alias);
+  }
+
+  void put(String alias, char[] credential) {
+    if (credentials.putIfAbsent(alias, credential) == null) {
+      credentialChars.addAndGet(credential.length);
+    }
+  }
+
+  /**
+   * @return an estimate of the heap held by this snapshot: the serialized
+   * size of the store, its alias filter and the memoized credentials
+   */
+  long getWeight() {
+    long weight = stamp.length + 2 * credentialChars.get();
+    if (filter != null) {
+      weight += filter.getMemoryBytes();
+    }
+    return weight;
+  }
+
+  /**
+   * Claim the check of this snapshot against the file on disk if one is due.
+   * Only one caller wins the claim; the others keep using this snapshot
+   * until the next check is due.
+   */
+  boolean claimCheck(long now, long interval) {
+    long due = nextCheck.get();
+    return now - due >= 0 && nextCheck.compareAndSet(due, now + interval);
+  }
+
+  /**
+   * @return a snapshot of the same store contents for a file that was
+   * touched but not changed
+   */
+  CredentialSnapshot withStamp(StoreStamp stamp, long nextCheck) {
+    return new CredentialSnapshot(store, filter, credentials, credentialChars, stamp, nextCheck);
+  }
+
+  /**
+   * Identifies the contents of a store file by modification time, size,
+   * file key and content digest. The digest is only consulted when the cheaper
+   * attributes differ so that a touched but unchanged file does not force a reload.
+   */
+  static class StoreStamp {
+    private final long lastModified;
+    private final long length;
+    private final Object fileKey;
+    private final byte[] digest;
+
+    StoreStamp(long lastModified, long length, Object fileKey, byte[] digest) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.fileKey = fileKey;
+      this.digest = digest;
+    }
+
+    static StoreStamp of(File file, byte[] contents) throws IOException {
+      BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return new StoreStamp(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), attrs.size(),
+          attrs.fileKey(), digest(contents));
+    }
+
+    boolean matchesAttributes(File file) {
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) == lastModified
+            && attrs.size() == length
+            && (fileKey == null || fileKey.equals(attrs.fileKey()));
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    boolean matchesContent(byte[] contents) {
+      return MessageDigest.isEqual(digest, digest(contents));
+    }
+
+    static byte[] digest(byte[] contents) {
+      try {
+        return CryptoPrimitives.getMessageDigest("SHA-256").digest(contents);
+      } catch (NoSuchAlgorithmException e) {
+        // every Java platform is required to support SHA-256
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
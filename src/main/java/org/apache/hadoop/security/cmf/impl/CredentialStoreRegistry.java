@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * Serves the credential stores of many services from one process.
+ * <p>
+ * Every service has its own <code>-credentials.jceks</code> store in the
+ * keystore directory, all of them protected by the same master secret. A
+ * service's store is opened on first use. All stores share one budget: the
+ * number of open stores and the estimated heap they hold, see
+ * {@link CMFKeystoreService#getCachedBytes()}, are both bounded. When either
+ * bound is exceeded the least recently used stores are closed until the
+ * registry is back within it. A closed store drops its cached snapshot and
+ * is reopened the next time it is needed.
+ * <p>
+ * Statistics are kept per service across evictions so that the budget can
+ * be sized from how the services are actually used.
+ */
+public class CredentialStoreRegistry implements Closeable {
+
+  private final String keystoreDir;
+  private final MasterService masterService;
+  private final int maxOpenStores;
+  private final long maxCachedBytes;
+  private final ConcurrentHashMap<String, OpenStore> open = new ConcurrentHashMap<String, OpenStore>();
+  private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+  private final AtomicLong cachedBytes = new AtomicLong();
+  private final Object evictionLock = new Object();
+  private volatile long cacheCheckInterval = -1;
+
+  /**
+   * @param maxOpenStores the most stores kept open at once
+   * @param maxCachedBytes the most heap, as estimated, that the open stores
+   * may hold together
+   */
+  public CredentialStoreRegistry(String keystoreDir, MasterService ms, int maxOpenStores, long maxCachedBytes) {
+    if (maxOpenStores < 1) {
+      throw new IllegalArgumentException("At least one store must be allowed to be open.");
+    }
+    this.keystoreDir = keystoreDir;
+    this.masterService = ms;
+    this.maxOpenStores = maxOpenStores;
+    this.maxCachedBytes = maxCachedBytes;
+  }
+
+  /**
+   * Apply a cache check interval to every store, see
+   * {@link CMFKeystoreService#setCacheCheckInterval(long)}.
+   */
+  public void setCacheCheckInterval(long millis) {
+    this.cacheCheckInterval = millis;
+    for (OpenStore store : open.values()) {
+      store.service.setCacheCheckInterval(millis);
+    }
+  }
+
+  public char[] getCredential(String serviceName, String alias) throws KeystoreServiceException {
+    OpenStore store = acquire(serviceName);
+    char[] credential = store.service.getCredential(alias);
+    store.counters.lookups.increment();
+    if (credential == null) {
+      store.counters.misses.increment();
+    }
+    release(store);
+    return credential;
+  }
+
+  public Map<String, char[]> getCredentials(String serviceName, Collection<String> aliases)
+      throws KeystoreServiceException {
+    OpenStore store = acquire(serviceName);
+    Map<String, char[]> credentials = store.service.getCredentials(aliases);
+    store.counters.lookups.add(aliases.size());
+    store.counters.misses.add(aliases.size() - credentials.size());
+    release(store);
+    return credentials;
+  }
+
+  /**
+   * @return the keystore service of the named service, opened if needed.
+   * Credentials it caches are only accounted for when they are read through
+   * this registry.
+   */
+  public CMFKeystoreService getKeystoreService(String serviceName) throws KeystoreServiceException {
+    OpenStore store = acquire(serviceName);
+    release(store);
+    return store.service;
+  }
+
+  public int getOpenStoreCount() {
+    return open.size();
+  }
+
+  /**
+   * @return the estimated heap held by all open stores
+   */
+  public long getCachedBytes() {
+    return cachedBytes.get();
+  }
+
+  /**
+   * Close every store that has not been used within the given time.
+   * @return the number of stores closed
+   */
+  public int evictIdle(long idleMillis) {
+    long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    int evicted = 0;
+    synchronized (evictionLock) {
+      for (OpenStore store : open.values()) {
+        if (store.lastAccess - cutoff < 0 && evict(store)) {
+          evicted++;
+        }
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * @return the statistics of every service that has been used, in no
+   * particular order
+   */
+  public List<ServiceStats> getStats() {
+    List<ServiceStats> stats = new ArrayList<ServiceStats>();
+    for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+      OpenStore store = open.get(entry.getKey());
+      Counters c = entry.getValue();
+      stats.add(new ServiceStats(entry.getKey(), store != null, store != null ? store.weight : 0,
+          c.lookups.sum(), c.misses.sum(), c.opens.sum(), c.evictions.sum()));
+    }
+    return stats;
+  }
+
+  /**
+   * Close every store.
+   */
+  @Override
+  public void close() {
+    synchronized (evictionLock) {
+      for (OpenStore store : open.values()) {
+        evict(store);
+      }
+    }
+  }
+
+  private OpenStore acquire(String serviceName) throws KeystoreServiceException {
+    OpenStore store = open.get(serviceName);
+    if (store == null) {
+      Counters c = counters.get(serviceName);
+      if (c == null) {
+        Counters created = new Counters();
+        c = counters.putIfAbsent(serviceName, created);
+        if (c == null) {
+          c = created;
+        }
+      }
+      CMFKeystoreService service = new CMFKeystoreService(keystoreDir, serviceName, masterService);
+      if (cacheCheckInterval >= 0) {
+        service.setCacheCheckInterval(cacheCheckInterval);
+      }
+      OpenStore created = new OpenStore(serviceName, service, c);
+      store = open.putIfAbsent(serviceName, created);
+      if (store == null) {
+        store = created;
+        c.opens.increment();
+      }
+    }
+    store.lastAccess = System.nanoTime();
+    return store;
+  }
+
+  /**
+   * Account for what the store holds after it has been used and evict if
+   * the registry is now over budget.
+   */
+  private void release(OpenStore store) {
+    synchronized (store) {
+      if (!store.evicted) {
+        long weight = store.service.getCachedBytes();
+        cachedBytes.addAndGet(weight - store.weight);
+        store.weight = weight;
+      }
+    }
+    if (open.size() > maxOpenStores || cachedBytes.get() > maxCachedBytes) {
+      evictLeastRecentlyUsed(store);
+    }
+  }
+
+  private void evictLeastRecentlyUsed(OpenStore current) {
+    synchronized (evictionLock) {
+      List<OpenStore> candidates = new ArrayList<OpenStore>(open.values());
+      Collections.sort(candidates, new Comparator<OpenStore>() {
+        @Override
+        public int compare(OpenStore a, OpenStore b) {
+          return Long.signum(a.lastAccess - b.lastAccess);
+        }
+      });
+      for (OpenStore candidate : candidates) {
+        if (open.size() <= maxOpenStores && cachedBytes.get() <= maxCachedBytes) {
+          break;
+        }
+        // the store just used stays open even if it alone exceeds the budget
+        if (candidate != current) {
+          evict(candidate);
+        }
+      }
+    }
+  }
+
+  private boolean evict(OpenStore store) {
+    if (!open.remove(store.serviceName, store)) {
+      return false;
+    }
+    synchronized (store) {
+      store.evicted = true;
+      cachedBytes.addAndGet(-store.weight);
+      store.weight = 0;
+    }
+    store.service.invalidateCredentialCache();
+    store.counters.evictions.increment();
+    return true;
+  }
+
+  private static final class OpenStore {
+    final String serviceName;
+    final CMFKeystoreService service;
+    final Counters counters;
+    volatile long lastAccess = System.nanoTime();
+    long weight = 0;
+    boolean evicted = false;
+
+    OpenStore(String serviceName, CMFKeystoreService service, Counters counters) {
+      this.serviceName = serviceName;
+      this.service = service;
+      this.counters = counters;
+    }
+  }
+
+  private static final class Counters {
+    final LongAdder lookups = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder opens = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+  }
+
+  /**
+   * A point in time view of how one service has used the registry.
+   */
+  public static final class ServiceStats {
+    private final String serviceName;
+    private final boolean open;
+    private final long cachedBytes;
+    private final long lookups;
+    private final long misses;
+    private final long opens;
+    private final long evictions;
+
+    ServiceStats(String serviceName, boolean open, long cachedBytes, long lookups, long misses, long opens,
+        long evictions) {
+      this.serviceName = serviceName;
+      this.open = open;
+      this.cachedBytes = cachedBytes;
+      this.lookups = lookups;
+      this.misses = misses;
+      this.opens = opens;
+      this.evictions = evictions;
+    }
+
+    public String getServiceName() {
+      return serviceName;
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    /**
+     * @return the estimated heap held by the store, 0 if it is not open
+     */
+    public long getCachedBytes() {
+      return cachedBytes;
+    }
+
+    public long getLookups() {
+      return lookups;
+    }
+
+    /**
+     * @return lookups of aliases the store did not have
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * @return how often the store has been opened; more than once means it
+     * was evicted and needed again
+     */
+    public long getOpens() {
+      return opens;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    @Override
+    public String toString() {
+      return serviceName + (open ? " open " + cachedBytes + " bytes" : " closed") + ", lookups=" + lookups
+          + ", misses=" + misses + ", opens=" + opens + ", evictions=" + evictions;
+    }
+  }
+}
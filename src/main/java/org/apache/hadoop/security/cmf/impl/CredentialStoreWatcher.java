@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.security.cmf.CredentialChangeListener;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+
+/**
+ * Reloads credential stores in the background when their files change.
+ * <p>
+ * The directories of the watched stores are registered with a
+ * {@link WatchService}. An event for a store file schedules a reload after
+ * a quiet period, and further events within that period push it back, so
+ * that a burst of writes results in a single reload. The reload goes through
+ * {@link CMFKeystoreService#reloadCredentialStore()}: a file that does not
+ * load cleanly is reported and the store keeps serving its current snapshot.
+ * Listeners are told which aliases changed.
+ * <p>
+ * Writers rename a new file into place, which shows up as a create event.
+ * Because the watcher pushes changes, watched services can use a long cache
+ * check interval. Some platforms implement WatchService by polling, so
+ * changes may take several seconds to be noticed there.
+ */
+public class CredentialStoreWatcher implements Closeable {
+
+  public static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+
+  private final WatchService watchService;
+  private final long debounceMillis;
+  private final ConcurrentHashMap<Path, CMFKeystoreService> watched = new ConcurrentHashMap<Path, CMFKeystoreService>();
+  private final ConcurrentHashMap<Path, WatchKey> directories = new ConcurrentHashMap<Path, WatchKey>();
+  private final ConcurrentHashMap<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<Path, ScheduledFuture<?>>();
+  private final CopyOnWriteArrayList<CredentialChangeListener> listeners =
+      new CopyOnWriteArrayList<CredentialChangeListener>();
+  private final ScheduledExecutorService reloader;
+  private final Thread watcher;
+
+  public CredentialStoreWatcher() throws IOException {
+    this(DEFAULT_DEBOUNCE_MILLIS);
+  }
+
+  public CredentialStoreWatcher(long debounceMillis) throws IOException {
+    this.debounceMillis = debounceMillis;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "cmf-store-reloader");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.watcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        processEvents();
+      }
+    }, "cmf-store-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  /**
+   * Start reloading the service's store when its file changes.
+   * @throws IllegalArgumentException if the service cannot be reloaded
+   * from its store file, such as a sharded or journaling store
+   */
+  public void watch(CMFKeystoreService service) throws IOException {
+    if (!service.isReloadSupported()) {
+      throw new IllegalArgumentException("Watching is not supported by " + service.getClass().getSimpleName());
+    }
+    Path file = service.getCredentialStoreFile().toPath().toAbsolutePath();
+    Path dir = file.getParent();
+    if (!directories.containsKey(dir)) {
+      WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      directories.putIfAbsent(dir, key);
+    }
+    watched.put(file, service);
+  }
+
+  public void unwatch(CMFKeystoreService service) {
+    Path file = service.getCredentialStoreFile().toPath().toAbsolutePath();
+    watched.remove(file, service);
+    ScheduledFuture<?> scheduled = pending.remove(file);
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+  }
+
+  public void addListener(CredentialChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(CredentialChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Stop watching. Reloads already scheduled are abandoned.
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    reloader.shutdownNow();
+    try {
+      watcher.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void processEvents() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (ClosedWatchServiceException e) {
+        return;
+      } catch (InterruptedException e) {
+        return;
+      }
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          // events were lost, check every store in the directory
+          for (Path file : watched.keySet()) {
+            if (file.getParent().equals(dir)) {
+              schedule(file);
+            }
+          }
+        }
+        else {
+          Path file = dir.resolve((Path) event.context());
+          if (watched.containsKey(file)) {
+            schedule(file);
+          }
+        }
+      }
+      if (!key.reset()) {
+        directories.remove(dir, key);
+      }
+    }
+  }
+
+  private void schedule(final Path file) {
+    ScheduledFuture<?> previous;
+    try {
+      previous = pending.put(file, reloader.schedule(new Runnable() {
+        @Override
+        public void run() {
+          reload(file);
+        }
+      }, debounceMillis, TimeUnit.MILLISECONDS));
+    } catch (RejectedExecutionException e) {
+      // closed while the event was being handled
+      return;
+    }
+    if (previous != null) {
+      previous.cancel(false);
+    }
+  }
+
+  private void reload(Path file) {
+    pending.remove(file);
+    CMFKeystoreService service = watched.get(file);
+    if (service == null) {
+      return;
+    }
+    Set<String> changed;
+    try {
+      changed = service.reloadCredentialStore();
+    } catch (KeystoreServiceException e) {
+      // keep serving the current snapshot, the next event retries
+      e.printStackTrace();
+      return;
+    } catch (RuntimeException e) {
+      // must not kill the reloader thread, which serves every store
+      e.printStackTrace();
+      return;
+    }
+    if (changed.isEmpty()) {
+      return;
+    }
+    for (CredentialChangeListener listener : listeners) {
+      try {
+        listener.credentialsChanged(service.getServiceName(), changed);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
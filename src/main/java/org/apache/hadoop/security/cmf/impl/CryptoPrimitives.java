@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * The one place the framework obtains its JCA primitives.
+ * <p>
+ * <code>getInstance(algorithm)</code> walks the installed providers under
+ * a lock on every call. Here the provider of each type and algorithm is
+ * resolved once and later instances are requested from it directly.
+ * Stateless or re-initialised primitives (ciphers, key factories, digests)
+ * are also handed out thread-confined: the instance returned to a thread is
+ * reused for that thread's later requests, so callers must initialise it
+ * before every use and must not hold on to it across calls that may ask for
+ * the same primitive.
+ * <p>
+ * A provider can be pinned for an algorithm, for example a native provider
+ * backed by AES-NI, with {@link #pin(String, String, Provider)}. Pinning
+ * takes effect for all later requests, on every thread.
+ */
+public final class CryptoPrimitives {
+
+  public static final String CIPHER = "Cipher";
+  public static final String KEY_STORE = "KeyStore";
+  public static final String SECRET_KEY_FACTORY = "SecretKeyFactory";
+  public static final String KEY_PAIR_GENERATOR = "KeyPairGenerator";
+  public static final String MESSAGE_DIGEST = "MessageDigest";
+
+  private static final Map<String, Provider> pinned = new ConcurrentHashMap<String, Provider>();
+  private static final Map<String, Provider> resolved = new ConcurrentHashMap<String, Provider>();
+  // bumped on every pin so that threads drop instances of the old provider
+  private static volatile int generation = 0;
+
+  private static final ThreadLocal<Confined> CONFINED = new ThreadLocal<Confined>() {
+    @Override
+    protected Confined initialValue() {
+      return new Confined();
+    }
+  };
+
+  private static final class Confined {
+    final Map<String, Cipher> ciphers = new HashMap<String, Cipher>();
+    final Map<String, SecretKeyFactory> factories = new HashMap<String, SecretKeyFactory>();
+    final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+    int generation = -1;
+
+    Confined current() {
+      if (generation != CryptoPrimitives.generation) {
+        ciphers.clear();
+        factories.clear();
+        digests.clear();
+        generation = CryptoPrimitives.generation;
+      }
+      return this;
+    }
+  }
+
+  private CryptoPrimitives() {
+  }
+
+  /**
+   * Use the given provider for every later request of the algorithm.
+   * @param type one of the type constants, e.g. {@link #CIPHER}
+   * @param algorithm the algorithm, or transformation for ciphers, exactly
+   * as the framework requests it
+   */
+  public static synchronized void pin(String type, String algorithm, Provider provider) {
+    pinned.put(key(type, algorithm), provider);
+    generation++;
+  }
+
+  /**
+   * Go back to the provider the JCA selects for the algorithm.
+   */
+  public static synchronized void unpin(String type, String algorithm) {
+    pinned.remove(key(type, algorithm));
+    resolved.remove(key(type, algorithm));
+    generation++;
+  }
+
+  /**
+   * @return the provider pinned or resolved for the algorithm, or null if it
+   * has not been requested yet
+   */
+  public static Provider getProvider(String type, String algorithm) {
+    String key = key(type, algorithm);
+    Provider provider = pinned.get(key);
+    return provider != null ? provider : resolved.get(key);
+  }
+
+  /**
+   * @return a new cipher for the transformation
+   */
+  public static Cipher newCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Provider provider = getProvider(CIPHER, transformation);
+    if (provider != null) {
+      return Cipher.getInstance(transformation, provider);
+    }
+    Cipher cipher = Cipher.getInstance(transformation);
+    resolved.put(key(CIPHER, transformation), cipher.getProvider());
+    return cipher;
+  }
+
+  /**
+   * @return this thread's cipher for the transformation, to be initialised
+   * before use
+   */
+  public static Cipher getCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    Confined confined = CONFINED.get().current();
+    Cipher cipher = confined.ciphers.get(transformation);
+    if (cipher == null) {
+      cipher = newCipher(transformation);
+      confined.ciphers.put(transformation, cipher);
+    }
+    return cipher;
+  }
+
+  /**
+   * @return this thread's key factory for the algorithm
+   */
+  public static SecretKeyFactory getSecretKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+    Confined confined = CONFINED.get().current();
+    SecretKeyFactory factory = confined.factories.get(algorithm);
+    if (factory == null) {
+      Provider provider = getProvider(SECRET_KEY_FACTORY, algorithm);
+      if (provider != null) {
+        factory = SecretKeyFactory.getInstance(algorithm, provider);
+      }
+      else {
+        factory = SecretKeyFactory.getInstance(algorithm);
+        resolved.put(key(SECRET_KEY_FACTORY, algorithm), factory.getProvider());
+      }
+      confined.factories.put(algorithm, factory);
+    }
+    return factory;
+  }
+
+  /**
+   * @return this thread's digest for the algorithm, reset by every
+   * <code>digest</code> call
+   */
+  public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+    Confined confined = CONFINED.get().current();
+    MessageDigest digest = confined.digests.get(algorithm);
+    if (digest == null) {
+      Provider provider = getProvider(MESSAGE_DIGEST, algorithm);
+      if (provider != null) {
+        digest = MessageDigest.getInstance(algorithm, provider);
+      }
+      else {
+        digest = MessageDigest.getInstance(algorithm);
+        resolved.put(key(MESSAGE_DIGEST, algorithm), digest.getProvider());
+      }
+      confined.digests.put(algorithm, digest);
+    }
+    else {
+      digest.reset();
+    }
+    return digest;
+  }
+
+  /**
+   * @return a new, unloaded key store of the type
+   */
+  public static KeyStore newKeyStore(String type) throws KeyStoreException {
+    Provider provider = getProvider(KEY_STORE, type);
+    if (provider != null) {
+      return KeyStore.getInstance(type, provider);
+    }
+    KeyStore keyStore = KeyStore.getInstance(type);
+    resolved.put(key(KEY_STORE, type), keyStore.getProvider());
+    return keyStore;
+  }
+
+  /**
+   * @return a new, uninitialised key pair generator for the algorithm
+   */
+  public static KeyPairGenerator newKeyPairGenerator(String algorithm) throws NoSuchAlgorithmException {
+    Provider provider = getProvider(KEY_PAIR_GENERATOR, algorithm);
+    if (provider != null) {
+      return KeyPairGenerator.getInstance(algorithm, provider);
+    }
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+    resolved.put(key(KEY_PAIR_GENERATOR, algorithm), generator.getProvider());
+    return generator;
+  }
+
+  private static String key(String type, String algorithm) {
+    return type + '.' + algorithm;
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The wire format spoken between {@link CredentialDaemon} and
+ * {@link RemoteAliasService}.
+ * <p>
+ * Every message is a frame of a four byte length followed by that many
+ * bytes, all integers big-endian. The first frame a client sends is the
+ * daemon's token; the daemon answers it like any request, with an empty
+ * response, or closes the connection. After that a client may send any
+ * number of requests without waiting for responses. Responses carry the id
+ * of their request and may arrive in any order.
+ * <pre>
+ * request  := id:int op:byte flags:byte count:int (length:short alias:utf8){count}
+ * response := id:int status:byte count:int (length:int credential:utf8){count}
+ *           | id:int status:byte length:short message:utf8
+ * </pre>
+ * A credential length of -1 means the alias is not present.
+ */
+final class DaemonProtocol {
+
+  static final byte OP_LOOKUP = 1;
+  static final byte FLAG_GENERATE = 1;
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_ERROR = 1;
+  static final int TOKEN_LENGTH = 32;
+  static final int MAX_FRAME = 1 << 20;
+
+  static final String PORT_PROPERTY = "port";
+  static final String TOKEN_PROPERTY = "token";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private DaemonProtocol() {
+  }
+
+  static ByteBuffer request(int id, boolean generate, List<String> aliases) {
+    byte[][] encoded = new byte[aliases.size()][];
+    int length = 4 + 1 + 1 + 4;
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = aliases.get(i).getBytes(UTF8);
+      length += 2 + encoded[i].length;
+    }
+    ByteBuffer frame = ByteBuffer.allocate(4 + length);
+    frame.putInt(length).putInt(id).put(OP_LOOKUP).put(generate ? FLAG_GENERATE : 0).putInt(encoded.length);
+    for (byte[] alias : encoded) {
+      frame.putShort((short) alias.length).put(alias);
+    }
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * @throws IOException if the count or a length does not fit the frame
+   */
+  static String[] aliases(ByteBuffer body) throws IOException {
+    if (body.remaining() < 4) {
+      throw new IOException("Malformed request.");
+    }
+    int count = body.getInt();
+    // every alias takes at least its two byte length
+    if (count < 0 || count > body.remaining() / 2) {
+      throw new IOException("Malformed request: " + count + " aliases.");
+    }
+    String[] aliases = new String[count];
+    for (int i = 0; i < aliases.length; i++) {
+      if (body.remaining() < 2) {
+        throw new IOException("Malformed request.");
+      }
+      int length = body.getShort() & 0xffff;
+      if (length > body.remaining()) {
+        throw new IOException("Malformed request.");
+      }
+      aliases[i] = string(body, length);
+    }
+    return aliases;
+  }
+
+  /**
+   * @param credentials the credentials in request order, null where absent;
+   * they are wiped once encoded
+   */
+  static ByteBuffer response(int id, char[][] credentials) {
+    byte[][] encoded = new byte[credentials.length][];
+    int length = 4 + 1 + 4;
+    for (int i = 0; i < credentials.length; i++) {
+      if (credentials[i] != null) {
+        encoded[i] = CredentialCodec.encode(credentials[i]);
+        Arrays.fill(credentials[i], ' ');
+        length += encoded[i].length;
+      }
+      length += 4;
+    }
+    ByteBuffer frame = ByteBuffer.allocate(4 + length);
+    frame.putInt(length).putInt(id).put(STATUS_OK).putInt(encoded.length);
+    for (byte[] credential : encoded) {
+      if (credential == null) {
+        frame.putInt(-1);
+      }
+      else {
+        frame.putInt(credential.length).put(credential);
+        Arrays.fill(credential, (byte) 0);
+      }
+    }
+    frame.flip();
+    return frame;
+  }
+
+  static ByteBuffer error(int id, String message) {
+    byte[] encoded = message.getBytes(UTF8);
+    int length = Math.min(encoded.length, Short.MAX_VALUE);
+    ByteBuffer frame = ByteBuffer.allocate(4 + 4 + 1 + 2 + length);
+    frame.putInt(4 + 1 + 2 + length).putInt(id).put(STATUS_ERROR).putShort((short) length).put(encoded, 0, length);
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Decode the credentials of an OK response, wiping them from the frame.
+   */
+  static char[][] credentials(ByteBuffer body) {
+    char[][] credentials = new char[body.getInt()][];
+    for (int i = 0; i < credentials.length; i++) {
+      int length = body.getInt();
+      if (length >= 0) {
+        ByteBuffer credential = body.slice();
+        credential.limit(length);
+        credentials[i] = CredentialCodec.decode(credential);
+        for (int j = 0; j < length; j++) {
+          body.put((byte) 0);
+        }
+      }
+    }
+    return credentials;
+  }
+
+  static String string(ByteBuffer body, int length) {
+    byte[] bytes = new byte[length];
+    body.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * The file a daemon publishes its port and token in, readable only by the
+   * user running it.
+   */
+  static File endpointFile(String keystoreDir, String serviceName) {
+    return new File(keystoreDir, serviceName + "-daemon.properties");
+  }
+
+  static Properties readEndpoint(File file) throws IOException {
+    Properties endpoint = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      endpoint.load(in);
+    } finally {
+      in.close();
+    }
+    return endpoint;
+  }
+
+  static byte[] token(Properties endpoint) throws IOException {
+    try {
+      byte[] token = Hex.decodeHex(endpoint.getProperty(TOKEN_PROPERTY, "").toCharArray());
+      if (token.length != TOKEN_LENGTH) {
+        throw new IOException("The daemon endpoint has no valid token.");
+      }
+      return token;
+    } catch (DecoderException e) {
+      throw new IOException("The daemon endpoint has no valid token.", e);
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded, least recently used cache of key material derived from a
+ * passphrase, keyed by a keyed digest of the passphrase, the salt and the
+ * iteration count. Evicted and cleared entries are wiped.
+ */
+class DerivedKeyCache {
+
+  private final int capacity;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final LinkedHashMap<Id, byte[]> keys;
+
+  DerivedKeyCache(int capacity) {
+    this.capacity = capacity;
+    this.keys = new LinkedHashMap<Id, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Id, byte[]> eldest) {
+        if (size() > DerivedKeyCache.this.capacity) {
+          Arrays.fill(eldest.getValue(), (byte) 0);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return a copy of the cached key material or null on a miss
+   */
+  byte[] get(Id id) {
+    byte[] key;
+    synchronized (keys) {
+      key = keys.get(id);
+      if (key != null) {
+        key = key.clone();
+      }
+    }
+    if (key == null) {
+      misses.incrementAndGet();
+    }
+    else {
+      hits.incrementAndGet();
+    }
+    return key;
+  }
+
+  void put(Id id, byte[] key) {
+    if (capacity <= 0) {
+      return;
+    }
+    synchronized (keys) {
+      byte[] previous = keys.put(id, key.clone());
+      if (previous != null) {
+        Arrays.fill(previous, (byte) 0);
+      }
+    }
+  }
+
+  void clear() {
+    synchronized (keys) {
+      Iterator<byte[]> it = keys.values().iterator();
+      while (it.hasNext()) {
+        Arrays.fill(it.next(), (byte) 0);
+        it.remove();
+      }
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Identifies a derivation without holding on to the passphrase itself.
+   * The passphrase is fingerprinted with an HMAC under a key that never
+   * leaves this process, so a fingerprint cannot be used to test guesses.
+   */
+  static class Id {
+    private static final SecretKeySpec FINGERPRINT_KEY;
+    static {
+      byte[] key = new byte[32];
+      new SecureRandom().nextBytes(key);
+      FINGERPRINT_KEY = new SecretKeySpec(key, "HmacSHA256");
+      Arrays.fill(key, (byte) 0);
+    }
+
+    private final byte[] passphrase;
+    private final byte[] salt;
+    private final int iterations;
+    private final int hash;
+
+    Id(char[] passphrase, byte[] salt, int iterations) {
+      this.passphrase = fingerprint(passphrase);
+      this.salt = salt == null ? new byte[0] : salt.clone();
+      this.iterations = iterations;
+      this.hash = 31 * (31 * Arrays.hashCode(this.passphrase) + Arrays.hashCode(this.salt)) + iterations;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Id)) {
+        return false;
+      }
+      Id other = (Id) o;
+      return iterations == other.iterations
+          && MessageDigest.isEqual(passphrase, other.passphrase)
+          && Arrays.equals(salt, other.salt);
+    }
+
+    private static byte[] fingerprint(char[] passphrase) {
+      ByteBuffer bytes = ByteBuffer.allocate(passphrase.length * 2);
+      bytes.asCharBuffer().put(CharBuffer.wrap(passphrase));
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(FINGERPRINT_KEY);
+        return mac.doFinal(bytes.array());
+      } catch (NoSuchAlgorithmException e) {
+        // every Java platform is required to support HmacSHA256
+        throw new IllegalStateException(e);
+      } catch (InvalidKeyException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        Arrays.fill(bytes.array(), (byte) 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+/**
+ * How hard a write of a credential store file works to survive a crash.
+ * Every mode writes the new contents to a temporary file and renames it
+ * over the store, so a process that dies midway always leaves a complete
+ * store behind. The modes differ in what survives a power failure or
+ * kernel crash, and in what each write costs.
+ */
+public enum DurabilityMode {
+
+  /**
+   * The temporary file is forced to disk before the rename and the
+   * directory is forced after it. A write that returned is on disk. Costs
+   * two synchronous flushes per write, typically a few milliseconds on
+   * local disks and more on network storage.
+   */
+  STRICT,
+
+  /**
+   * The contents are forced before the rename, but forcing the directory
+   * is left to a background sync that runs once per interval for all the
+   * stores written meanwhile. The store on disk is always complete, but a
+   * power failure may roll it back to the version before the writes of the
+   * last interval. Saves one flush per write.
+   */
+  BATCHED,
+
+  /**
+   * Nothing is forced and the operating system writes the files back when
+   * it chooses. Survives a crash of the process, but after a power failure
+   * the store may be lost or empty. Meant for tests and ephemeral nodes
+   * whose stores are provisioned again on start.
+   */
+  RELAXED
+}
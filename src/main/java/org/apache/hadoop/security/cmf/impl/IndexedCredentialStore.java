@@ -0,0 +1,431 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A read-only, memory-mapped view of an indexed credential store file.
+ * <p>
+ * Layout, all integers big endian:
+ * <pre>
+ *   header   magic, version, salt[16], entry count, data offset
+ *   index    entry count slots of (alias hash, entry offset), sorted by hash
+ *   entries  alias length, alias (UTF-8), payload length, iv[12], AES/GCM payload
+ * </pre>
+ * The payload key is derived once from the master secret and the header salt,
+ * and each entry is authenticated against its alias. A lookup binary searches
+ * the index and touches only the one entry it finds. Aliases are stored
+ * lowercased and matched regardless of case, as JCEKS does. Offsets read from
+ * the file are checked against the mapping, so a corrupt file fails with an
+ * IOException rather than reading out of bounds.
+ */
+class IndexedCredentialStore {
+
+  private static final int MAGIC = 0x434d4658; // "CMFX"
+  private static final int VERSION = 1;
+  private static final int SALT_LENGTH = 16;
+  private static final int HEADER_LENGTH = 4 + 4 + SALT_LENGTH + 4 + 8;
+  private static final int SLOT_LENGTH = 16;
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_LENGTH = 128;
+  private static final int ITERATION_COUNT = 65536;
+  private static final int KEY_LENGTH = 128;
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final MappedByteBuffer buffer;
+  private final byte[] salt;
+  private final SecretKeySpec key;
+  private final int entryCount;
+  private final long dataOffset;
+
+  private IndexedCredentialStore(MappedByteBuffer buffer, byte[] salt, SecretKeySpec key, int entryCount,
+      long dataOffset) {
+    this.buffer = buffer;
+    this.salt = salt;
+    this.key = key;
+    this.entryCount = entryCount;
+    this.dataOffset = dataOffset;
+  }
+
+  /**
+   * Map the given store file. The payload key is derived from the master
+   * secret unless a store sharing the same salt is passed in to reuse.
+   */
+  static IndexedCredentialStore open(File file, char[] master, IndexedCredentialStore previous)
+      throws IOException, GeneralSecurityException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    MappedByteBuffer buffer;
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // the mapping stays valid after the channel is closed
+      channel.close();
+    }
+    if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not an indexed credential store: " + file);
+    }
+    byte[] salt = new byte[SALT_LENGTH];
+    ByteBuffer header = buffer.duplicate();
+    header.position(8);
+    header.get(salt);
+    int entryCount = header.getInt();
+    long dataOffset = header.getLong();
+    if (entryCount < 0 || dataOffset != HEADER_LENGTH + (long) entryCount * SLOT_LENGTH
+        || dataOffset > buffer.capacity()) {
+      throw new IOException("Corrupt indexed credential store header: " + file);
+    }
+    SecretKeySpec key = previous != null && Arrays.equals(previous.salt, salt)
+        ? previous.key : deriveKey(master, salt);
+    return new IndexedCredentialStore(buffer, salt, key, entryCount, dataOffset);
+  }
+
+  int size() {
+    return entryCount;
+  }
+
+  /**
+   * Look up and decrypt a single credential.
+   * @return the credential bytes or null when the alias is not present
+   */
+  byte[] get(String alias) throws IOException, GeneralSecurityException {
+    int offset = find(alias);
+    if (offset < 0) {
+      return null;
+    }
+    return decrypt(offset);
+  }
+
+  boolean contains(String alias) throws IOException {
+    return find(alias) >= 0;
+  }
+
+  /**
+   * The aliases held by this store, in index order.
+   */
+  List<String> aliases() throws IOException {
+    List<String> aliases = new ArrayList<String>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      aliases.add(readAlias(entryOffset(i)));
+    }
+    return aliases;
+  }
+
+  /**
+   * Compare two versions of a store by their encrypted entries, which a
+   * rewrite carries over unchanged, so nothing is decrypted.
+   * @param previous the earlier version, or null
+   * @return the aliases added, removed or rewritten since the previous version
+   */
+  Set<String> changedAliases(IndexedCredentialStore previous) throws IOException {
+    Map<String, byte[]> before = previous == null ? Collections.<String, byte[]>emptyMap() : previous.rawEntries();
+    Map<String, byte[]> after = rawEntries();
+    Set<String> changed = new HashSet<String>();
+    for (Map.Entry<String, byte[]> entry : after.entrySet()) {
+      if (!Arrays.equals(entry.getValue(), before.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String alias : before.keySet()) {
+      if (!after.containsKey(alias)) {
+        changed.add(alias);
+      }
+    }
+    return changed;
+  }
+
+  private Map<String, byte[]> rawEntries() throws IOException {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    for (int i = 0; i < entryCount; i++) {
+      int offset = entryOffset(i);
+      entries.put(readAlias(offset).toLowerCase(Locale.ENGLISH), rawEntry(offset));
+    }
+    return entries;
+  }
+
+  /**
+   * @return the offset of the entry in the given index slot, checked to
+   * lie in the entries section
+   */
+  private int entryOffset(int slot) throws IOException {
+    long offset = buffer.getLong(HEADER_LENGTH + slot * SLOT_LENGTH + 8);
+    if (offset < dataOffset || offset + 2 > buffer.capacity()) {
+      throw new IOException("Corrupt indexed credential store, entry offset out of range: " + offset);
+    }
+    return (int) offset;
+  }
+
+  private void checkEntryEnd(long end) throws IOException {
+    if (end > buffer.capacity()) {
+      throw new IOException("Corrupt indexed credential store, entry runs past the end of the file.");
+    }
+  }
+
+  private int find(String alias) throws IOException {
+    alias = alias.toLowerCase(Locale.ENGLISH);
+    long hash = hash(alias);
+    int low = 0;
+    int high = entryCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midHash = buffer.getLong(HEADER_LENGTH + mid * SLOT_LENGTH);
+      if (midHash < hash) {
+        low = mid + 1;
+      }
+      else if (midHash > hash) {
+        high = mid - 1;
+      }
+      else {
+        // walk back to the first slot with this hash and check each candidate
+        while (mid > 0 && buffer.getLong(HEADER_LENGTH + (mid - 1) * SLOT_LENGTH) == hash) {
+          mid--;
+        }
+        for (; mid < entryCount && buffer.getLong(HEADER_LENGTH + mid * SLOT_LENGTH) == hash; mid++) {
+          int offset = entryOffset(mid);
+          if (aliasMatches(offset, alias)) {
+            return offset;
+          }
+        }
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private boolean aliasMatches(int offset, String alias) throws IOException {
+    return readAlias(offset).toLowerCase(Locale.ENGLISH).equals(alias);
+  }
+
+  private String readAlias(int offset) throws IOException {
+    int length = buffer.getShort(offset) & 0xffff;
+    checkEntryEnd((long) offset + 2 + length);
+    byte[] bytes = new byte[length];
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(offset + 2);
+    entry.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private byte[] decrypt(int offset) throws IOException, GeneralSecurityException {
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(offset);
+    int aliasLength = entry.getShort() & 0xffff;
+    checkEntryEnd((long) offset + 2 + aliasLength + 4);
+    byte[] alias = new byte[aliasLength];
+    entry.get(alias);
+    int payloadLength = entry.getInt();
+    if (payloadLength < TAG_LENGTH / 8) {
+      throw new IOException("Corrupt indexed credential store, invalid payload length: " + payloadLength);
+    }
+    checkEntryEnd((long) entry.position() + IV_LENGTH + payloadLength);
+    byte[] iv = new byte[IV_LENGTH];
+    entry.get(iv);
+    entry.limit(entry.position() + payloadLength);
+    Cipher cipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+    cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+    cipher.updateAAD(alias);
+    ByteBuffer plain = ByteBuffer.allocate(cipher.getOutputSize(payloadLength));
+    cipher.doFinal(entry, plain);
+    return plain.position() == plain.capacity() ? plain.array() : Arrays.copyOf(plain.array(), plain.position());
+  }
+
+  /**
+   * Copy the still encrypted entry for an alias so that it can be carried
+   * over into a rewritten store without decrypting it.
+   */
+  private byte[] rawEntry(int offset) throws IOException {
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(offset);
+    int aliasLength = entry.getShort() & 0xffff;
+    checkEntryEnd((long) offset + 2 + aliasLength + 4);
+    entry.position(offset + 2 + aliasLength);
+    int payloadLength = entry.getInt();
+    if (payloadLength < 0) {
+      throw new IOException("Corrupt indexed credential store, invalid payload length: " + payloadLength);
+    }
+    checkEntryEnd((long) entry.position() + IV_LENGTH + payloadLength);
+    byte[] raw = new byte[2 + aliasLength + 4 + IV_LENGTH + payloadLength];
+    entry.position(offset);
+    entry.get(raw);
+    return raw;
+  }
+
+  /**
+   * Write a new store file holding the entries of this store, if any, plus
+   * the given credentials. The file is written to a temporary file of its
+   * own in the same directory and renamed into place; callers serialize
+   * writers of the same file.
+   */
+  static void write(File file, char[] master, IndexedCredentialStore base, Map<String, byte[]> credentials)
+      throws IOException, GeneralSecurityException {
+    byte[] salt;
+    SecretKeySpec key;
+    if (base != null) {
+      salt = base.salt;
+      key = base.key;
+    }
+    else {
+      salt = new byte[SALT_LENGTH];
+      new SecureRandom().nextBytes(salt);
+      key = deriveKey(master, salt);
+    }
+
+    Map<String, byte[]> added = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, byte[]> credential : credentials.entrySet()) {
+      added.put(credential.getKey().toLowerCase(Locale.ENGLISH), credential.getValue());
+    }
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    if (base != null) {
+      for (int i = 0; i < base.entryCount; i++) {
+        int offset = base.entryOffset(i);
+        String alias = base.readAlias(offset);
+        if (!added.containsKey(alias.toLowerCase(Locale.ENGLISH))) {
+          entries.put(alias, base.rawEntry(offset));
+        }
+      }
+    }
+    SecureRandom random = new SecureRandom();
+    Cipher cipher = CryptoPrimitives.getCipher(TRANSFORMATION);
+    for (Map.Entry<String, byte[]> credential : added.entrySet()) {
+      entries.put(credential.getKey(), encrypt(cipher, random, key, credential.getKey(), credential.getValue()));
+    }
+
+    List<Map.Entry<String, byte[]>> sorted = new ArrayList<Map.Entry<String, byte[]>>(entries.entrySet());
+    Collections.sort(sorted, new Comparator<Map.Entry<String, byte[]>>() {
+      @Override
+      public int compare(Map.Entry<String, byte[]> a, Map.Entry<String, byte[]> b) {
+        long ha = hash(a.getKey());
+        long hb = hash(b.getKey());
+        return ha < hb ? -1 : (ha == hb ? 0 : 1);
+      }
+    });
+
+    long dataOffset = HEADER_LENGTH + (long) sorted.size() * SLOT_LENGTH;
+    File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+    FileOutputStream fos;
+    try {
+      fos = new FileOutputStream(temp);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(salt);
+      out.writeInt(sorted.size());
+      out.writeLong(dataOffset);
+      long offset = dataOffset;
+      for (Map.Entry<String, byte[]> entry : sorted) {
+        out.writeLong(hash(entry.getKey()));
+        out.writeLong(offset);
+        offset += entry.getValue().length;
+      }
+      if (offset > Integer.MAX_VALUE) {
+        throw new IOException("Indexed credential store exceeds the 2GB mapping limit.");
+      }
+      for (Map.Entry<String, byte[]> entry : sorted) {
+        out.write(entry.getValue());
+      }
+      out.flush();
+      fos.getFD().sync();
+    } catch (IOException e) {
+      out.close();
+      temp.delete();
+      throw e;
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+  }
+
+  private static byte[] encrypt(Cipher cipher, SecureRandom random, SecretKeySpec key, String alias, byte[] value)
+      throws GeneralSecurityException, IOException {
+    byte[] aliasBytes = alias.getBytes(UTF8);
+    if (aliasBytes.length > 0xffff) {
+      throw new IOException("Alias too long for the indexed credential store: " + alias);
+    }
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+    cipher.updateAAD(aliasBytes);
+    byte[] payload = cipher.doFinal(value);
+    ByteBuffer entry = ByteBuffer.allocate(2 + aliasBytes.length + 4 + IV_LENGTH + payload.length);
+    entry.putShort((short) aliasBytes.length).put(aliasBytes).putInt(payload.length).put(iv).put(payload);
+    return entry.array();
+  }
+
+  /**
+   * 64-bit FNV-1a over the lowercased characters of the alias.
+   */
+  static long hash(String alias) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < alias.length(); i++) {
+      hash ^= Character.toLowerCase(alias.charAt(i));
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static SecretKeySpec deriveKey(char[] master, byte[] salt) throws GeneralSecurityException {
+    SecretKeyFactory factory = CryptoPrimitives.getSecretKeyFactory("PBKDF2WithHmacSHA1");
+    PBEKeySpec spec = new PBEKeySpec(master, salt, ITERATION_COUNT, KEY_LENGTH);
+    try {
+      return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
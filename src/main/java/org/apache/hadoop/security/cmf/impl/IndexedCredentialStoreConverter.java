@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * Converts credential stores between the JCEKS format used by
+ * {@link CMFKeystoreService} and the indexed format used by
+ * {@link IndexedKeystoreService}.
+ * <p>
+ * Usage: <code>IndexedCredentialStoreConverter (to-indexed|to-jceks) securityDir keystoreDir serviceName</code>
+ */
+public class IndexedCredentialStoreConverter {
+
+  private static final String JCEKS_SUFFIX = "-credentials.jceks";
+
+  /**
+   * Write every secret key entry of a JCEKS credential store to an indexed store.
+   */
+  public static void toIndexed(File jceks, File indexed, char[] master) throws IOException, GeneralSecurityException {
+    KeyStore ks = CryptoPrimitives.newKeyStore("JCEKS");
+    FileInputStream in = new FileInputStream(jceks);
+    try {
+      ks.load(in, master);
+    } finally {
+      in.close();
+    }
+    Map<String, byte[]> credentials = new LinkedHashMap<String, byte[]>();
+    try {
+      Enumeration<String> aliases = ks.aliases();
+      while (aliases.hasMoreElements()) {
+        String alias = aliases.nextElement();
+        Key key = ks.getKey(alias, master);
+        if (key instanceof SecretKey) {
+          credentials.put(alias, key.getEncoded());
+        }
+      }
+      IndexedCredentialStore.write(indexed, master, null, credentials);
+    } finally {
+      for (byte[] value : credentials.values()) {
+        Arrays.fill(value, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Write every entry of an indexed store to a JCEKS credential store.
+   */
+  public static void toJceks(File indexed, File jceks, char[] master) throws IOException, GeneralSecurityException {
+    KeyStore ks = toKeyStore(IndexedCredentialStore.open(indexed, master, null), master);
+    // KeyStore.store closes the stream it is given, so serialize it first
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    ks.store(contents, master);
+    File temp = new File(jceks.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      contents.writeTo(out);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), jceks.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static KeyStore toKeyStore(IndexedCredentialStore store, char[] master) throws IOException, GeneralSecurityException {
+    KeyStore ks = CryptoPrimitives.newKeyStore("JCEKS");
+    ks.load(null, master);
+    for (String alias : store.aliases()) {
+      byte[] value = store.get(alias);
+      ks.setKeyEntry(alias, new SecretKeySpec(value, "AES"), master, null);
+      Arrays.fill(value, (byte) 0);
+    }
+    return ks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 4 || !("to-indexed".equals(args[0]) || "to-jceks".equals(args[0]))) {
+      System.err.println("Usage: IndexedCredentialStoreConverter (to-indexed|to-jceks) securityDir keystoreDir serviceName");
+      System.exit(1);
+    }
+    String serviceName = args[3];
+    MasterService ms = new CMFMasterService(serviceName);
+    ms.setupMasterSecret(args[1], false);
+    File jceks = new File(args[2], serviceName + JCEKS_SUFFIX);
+    File indexed = new File(args[2], serviceName + IndexedKeystoreService.INDEXED_SUFFIX);
+    if ("to-indexed".equals(args[0])) {
+      toIndexed(jceks, indexed, ms.getMasterSecret());
+    }
+    else {
+      toJceks(indexed, jceks, ms.getMasterSecret());
+    }
+  }
+}
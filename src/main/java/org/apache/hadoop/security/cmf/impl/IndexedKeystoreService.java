@@ -0,0 +1,295 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * A credential store kept in the memory-mapped indexed format of
+ * {@link IndexedCredentialStore} instead of a JCEKS keystore.
+ * <p>
+ * Opening the store maps the file and derives the payload key once; it does
+ * not parse or decrypt the entries. A lookup touches the index and the one
+ * entry it needs, so startup cost and memory do not grow with the number of
+ * aliases. Writes rewrite the file aside and rename it into place, carrying
+ * existing entries over without decrypting them. Writers in this JVM share
+ * the store lock and writers in other processes the
+ * <code>-credentials.lock</code> file lock, and each writer remaps the file
+ * under them so that no update is lost.
+ * Use {@link IndexedCredentialStoreConverter} to move existing
+ * <code>-credentials.jceks</code> stores to and from this format.
+ */
+public class IndexedKeystoreService extends CMFKeystoreService {
+
+  static final String INDEXED_SUFFIX = "-credentials.idx";
+
+  // guards the mapped view; writers of the file take the shared store lock
+  private final Object storeLock = new Object();
+  private volatile IndexedCredentialStore store = null;
+  private volatile Object storeFileKey = null;
+  private volatile long storeModified = 0;
+  private volatile long nextCheck = 0;
+
+  public IndexedKeystoreService(String keystoreDir, String serviceName, MasterService ms)
+      throws KeystoreServiceException {
+    super(keystoreDir, serviceName, ms);
+  }
+
+  @Override
+  protected File getCredentialStoreFile() {
+    return new File( keyStoreDir + getServiceName() + INDEXED_SUFFIX );
+  }
+
+  @Override
+  public void createCredentialStore() throws KeystoreServiceException {
+    synchronized (getStoreLock()) {
+      boolean locked = false;
+      try {
+        lockStoreFile();
+        locked = true;
+        IndexedCredentialStore.write(getCredentialStoreFile(), masterService.getMasterSecret(), null,
+            Collections.<String, byte[]>emptyMap());
+        invalidateCredentialCache();
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to create the credential store.", e);
+      } catch (GeneralSecurityException e) {
+        throw new KeystoreServiceException("Unable to create the credential store.", e);
+      } finally {
+        if (locked) {
+          unlockStoreFile();
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean isCredentialStoreAvailable() throws KeystoreServiceException {
+    if (!getCredentialStoreFile().exists()) {
+      return false;
+    }
+    return getStore() != null;
+  }
+
+  /**
+   * Build an in-memory JCEKS view of the store. This decrypts every entry and
+   * is only meant for tools that need the KeyStore API.
+   */
+  @Override
+  public KeyStore getCredentialStore() {
+    try {
+      IndexedCredentialStore current = getStore();
+      if (current != null) {
+        return IndexedCredentialStoreConverter.toKeyStore(current, masterService.getMasterSecret());
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @Override
+  protected void writeCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, char[]> credential : credentials.entrySet()) {
+      values.put(credential.getKey(), CredentialCodec.encode(credential.getValue()));
+    }
+    long start = CMFMetrics.start();
+    synchronized (getStoreLock()) {
+      boolean locked = false;
+      try {
+        lockStoreFile();
+        locked = true;
+        // another process may have replaced the file since it was mapped
+        IndexedCredentialStore current;
+        synchronized (storeLock) {
+          current = openStore(store);
+        }
+        IndexedCredentialStore.write(getCredentialStoreFile(), masterService.getMasterSecret(), current, values);
+        synchronized (storeLock) {
+          openStore(current);
+        }
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to add credential.", e);
+      } catch (GeneralSecurityException e) {
+        throw new KeystoreServiceException("Unable to add credential.", e);
+      } finally {
+        if (locked) {
+          unlockStoreFile();
+        }
+        for (byte[] value : values.values()) {
+          Arrays.fill(value, (byte) 0);
+        }
+        CMFMetrics.stop(CMFMetrics.Operation.ADD, start);
+      }
+    }
+  }
+
+  @Override
+  public char[] getCredential(String alias) {
+    long start = CMFMetrics.start();
+    try {
+      IndexedCredentialStore current = getStore();
+      if (current == null) {
+        return null;
+      }
+      return getCredential(alias, current);
+    } catch (GeneralSecurityException e) {
+      e.printStackTrace();
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    } finally {
+      CMFMetrics.stop(CMFMetrics.Operation.GET, start);
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, char[]> getCredentials(Collection<String> aliases) {
+    Map<String, char[]> credentials = new HashMap<String, char[]>();
+    try {
+      IndexedCredentialStore current = getStore();
+      if (current == null) {
+        return credentials;
+      }
+      for (String alias : aliases) {
+        char[] credential = getCredential(alias, current);
+        if (credential != null) {
+          credentials.put(alias, credential);
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      e.printStackTrace();
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    }
+    return credentials;
+  }
+
+  private char[] getCredential(String alias, IndexedCredentialStore current)
+      throws GeneralSecurityException, KeystoreServiceException {
+    byte[] value;
+    try {
+      value = current.get(alias);
+    } catch (IOException e) {
+      throw new KeystoreServiceException("Unable to read the credential store " + getCredentialStoreFile(), e);
+    }
+    if (value == null) {
+      return null;
+    }
+    char[] credential = CredentialCodec.decode(value);
+    Arrays.fill(value, (byte) 0);
+    return credential;
+  }
+
+  /**
+   * Remap the store file now. Entries are compared in their encrypted
+   * form, so nothing is decrypted.
+   * @return the aliases added, removed or replaced, empty if nothing changed
+   * @throws KeystoreServiceException if the file is missing or does not open
+   */
+  @Override
+  public Set<String> reloadCredentialStore() throws KeystoreServiceException {
+    synchronized (storeLock) {
+      IndexedCredentialStore previous = store;
+      try {
+        if (previous != null && !isStoreFileChanged()) {
+          nextCheck = System.nanoTime() + getCacheCheckIntervalNanos();
+          return Collections.emptySet();
+        }
+        return openStore(previous).changedAliases(previous);
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to reload the credential store.", e);
+      } catch (GeneralSecurityException e) {
+        throw new KeystoreServiceException("Unable to reload the credential store.", e);
+      }
+    }
+  }
+
+  @Override
+  public void invalidateCredentialCache() {
+    synchronized (storeLock) {
+      store = null;
+    }
+  }
+
+  private IndexedCredentialStore getStore() throws KeystoreServiceException {
+    IndexedCredentialStore current = store;
+    long now = System.nanoTime();
+    if (current != null && now - nextCheck < 0) {
+      return current;
+    }
+    synchronized (storeLock) {
+      current = store;
+      if (current != null && !isStoreFileChanged()) {
+        nextCheck = now + getCacheCheckIntervalNanos();
+        return current;
+      }
+      try {
+        return openStore(current);
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to open the credential store.", e);
+      } catch (GeneralSecurityException e) {
+        throw new KeystoreServiceException("Unable to open the credential store.", e);
+      }
+    }
+  }
+
+  private IndexedCredentialStore openStore(IndexedCredentialStore previous)
+      throws IOException, GeneralSecurityException {
+    File file = getCredentialStoreFile();
+    BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    long start = CMFMetrics.start();
+    IndexedCredentialStore opened = IndexedCredentialStore.open(file, masterService.getMasterSecret(), previous);
+    CMFMetrics.stop(CMFMetrics.Operation.LOAD, start);
+    CMFMetrics.storeLoaded(opened.size(), attrs.size());
+    storeFileKey = attrs.fileKey();
+    storeModified = attrs.lastModifiedTime().toMillis();
+    nextCheck = System.nanoTime() + getCacheCheckIntervalNanos();
+    store = opened;
+    return opened;
+  }
+
+  /**
+   * Every write renames a new file into place, so a different file key or
+   * modification time means another writer has replaced the store.
+   */
+  private boolean isStoreFileChanged() {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(getCredentialStoreFile().toPath(), BasicFileAttributes.class);
+      return attrs.lastModifiedTime().toMillis() != storeModified
+          || (storeFileKey != null && !storeFileKey.equals(attrs.fileKey()));
+    } catch (IOException e) {
+      return true;
+    }
+  }
+}
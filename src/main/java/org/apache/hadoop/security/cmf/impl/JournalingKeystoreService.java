@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * A credential store that appends writes to a journal next to the JCEKS
+ * credential store instead of rewriting the whole store.
+ * <p>
+ * Each addCredential call appends encrypted records to
+ * <code>&lt;service&gt;-credentials.journal</code> and forces only those
+ * records to disk. Lookups consult the replayed journal before the base
+ * store. Once the journal passes a size or entry count threshold a
+ * background compaction folds it into a freshly written base store.
+ * A journaled store is expected to be written by a single process.
+ */
+public class JournalingKeystoreService extends CMFKeystoreService {
+
+  private static final String JOURNAL_SUFFIX = "-credentials.journal";
+  private static final String COMPACTING_SUFFIX = "-credentials.journal.compacting";
+  private static final long DEFAULT_MAX_JOURNAL_BYTES = 1024 * 1024;
+  private static final int DEFAULT_MAX_JOURNAL_ENTRIES = 1000;
+
+  private final ConcurrentHashMap<String, char[]> journaled = new ConcurrentHashMap<String, char[]>();
+  private final Object compactionLock = new Object();
+  private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "cmf-journal-compactor");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+  private volatile CredentialJournal journal = null;
+  private volatile long maxJournalBytes = DEFAULT_MAX_JOURNAL_BYTES;
+  private volatile int maxJournalEntries = DEFAULT_MAX_JOURNAL_ENTRIES;
+
+  public JournalingKeystoreService(String keystoreDir, String serviceName, MasterService ms)
+      throws KeystoreServiceException {
+    super(keystoreDir, serviceName, ms);
+  }
+
+  /**
+   * Set the journal size and entry count after which a compaction is started.
+   */
+  public void setCompactionThresholds(long maxBytes, int maxEntries) {
+    this.maxJournalBytes = maxBytes;
+    this.maxJournalEntries = maxEntries;
+  }
+
+  /**
+   * Append the batch to the journal instead of rewriting the store. The
+   * journal records values in the modified UTF-8 of DataOutput, so they
+   * pass through a String on their way to disk. Aliases are lowercased,
+   * as JCEKS does, so that they match the base store regardless of case.
+   */
+  @Override
+  protected void writeCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    Map<String, String> values = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, char[]> credential : credentials.entrySet()) {
+      String alias = normalize(credential.getKey());
+      // moved to the end so that a later write of the alias in any case wins
+      values.remove(alias);
+      values.put(alias, new String(credential.getValue()));
+    }
+    CredentialJournal current;
+    synchronized (this) {
+      current = openJournal();
+      try {
+        current.append(values);
+      } catch (IOException e) {
+        throw new KeystoreServiceException("Unable to add credential.", e);
+      } catch (GeneralSecurityException e) {
+        throw new KeystoreServiceException("Unable to add credential.", e);
+      }
+      for (Map.Entry<String, String> value : values.entrySet()) {
+        journaled.put(value.getKey(), value.getValue().toCharArray());
+      }
+    }
+    maybeCompact(current);
+  }
+
+  @Override
+  public char[] getCredential(String alias) {
+    char[] credential = getJournaledCredential(alias);
+    if (credential != null) {
+      return credential;
+    }
+    return super.getCredential(alias);
+  }
+
+  private char[] getJournaledCredential(String alias) {
+    if (journal == null) {
+      try {
+        synchronized (this) {
+          openJournal();
+        }
+      } catch (KeystoreServiceException e) {
+        e.printStackTrace();
+      }
+    }
+    char[] credential = journaled.get(normalize(alias));
+    return credential == null ? null : credential.clone();
+  }
+
+  @Override
+  public Map<String, char[]> getCredentials(Collection<String> aliases) {
+    List<String> remaining = new ArrayList<String>(aliases.size());
+    Map<String, char[]> credentials = new HashMap<String, char[]>();
+    for (String alias : aliases) {
+      char[] credential = getJournaledCredential(alias);
+      if (credential != null) {
+        credentials.put(alias, credential);
+      }
+      else {
+        remaining.add(alias);
+      }
+    }
+    if (!remaining.isEmpty()) {
+      credentials.putAll(super.getCredentials(remaining));
+    }
+    return credentials;
+  }
+
+  /**
+   * Journaled credentials shadow the base store, so reloading the base store
+   * alone would neither take effect nor report the right aliases.
+   */
+  @Override
+  protected boolean isReloadSupported() {
+    return false;
+  }
+
+  /**
+   * Fold everything journaled so far into the base credential store.
+   * <p>
+   * The current journal is renamed aside and a new one started so that
+   * writers are not held up while the base store is rewritten. A journal
+   * left aside by an earlier compaction that failed is folded first, so
+   * that the rename cannot replace it.
+   */
+  public void compact() throws KeystoreServiceException {
+    synchronized (compactionLock) {
+      Map<String, char[]> folded;
+      synchronized (this) {
+        CredentialJournal current = openJournal();
+        if (current.getEntryCount() == 0) {
+          return;
+        }
+        File compacting = getJournalFile(COMPACTING_SUFFIX);
+        if (compacting.exists()) {
+          try {
+            foldCompactingJournal(compacting);
+          } catch (IOException e) {
+            throw new KeystoreServiceException("Unable to compact credential journal.", e);
+          } catch (GeneralSecurityException e) {
+            throw new KeystoreServiceException("Unable to compact credential journal.", e);
+          }
+        }
+        try {
+          current.close();
+          if (!current.getFile().renameTo(compacting)) {
+            throw new IOException("Unable to rename journal for compaction: " + current.getFile());
+          }
+          journal = current.startNext(getJournalFile(JOURNAL_SUFFIX));
+        } catch (IOException e) {
+          journal = null;
+          throw new KeystoreServiceException("Unable to compact credential journal.", e);
+        }
+        folded = new HashMap<String, char[]>(journaled);
+      }
+      foldIntoStore(folded);
+      getJournalFile(COMPACTING_SUFFIX).delete();
+      // anything written since the rotation is still in the journal
+      for (Map.Entry<String, char[]> credential : folded.entrySet()) {
+        journaled.remove(credential.getKey(), credential.getValue());
+      }
+    }
+  }
+
+  /**
+   * Stop the background compactor and close the journal.
+   */
+  public void close() throws IOException {
+    compactor.shutdown();
+    synchronized (this) {
+      if (journal != null) {
+        journal.close();
+        journal = null;
+      }
+    }
+  }
+
+  private void maybeCompact(CredentialJournal current) {
+    if (current.getEntryCount() < maxJournalEntries && current.size() < maxJournalBytes) {
+      return;
+    }
+    if (compactionPending.compareAndSet(false, true)) {
+      compactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            compact();
+          } catch (KeystoreServiceException e) {
+            e.printStackTrace();
+          } finally {
+            compactionPending.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Open the journal on first use. A journal left behind by an interrupted
+   * compaction is folded into the base store before the live one is replayed.
+   */
+  private CredentialJournal openJournal() throws KeystoreServiceException {
+    if (journal != null) {
+      return journal;
+    }
+    try {
+      File compacting = getJournalFile(COMPACTING_SUFFIX);
+      if (compacting.exists()) {
+        foldCompactingJournal(compacting);
+      }
+      CredentialJournal opened = CredentialJournal.open(getJournalFile(JOURNAL_SUFFIX),
+          masterService.getMasterSecret());
+      try {
+        opened.replay(journaled);
+      } catch (IOException e) {
+        opened.close();
+        throw e;
+      } catch (GeneralSecurityException e) {
+        opened.close();
+        throw e;
+      }
+      journal = opened;
+      return opened;
+    } catch (IOException e) {
+      throw new KeystoreServiceException("Unable to open credential journal.", e);
+    } catch (GeneralSecurityException e) {
+      throw new KeystoreServiceException("Unable to open credential journal.", e);
+    }
+  }
+
+  private void foldCompactingJournal(File compacting)
+      throws IOException, GeneralSecurityException, KeystoreServiceException {
+    Map<String, char[]> leftover = new HashMap<String, char[]>();
+    CredentialJournal previous = CredentialJournal.open(compacting, masterService.getMasterSecret());
+    try {
+      previous.replay(leftover);
+    } finally {
+      previous.close();
+    }
+    foldIntoStore(leftover);
+    compacting.delete();
+  }
+
+  private void foldIntoStore(Map<String, char[]> credentials) throws KeystoreServiceException {
+    if (credentials.isEmpty()) {
+      return;
+    }
+    // compactions are serialized by the compaction lock, the store lock is
+    // left to writers appending to the journal
+    super.writeCredentialValues(credentials);
+  }
+
+  private static String normalize(String alias) {
+    return alias.toLowerCase(Locale.ENGLISH);
+  }
+
+  private File getJournalFile(String suffix) {
+    return new File( keyStoreDir + getServiceName() + suffix );
+  }
+}
@@ -0,0 +1,402 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Holds decrypted credentials outside of the Java heap.
+ * <p>
+ * Credentials are kept as UTF-16 code units in slots carved from direct
+ * ByteBuffer slabs, one set of slabs per power of two size class. A slot is
+ * zeroed as soon as its credential is replaced, removed or evicted, and all
+ * slabs are zeroed when the store is cleared or closed. When the store has
+ * reached its capacity, the oldest credential of the needed size class is
+ * evicted to make room.
+ * <p>
+ * Reading a credential copies it into a caller supplied <code>char[]</code>,
+ * either directly through {@link #copyCredential(String, char[])} or through
+ * a reusable {@link Lease}. Neither allocates on the heap; readers validate
+ * an optimistic stamp instead of taking a lock and only fall back to a read
+ * lock while a writer is active.
+ */
+public final class OffHeapCredentialStore implements Closeable {
+
+  public static final int DEFAULT_SLAB_BYTES = 64 * 1024;
+  public static final long DEFAULT_CAPACITY_BYTES = 16L * 1024 * 1024;
+  // slot sizes in chars, each class twice the previous
+  private static final int MIN_SLOT_CHARS = 16;
+  private static final int MAX_SLOT_CHARS = 4096;
+
+  private final int slabBytes;
+  private final long capacityBytes;
+  private final StampedLock lock = new StampedLock();
+  private final ConcurrentHashMap<String, Slot> entries = new ConcurrentHashMap<String, Slot>();
+  private final SizeClass[] classes;
+  private long allocatedBytes = 0;
+  private boolean closed = false;
+
+  public OffHeapCredentialStore() {
+    this(DEFAULT_SLAB_BYTES, DEFAULT_CAPACITY_BYTES);
+  }
+
+  public OffHeapCredentialStore(int slabBytes, long capacityBytes) {
+    if (slabBytes < MAX_SLOT_CHARS * 2) {
+      throw new IllegalArgumentException("A slab must hold at least one slot of " + MAX_SLOT_CHARS + " chars.");
+    }
+    this.slabBytes = slabBytes;
+    this.capacityBytes = capacityBytes;
+    int count = Integer.numberOfTrailingZeros(MAX_SLOT_CHARS) - Integer.numberOfTrailingZeros(MIN_SLOT_CHARS) + 1;
+    this.classes = new SizeClass[count];
+    for (int i = 0; i < count; i++) {
+      classes[i] = new SizeClass(MIN_SLOT_CHARS << i);
+    }
+  }
+
+  /**
+   * Store a copy of the credential under the alias, replacing and zeroing
+   * any previous one. The caller's array is left untouched.
+   */
+  public void put(String alias, char[] credential) {
+    if (credential.length > MAX_SLOT_CHARS) {
+      throw new IllegalArgumentException("Credentials are limited to " + MAX_SLOT_CHARS + " chars.");
+    }
+    long stamp = lock.writeLock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("The off-heap credential store is closed.");
+      }
+      Slot previous = entries.remove(alias);
+      if (previous != null) {
+        free(previous);
+      }
+      SizeClass sizeClass = classes[classFor(credential.length)];
+      Slot slot = sizeClass.allocate(alias, credential.length);
+      for (int i = 0; i < credential.length; i++) {
+        slot.slab.putChar(slot.offset + 2 * i, credential[i]);
+      }
+      entries.put(alias, slot);
+      sizeClass.order.addLast(slot);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Remove the credential and zero its slot.
+   * @return whether the alias was present
+   */
+  public boolean remove(String alias) {
+    long stamp = lock.writeLock();
+    try {
+      Slot slot = entries.remove(alias);
+      if (slot == null) {
+        return false;
+      }
+      free(slot);
+      return true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  public boolean contains(String alias) {
+    return entries.containsKey(alias);
+  }
+
+  /**
+   * Copy the credential into dest without allocating.
+   * @return the length of the credential, which has only been copied if it
+   * is no larger than dest, or -1 if the alias is not present
+   */
+  public int copyCredential(String alias, char[] dest) {
+    long stamp = lock.tryOptimisticRead();
+    int length = copy(entries.get(alias), dest);
+    if (!lock.validate(stamp)) {
+      // a writer may have reused the slot while we copied, so discard that
+      wipe(dest, length);
+      stamp = lock.readLock();
+      try {
+        length = copy(entries.get(alias), dest);
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @return a lease for reading credentials; a lease is meant to be reused
+   * by one thread for many lookups
+   */
+  public Lease newLease() {
+    return new Lease();
+  }
+
+  public int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * @return the bytes of direct memory held by the slabs
+   */
+  public long getAllocatedBytes() {
+    long stamp = lock.readLock();
+    try {
+      return allocatedBytes;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  public long getCapacityBytes() {
+    return capacityBytes;
+  }
+
+  /**
+   * Remove every credential, zeroing all slabs. The slabs are kept for reuse.
+   */
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      entries.clear();
+      for (SizeClass sizeClass : classes) {
+        sizeClass.reset();
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Zero all slabs and release them.
+   */
+  @Override
+  public void close() {
+    long stamp = lock.writeLock();
+    try {
+      entries.clear();
+      for (SizeClass sizeClass : classes) {
+        sizeClass.reset();
+        sizeClass.slabs.clear();
+        sizeClass.free = new int[0];
+        sizeClass.freeCount = 0;
+      }
+      allocatedBytes = 0;
+      closed = true;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private static int copy(Slot slot, char[] dest) {
+    if (slot == null) {
+      return -1;
+    }
+    int length = slot.length;
+    if (length <= dest.length) {
+      ByteBuffer slab = slot.slab;
+      int offset = slot.offset;
+      for (int i = 0; i < length; i++) {
+        dest[i] = slab.getChar(offset + 2 * i);
+      }
+    }
+    return length;
+  }
+
+  private static void wipe(char[] dest, int length) {
+    if (length > 0) {
+      Arrays.fill(dest, 0, Math.min(length, dest.length), '\0');
+    }
+  }
+
+  private static int classFor(int chars) {
+    if (chars <= MIN_SLOT_CHARS) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(chars - 1) - Integer.numberOfTrailingZeros(MIN_SLOT_CHARS);
+  }
+
+  // called with the write lock held
+  private void free(Slot slot) {
+    slot.live = false;
+    SizeClass sizeClass = classes[classFor(slot.length)];
+    sizeClass.order.remove(slot);
+    sizeClass.release(slot);
+  }
+
+  /**
+   * A reusable handle for reading credentials. Acquire an alias, then copy
+   * it into as many arrays as needed; a copy fails if the credential has
+   * been replaced or removed since it was acquired.
+   */
+  public final class Lease implements Closeable {
+    private Slot slot;
+
+    private Lease() {
+    }
+
+    /**
+     * @return whether the alias is present
+     */
+    public boolean acquire(String alias) {
+      slot = entries.get(alias);
+      return slot != null;
+    }
+
+    /**
+     * @return the length of the acquired credential or -1 if none is held
+     */
+    public int length() {
+      Slot held = slot;
+      return held == null ? -1 : held.length;
+    }
+
+    /**
+     * @return the number of chars copied, or -1 if no credential is held or
+     * it is no longer current
+     */
+    public int copyTo(char[] dest) {
+      Slot held = slot;
+      if (held == null || held.length > dest.length) {
+        return -1;
+      }
+      long stamp = lock.tryOptimisticRead();
+      int length = held.live ? copy(held, dest) : -1;
+      if (!lock.validate(stamp)) {
+        wipe(dest, length);
+        stamp = lock.readLock();
+        try {
+          length = held.live ? copy(held, dest) : -1;
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return length;
+    }
+
+    @Override
+    public void close() {
+      slot = null;
+    }
+  }
+
+  private static final class Slot {
+    final String alias;
+    final ByteBuffer slab;
+    final int offset;
+    final int length;
+    volatile boolean live = true;
+
+    Slot(String alias, ByteBuffer slab, int offset, int length) {
+      this.alias = alias;
+      this.slab = slab;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * The slabs and free slots of one slot size. Only used with the write
+   * lock held.
+   */
+  private final class SizeClass {
+    final int slotBytes;
+    final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    final ArrayDeque<Slot> order = new ArrayDeque<Slot>();
+    // free slots encoded as slab index * slots per slab + slot index
+    int[] free = new int[0];
+    int freeCount = 0;
+
+    SizeClass(int slotChars) {
+      this.slotBytes = slotChars * 2;
+    }
+
+    Slot allocate(String alias, int length) {
+      if (freeCount == 0) {
+        if (allocatedBytes + slabBytes <= capacityBytes) {
+          addSlab();
+        }
+        else if (!order.isEmpty()) {
+          Slot evicted = order.pollFirst();
+          entries.remove(evicted.alias, evicted);
+          evicted.live = false;
+          release(evicted);
+        }
+        else {
+          throw new IllegalStateException("The off-heap credential store is full.");
+        }
+      }
+      int encoded = free[--freeCount];
+      int slotsPerSlab = slabBytes / slotBytes;
+      return new Slot(alias, slabs.get(encoded / slotsPerSlab), (encoded % slotsPerSlab) * slotBytes, length);
+    }
+
+    void release(Slot slot) {
+      ByteBuffer slab = slot.slab;
+      for (int i = 0; i < slotBytes; i += 8) {
+        slab.putLong(slot.offset + i, 0L);
+      }
+      int slotsPerSlab = slabBytes / slotBytes;
+      push(slabs.indexOf(slab) * slotsPerSlab + slot.offset / slotBytes);
+    }
+
+    void addSlab() {
+      ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+      slabs.add(slab);
+      allocatedBytes += slabBytes;
+      int slotsPerSlab = slabBytes / slotBytes;
+      int base = (slabs.size() - 1) * slotsPerSlab;
+      for (int i = slotsPerSlab - 1; i >= 0; i--) {
+        push(base + i);
+      }
+    }
+
+    void push(int encoded) {
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, Math.max(16, free.length * 2));
+      }
+      free[freeCount++] = encoded;
+    }
+
+    void reset() {
+      for (Slot slot : order) {
+        slot.live = false;
+      }
+      order.clear();
+      freeCount = 0;
+      for (int s = 0; s < slabs.size(); s++) {
+        ByteBuffer slab = slabs.get(s);
+        for (int i = 0; i + 8 <= slabBytes; i += 8) {
+          slab.putLong(i, 0L);
+        }
+        int slotsPerSlab = slabBytes / slotBytes;
+        for (int i = slotsPerSlab - 1; i >= 0; i--) {
+          push(s * slotsPerSlab + i);
+        }
+      }
+    }
+  }
+}
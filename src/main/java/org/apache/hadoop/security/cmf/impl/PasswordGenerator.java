@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Generates random passwords from an alphabet.
+ * <p>
+ * Random bytes are drawn from a SecureRandom a block at a time, and each
+ * password takes what it needs from the current block. A byte, or a pair of
+ * bytes for alphabets of more than 256 characters, that would favour the
+ * start of the alphabet is rejected rather than reduced modulo its size, so
+ * every character is equally likely. A policy can require that every
+ * password contains at least one character of each of several classes;
+ * passwords that do not are discarded and drawn again, which keeps the
+ * passwords that are returned uniform among those satisfying the policy.
+ * <p>
+ * An instance may be shared between threads. Passwords are written straight
+ * into char arrays; consumed random bytes are wiped from the block.
+ */
+public final class PasswordGenerator {
+
+  public static final int DEFAULT_LENGTH = 16;
+  private static final int BLOCK_SIZE = 4096;
+
+  private final SecureRandom random;
+  private final char[] alphabet;
+  private final char[][] required;
+  private final int length;
+  private final int bytesPerDraw;
+  private final int limit;
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private int position = BLOCK_SIZE;
+
+  /**
+   * @param length the number of characters of every password
+   * @param alphabet the characters to draw from, without duplicates
+   * @param required classes of characters of which every password must
+   * contain at least one
+   */
+  public PasswordGenerator(int length, char[] alphabet, char[]... required) {
+    this(new SecureRandom(), length, alphabet, required);
+  }
+
+  public PasswordGenerator(SecureRandom random, int length, char[] alphabet, char[]... required) {
+    if (alphabet.length < 2 || alphabet.length > 65536) {
+      throw new IllegalArgumentException("An alphabet needs between 2 and 65536 characters.");
+    }
+    if (length < required.length) {
+      throw new IllegalArgumentException("A password of " + length + " characters cannot satisfy "
+          + required.length + " required character classes.");
+    }
+    for (char[] characterClass : required) {
+      if (!containsAny(alphabet, characterClass)) {
+        throw new IllegalArgumentException("A required character class does not intersect the alphabet.");
+      }
+    }
+    this.random = random;
+    this.length = length;
+    this.alphabet = alphabet.clone();
+    this.required = new char[required.length][];
+    for (int i = 0; i < required.length; i++) {
+      this.required[i] = required[i].clone();
+    }
+    this.bytesPerDraw = alphabet.length <= 256 ? 1 : 2;
+    int range = bytesPerDraw == 1 ? 256 : 65536;
+    // the largest multiple of the alphabet size that fits the range
+    this.limit = range - range % alphabet.length;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return a new password that the caller is expected to wipe
+   */
+  public char[] generate() {
+    char[] password = new char[length];
+    generate(password);
+    return password;
+  }
+
+  /**
+   * Fill the array with a password of its own length.
+   */
+  public void generate(char[] password) {
+    synchronized (block) {
+      do {
+        fill(password);
+      } while (!satisfiesPolicy(password));
+    }
+  }
+
+  /**
+   * Generate many passwords at once, holding the generator for the whole
+   * batch.
+   */
+  public char[][] generate(int count) {
+    char[][] passwords = new char[count][length];
+    synchronized (block) {
+      for (char[] password : passwords) {
+        do {
+          fill(password);
+        } while (!satisfiesPolicy(password));
+      }
+    }
+    return passwords;
+  }
+
+  private void fill(char[] password) {
+    int size = alphabet.length;
+    for (int i = 0; i < password.length; i++) {
+      int value;
+      do {
+        value = next();
+      } while (value >= limit);
+      password[i] = alphabet[value % size];
+    }
+  }
+
+  private int next() {
+    if (position + bytesPerDraw > BLOCK_SIZE) {
+      random.nextBytes(block);
+      position = 0;
+    }
+    int value = block[position] & 0xff;
+    block[position++] = 0;
+    if (bytesPerDraw == 2) {
+      value = (value << 8) | (block[position] & 0xff);
+      block[position++] = 0;
+    }
+    return value;
+  }
+
+  private boolean satisfiesPolicy(char[] password) {
+    for (char[] characterClass : required) {
+      if (!containsAny(password, characterClass)) {
+        Arrays.fill(password, '\0');
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean containsAny(char[] chars, char[] characterClass) {
+    for (char c : chars) {
+      for (char candidate : characterClass) {
+        if (c == candidate) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,591 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.hadoop.security.cmf.AliasService;
+import org.apache.hadoop.security.cmf.ConfigResolution;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+
+/**
+ * An {@link AliasService} that looks credentials up in a
+ * {@link CredentialDaemon} on the same host.
+ * <p>
+ * One connection is shared by all threads and requests are pipelined on it:
+ * a caller sends its request and waits only for its own response. Lookups of
+ * several aliases, such as those of {@link #resolveAll(Map)}, go out as a
+ * single request. Credentials are cached locally for a short time so that a
+ * hot alias does not cost a round trip per lookup; a time to live of 0
+ * disables the cache. Expired credentials are wiped and dropped when they
+ * are next looked up or by a sweep at most once per time to live, and the
+ * cache holds at most {@link #MAX_CACHED_CREDENTIALS} of them. A broken
+ * connection is reopened on the next lookup.
+ * <p>
+ * The daemon is read only, so the methods that add or replace aliases throw
+ * a KeystoreServiceException.
+ */
+public class RemoteAliasService implements AliasService, Closeable {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+  // keeps requests, and with them responses, well below the frame limit
+  static final int MAX_ALIASES_PER_REQUEST = 1024;
+  static final int MAX_REQUEST_BYTES = DaemonProtocol.MAX_FRAME / 4;
+  public static final int MAX_CACHED_CREDENTIALS = 1024;
+
+  private final File endpointFile;
+  private final long cacheTtlNanos;
+  private final ConcurrentHashMap<String, CachedCredential> cache = new ConcurrentHashMap<String, CachedCredential>();
+  private final Object connectLock = new Object();
+  private volatile long nextSweep;
+  private volatile Connection connection = null;
+  private volatile boolean closed = false;
+
+  public RemoteAliasService(String keystoreDir, String serviceName, long cacheTtlMillis) {
+    this(DaemonProtocol.endpointFile(keystoreDir, serviceName), cacheTtlMillis);
+  }
+
+  /**
+   * @param endpointFile the file the daemon published its port and token in
+   * @param cacheTtlMillis how long credentials are cached locally
+   */
+  public RemoteAliasService(File endpointFile, long cacheTtlMillis) {
+    this.endpointFile = endpointFile;
+    this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+    this.nextSweep = System.nanoTime() + cacheTtlNanos;
+  }
+
+  @Override
+  public char[] getPasswordFromAlias(String alias) {
+    return getPasswordFromAlias(alias, false);
+  }
+
+  @Override
+  public char[] getPasswordFromAlias(String alias, boolean generate) {
+    try {
+      Map<String, char[]> credentials = getPasswordsFromAliases(Collections.singleton(alias), generate);
+      return credentials.get(alias);
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Look up several aliases with one round trip to the daemon; very large
+   * lookups are split into several requests sent together.
+   * Aliases that are not present are left out of the returned map.
+   */
+  public Map<String, char[]> getPasswordsFromAliases(Collection<String> aliases, boolean generate)
+      throws KeystoreServiceException {
+    Map<String, char[]> credentials = new HashMap<String, char[]>();
+    List<String> remote = new ArrayList<String>();
+    long now = System.nanoTime();
+    if (cacheTtlNanos > 0 && now - nextSweep >= 0) {
+      nextSweep = now + cacheTtlNanos;
+      sweep(now);
+    }
+    for (String alias : aliases) {
+      CachedCredential cached = cacheTtlNanos > 0 ? cache.get(alias) : null;
+      char[] credential = cached == null ? null : cached.copy(now);
+      if (credential != null) {
+        credentials.put(alias, credential);
+      }
+      else {
+        if (cached != null && cache.remove(alias, cached)) {
+          cached.wipe();
+        }
+        remote.add(alias);
+      }
+    }
+    if (remote.isEmpty()) {
+      return credentials;
+    }
+    List<List<String>> batches = batches(remote);
+    List<CompletableFuture<char[][]>> responses = new ArrayList<CompletableFuture<char[][]>>();
+    for (List<String> batch : batches) {
+      responses.add(lookup(batch, generate));
+    }
+    long deadline = now + TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    try {
+      for (int b = 0; b < batches.size(); b++) {
+        char[][] fetched;
+        try {
+          fetched = responses.get(b).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new KeystoreServiceException("Interrupted waiting for the credential daemon.", e);
+        } catch (ExecutionException e) {
+          throw new KeystoreServiceException("Unable to look up credentials in the credential daemon.", e);
+        } catch (TimeoutException e) {
+          throw new KeystoreServiceException("Timed out waiting for the credential daemon.", e);
+        }
+        List<String> batch = batches.get(b);
+        long expires = System.nanoTime() + cacheTtlNanos;
+        for (int i = 0; i < fetched.length; i++) {
+          if (fetched[i] != null) {
+            if (cacheTtlNanos > 0) {
+              cache(batch.get(i), new CachedCredential(fetched[i].clone(), expires));
+            }
+            credentials.put(batch.get(i), fetched[i]);
+          }
+        }
+      }
+    } catch (KeystoreServiceException e) {
+      // stop waiting for the rest, which also forgets their requests
+      for (CompletableFuture<char[][]> response : responses) {
+        response.cancel(false);
+      }
+      wipe(credentials);
+      throw e;
+    }
+    return credentials;
+  }
+
+  private void cache(String alias, CachedCredential credential) {
+    CachedCredential previous = cache.put(alias, credential);
+    if (previous != null) {
+      previous.wipe();
+    }
+    if (cache.size() > MAX_CACHED_CREDENTIALS) {
+      sweep(System.nanoTime());
+      // still full of live credentials, make room by dropping any
+      Iterator<Map.Entry<String, CachedCredential>> entries = cache.entrySet().iterator();
+      while (cache.size() > MAX_CACHED_CREDENTIALS && entries.hasNext()) {
+        Map.Entry<String, CachedCredential> entry = entries.next();
+        if (entry.getValue() != credential && cache.remove(entry.getKey(), entry.getValue())) {
+          entry.getValue().wipe();
+        }
+      }
+    }
+  }
+
+  int getCachedCount() {
+    return cache.size();
+  }
+
+  /**
+   * Wipe and drop every expired credential.
+   */
+  private void sweep(long now) {
+    for (Map.Entry<String, CachedCredential> entry : cache.entrySet()) {
+      if (entry.getValue().isExpired(now) && cache.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().wipe();
+      }
+    }
+  }
+
+  private static List<List<String>> batches(List<String> aliases) {
+    List<List<String>> batches = new ArrayList<List<String>>();
+    List<String> batch = new ArrayList<String>();
+    int bytes = 0;
+    for (String alias : aliases) {
+      int length = 2 + 3 * alias.length();
+      if (!batch.isEmpty() && (batch.size() == MAX_ALIASES_PER_REQUEST || bytes + length > MAX_REQUEST_BYTES)) {
+        batches.add(batch);
+        batch = new ArrayList<String>();
+        bytes = 0;
+      }
+      batch.add(alias);
+      bytes += length;
+    }
+    batches.add(batch);
+    return batches;
+  }
+
+  /**
+   * Send a lookup without waiting for the response, bypassing the cache.
+   * Many lookups may be outstanding at once.
+   * @return the credentials in the order of the aliases, null where absent
+   */
+  public CompletableFuture<char[][]> lookup(List<String> aliases, boolean generate) {
+    Connection current;
+    try {
+      current = connect();
+    } catch (IOException e) {
+      CompletableFuture<char[][]> failed = new CompletableFuture<char[][]>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return current.send(aliases, generate);
+  }
+
+  /**
+   * Expand a configuration value, see {@link ConfigValueTemplate}; the
+   * aliases it references are fetched in one request.
+   */
+  @Override
+  public char[] getPasswordFromConfigValue(String configValue) {
+    if (!ConfigValueTemplate.containsReference(configValue)) {
+      return configValue.toCharArray();
+    }
+    ConfigValueTemplate template = ConfigValueTemplate.compile(configValue);
+    Map<String, char[]> credentials;
+    try {
+      credentials = getPasswordsFromAliases(template.getAliases(), false);
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+      return null;
+    }
+    try {
+      return template.expand(credentials);
+    } finally {
+      wipe(credentials);
+    }
+  }
+
+  @Override
+  public ConfigResolution resolveAll(Map<String, String> config) {
+    return resolveAll(config.entrySet());
+  }
+
+  /**
+   * Resolve every value of the configuration with a single request for all
+   * of the aliases referenced.
+   */
+  @Override
+  public ConfigResolution resolveAll(Iterable<Map.Entry<String, String>> config) {
+    Map<String, ConfigValueTemplate> templates = new LinkedHashMap<String, ConfigValueTemplate>();
+    Set<String> aliases = new LinkedHashSet<String>();
+    Map<String, char[]> values = new LinkedHashMap<String, char[]>();
+    Map<String, KeystoreServiceException> errors = new LinkedHashMap<String, KeystoreServiceException>();
+    for (Map.Entry<String, String> entry : config) {
+      if (entry.getValue() == null) {
+        errors.put(entry.getKey(), new KeystoreServiceException("No value configured for: " + entry.getKey()));
+        continue;
+      }
+      ConfigValueTemplate template = ConfigValueTemplate.compile(entry.getValue());
+      templates.put(entry.getKey(), template);
+      aliases.addAll(template.getAliases());
+    }
+    Map<String, char[]> credentials = Collections.emptyMap();
+    if (!aliases.isEmpty()) {
+      try {
+        credentials = getPasswordsFromAliases(aliases, false);
+      } catch (KeystoreServiceException e) {
+        for (Map.Entry<String, ConfigValueTemplate> entry : templates.entrySet()) {
+          if (entry.getValue().hasAliases()) {
+            errors.put(entry.getKey(), e);
+          }
+          else {
+            values.put(entry.getKey(), entry.getValue().expand(credentials));
+          }
+        }
+        return new ConfigResolution(values, errors);
+      }
+    }
+    try {
+      for (Map.Entry<String, ConfigValueTemplate> entry : templates.entrySet()) {
+        ConfigValueTemplate template = entry.getValue();
+        char[] value = template.expand(credentials);
+        if (value != null) {
+          values.put(entry.getKey(), value);
+        }
+        else {
+          errors.put(entry.getKey(), new KeystoreServiceException(
+              "No credential found for alias: " + template.getUnresolvedAlias(credentials)));
+        }
+      }
+    } finally {
+      wipe(credentials);
+    }
+    return new ConfigResolution(values, errors);
+  }
+
+  @Override
+  public void addAlias(String alias, String value) throws KeystoreServiceException {
+    throw readOnly();
+  }
+
+  @Override
+  public void addAlias(String alias, char[] value) throws KeystoreServiceException {
+    throw readOnly();
+  }
+
+  @Override
+  public void addAliases(Map<String, String> aliases) throws KeystoreServiceException {
+    throw readOnly();
+  }
+
+  @Override
+  public void generateAlias(String alias) throws KeystoreServiceException {
+    throw readOnly();
+  }
+
+  @Override
+  public void generateAliases(Collection<String> aliases) throws KeystoreServiceException {
+    throw readOnly();
+  }
+
+  /**
+   * Drop the connection and wipe the local cache.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (connectLock) {
+      if (connection != null) {
+        connection.close(new IOException("The remote alias service is closed."));
+        connection = null;
+      }
+    }
+    for (String alias : cache.keySet()) {
+      CachedCredential cached = cache.remove(alias);
+      if (cached != null) {
+        cached.wipe();
+      }
+    }
+  }
+
+  private static KeystoreServiceException readOnly() {
+    return new KeystoreServiceException("The credential daemon does not accept changes.");
+  }
+
+  private static void wipe(Map<String, char[]> credentials) {
+    for (char[] credential : credentials.values()) {
+      Arrays.fill(credential, ' ');
+    }
+  }
+
+  private Connection connect() throws IOException {
+    Connection current = connection;
+    if (current != null && current.isOpen()) {
+      return current;
+    }
+    synchronized (connectLock) {
+      if (closed) {
+        throw new IOException("The remote alias service is closed.");
+      }
+      current = connection;
+      if (current == null || !current.isOpen()) {
+        Properties endpoint = DaemonProtocol.readEndpoint(endpointFile);
+        int port = Integer.parseInt(endpoint.getProperty(DaemonProtocol.PORT_PROPERTY, "0"));
+        byte[] token = DaemonProtocol.token(endpoint);
+        try {
+          current = new Connection(port, token);
+        } finally {
+          Arrays.fill(token, (byte) 0);
+        }
+        connection = current;
+      }
+      return current;
+    }
+  }
+
+  /**
+   * A cached credential, copied and wiped under its own lock so that a
+   * reader never copies a half wiped value.
+   */
+  private static final class CachedCredential {
+    private final char[] credential;
+    private final long expires;
+    private boolean wiped = false;
+
+    CachedCredential(char[] credential, long expires) {
+      this.credential = credential;
+      this.expires = expires;
+    }
+
+    boolean isExpired(long now) {
+      return now - expires >= 0;
+    }
+
+    /**
+     * @return a copy of the credential, or null once it has expired or been wiped
+     */
+    synchronized char[] copy(long now) {
+      return wiped || isExpired(now) ? null : credential.clone();
+    }
+
+    synchronized void wipe() {
+      Arrays.fill(credential, ' ');
+      wiped = true;
+    }
+  }
+
+  /**
+   * A connection to the daemon with a thread reading responses and
+   * completing the futures of the requests they answer.
+   */
+  private static final class Connection {
+    private final SocketChannel channel;
+    private final ConcurrentHashMap<Integer, CompletableFuture<char[][]>> pending =
+        new ConcurrentHashMap<Integer, CompletableFuture<char[][]>>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Object writeLock = new Object();
+    private volatile boolean open = true;
+
+    Connection(int port, byte[] token) throws IOException {
+      channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      channel.socket().setTcpNoDelay(true);
+      ByteBuffer hello = ByteBuffer.allocate(4 + token.length);
+      hello.putInt(token.length).put(token).flip();
+      try {
+        writeFully(hello);
+        ByteBuffer reply = readFrame();
+        if (reply.getInt() != 0 || reply.get() != DaemonProtocol.STATUS_OK) {
+          throw new IOException("The credential daemon refused the connection.");
+        }
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      } finally {
+        Arrays.fill(hello.array(), (byte) 0);
+      }
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          readResponses();
+        }
+      }, "cmf-remote-alias-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    boolean isOpen() {
+      return open;
+    }
+
+    CompletableFuture<char[][]> send(List<String> aliases, boolean generate) {
+      final CompletableFuture<char[][]> response = new CompletableFuture<char[][]>();
+      final int id = nextId.getAndIncrement();
+      pending.put(id, response);
+      // a caller that gives up cancels, which must not leave the request behind
+      response.whenComplete(new BiConsumer<char[][], Throwable>() {
+        @Override
+        public void accept(char[][] credentials, Throwable failure) {
+          pending.remove(id, response);
+        }
+      });
+      ByteBuffer request = DaemonProtocol.request(id, generate, aliases);
+      try {
+        synchronized (writeLock) {
+          writeFully(request);
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+      if (!open) {
+        // the reader may have failed everything before we registered
+        failPending(new IOException("The connection to the credential daemon was lost."));
+      }
+      return response;
+    }
+
+    private void readResponses() {
+      try {
+        while (open) {
+          ByteBuffer body = readFrame();
+          int id = body.getInt();
+          byte status = body.get();
+          CompletableFuture<char[][]> response = pending.remove(id);
+          if (status == DaemonProtocol.STATUS_OK) {
+            char[][] credentials = DaemonProtocol.credentials(body);
+            if (response == null || !response.complete(credentials)) {
+              // nobody is waiting any more
+              for (char[] credential : credentials) {
+                if (credential != null) {
+                  Arrays.fill(credential, ' ');
+                }
+              }
+            }
+          }
+          else if (response != null) {
+            String message = DaemonProtocol.string(body, body.getShort() & 0xffff);
+            response.completeExceptionally(new KeystoreServiceException(message));
+          }
+          Arrays.fill(body.array(), (byte) 0);
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private ByteBuffer readFrame() throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      readFully(header);
+      int length = header.getInt(0);
+      if (length < 0 || length > DaemonProtocol.MAX_FRAME) {
+        throw new IOException("Invalid frame from the credential daemon.");
+      }
+      ByteBuffer body = ByteBuffer.allocate(length);
+      readFully(body);
+      body.flip();
+      return body;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException("The credential daemon closed the connection.");
+        }
+      }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    void close(IOException cause) {
+      open = false;
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      failPending(cause);
+    }
+
+    private void failPending(IOException cause) {
+      for (Integer id : pending.keySet()) {
+        CompletableFuture<char[][]> response = pending.remove(id);
+        if (response != null) {
+          response.completeExceptionally(cause);
+        }
+      }
+    }
+  }
+}
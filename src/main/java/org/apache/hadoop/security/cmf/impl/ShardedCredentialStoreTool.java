@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * Moves a credential store into the layout of {@link ShardedKeystoreService}
+ * and changes the number of shards of a sharded store.
+ * <p>
+ * New shard files are written completely before the layout file is
+ * replaced, so a store interrupted midway keeps its previous layout. Shard
+ * files of the previous layout are deleted once the new layout is in place;
+ * a migrated single file store is left untouched for the operator to remove.
+ * <p>
+ * Usage: <code>ShardedCredentialStoreTool (migrate|reshard) securityDir keystoreDir serviceName shards</code>
+ */
+public class ShardedCredentialStoreTool {
+
+  private static final String JCEKS_SUFFIX = "-credentials.jceks";
+
+  /**
+   * Split the single file store of a service into the given number of shards.
+   */
+  public static void migrate(String keystoreDir, String serviceName, MasterService ms, int shards)
+      throws IOException, GeneralSecurityException, KeystoreServiceException {
+    if (ShardedKeystoreService.readLayout(new File(keystoreDir, serviceName + ShardedKeystoreService.LAYOUT_SUFFIX)) > 0) {
+      throw new KeystoreServiceException("The credential store of " + serviceName + " is already sharded.");
+    }
+    Map<String, String> credentials = read(new File(keystoreDir, serviceName + JCEKS_SUFFIX), ms.getMasterSecret());
+    write(keystoreDir, serviceName, ms, shards, credentials);
+  }
+
+  /**
+   * Redistribute the aliases of a sharded store over a new number of shards.
+   */
+  public static void reshard(String keystoreDir, String serviceName, MasterService ms, int shards)
+      throws IOException, GeneralSecurityException, KeystoreServiceException {
+    int current = ShardedKeystoreService.readLayout(
+        new File(keystoreDir, serviceName + ShardedKeystoreService.LAYOUT_SUFFIX));
+    if (current == 0) {
+      throw new KeystoreServiceException("The credential store of " + serviceName + " is not sharded.");
+    }
+    if (current == shards) {
+      return;
+    }
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    for (int i = 0; i < current; i++) {
+      File shard = shardFile(keystoreDir, serviceName, i, current);
+      if (shard.exists()) {
+        credentials.putAll(read(shard, ms.getMasterSecret()));
+      }
+    }
+    write(keystoreDir, serviceName, ms, shards, credentials);
+    for (int i = 0; i < current; i++) {
+      shardFile(keystoreDir, serviceName, i, current).delete();
+      BaseKeystoreService.getChecksumFile(shardFile(keystoreDir, serviceName, i, current)).delete();
+      new File(keystoreDir, ShardedKeystoreService.shardName(serviceName, i, current) + "-credentials.lock").delete();
+    }
+  }
+
+  private static void write(String keystoreDir, String serviceName, MasterService ms, int shards,
+      Map<String, String> credentials) throws IOException, KeystoreServiceException {
+    Map<Integer, Map<String, String>> grouped = new LinkedHashMap<Integer, Map<String, String>>();
+    for (int i = 0; i < shards; i++) {
+      grouped.put(i, new LinkedHashMap<String, String>());
+    }
+    for (Map.Entry<String, String> credential : credentials.entrySet()) {
+      grouped.get(ShardedKeystoreService.shardFor(credential.getKey(), shards))
+          .put(credential.getKey(), credential.getValue());
+    }
+    for (Map.Entry<Integer, Map<String, String>> shard : grouped.entrySet()) {
+      // every shard gets a file, empty or not, so the layout is complete on disk
+      new CMFKeystoreService(keystoreDir, ShardedKeystoreService.shardName(serviceName, shard.getKey(), shards), ms)
+          .addCredentials(shard.getValue());
+    }
+    new ShardedKeystoreService(keystoreDir, serviceName, ms, shards).writeLayout(shards);
+  }
+
+  private static File shardFile(String keystoreDir, String serviceName, int shard, int shards) {
+    return new File(keystoreDir, ShardedKeystoreService.shardName(serviceName, shard, shards) + JCEKS_SUFFIX);
+  }
+
+  private static Map<String, String> read(File store, char[] master) throws IOException, GeneralSecurityException {
+    KeyStore ks = CryptoPrimitives.newKeyStore("JCEKS");
+    FileInputStream in = new FileInputStream(store);
+    try {
+      ks.load(in, master);
+    } finally {
+      in.close();
+    }
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    Enumeration<String> aliases = ks.aliases();
+    while (aliases.hasMoreElements()) {
+      String alias = aliases.nextElement();
+      Key key = ks.getKey(alias, master);
+      if (key instanceof SecretKey) {
+        credentials.put(alias, new String(key.getEncoded(), "UTF8"));
+      }
+    }
+    return credentials;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 5 || !("migrate".equals(args[0]) || "reshard".equals(args[0]))) {
+      System.err.println("Usage: ShardedCredentialStoreTool (migrate|reshard) securityDir keystoreDir serviceName shards");
+      System.exit(1);
+    }
+    String serviceName = args[3];
+    MasterService ms = new CMFMasterService(serviceName);
+    ms.setupMasterSecret(args[1], false);
+    int shards = Integer.parseInt(args[4]);
+    if ("migrate".equals(args[0])) {
+      migrate(args[2], serviceName, ms, shards);
+    }
+    else {
+      reshard(args[2], serviceName, ms, shards);
+    }
+  }
+}
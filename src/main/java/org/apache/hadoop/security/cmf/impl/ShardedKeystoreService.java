@@ -0,0 +1,381 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * A credential store split over several JCEKS shard files, each alias living
+ * in the shard selected by a stable hash of its name.
+ * <p>
+ * The number of shards is recorded in <code>-credentials.layout</code>.
+ * Shard <i>i</i> of <i>n</i> is an ordinary store named
+ * <code>&lt;service&gt;-shard&lt;i&gt;of&lt;n&gt;-credentials.jceks</code>,
+ * read and written through its own {@link CMFKeystoreService}. A write
+ * rewrites only the shards its aliases fall in, a shard is loaded on its
+ * first lookup, and lookups in different shards do not contend.
+ * <p>
+ * Use {@link ShardedCredentialStoreTool} to migrate a single file store to
+ * this layout and to change the number of shards. The layout is read when
+ * the service is created, so services must be restarted after re-sharding.
+ */
+public class ShardedKeystoreService extends CMFKeystoreService {
+
+  static final String LAYOUT_SUFFIX = "-credentials.layout";
+  private static final String SHARDS_PROPERTY = "shards";
+  public static final int DEFAULT_SHARDS = 16;
+
+  private final int shardCount;
+  private final AtomicReferenceArray<CMFKeystoreService> shards;
+  private volatile List<OffHeapCredentialStore> offHeapStores = null;
+
+  public ShardedKeystoreService(String keystoreDir, String serviceName, MasterService ms)
+      throws KeystoreServiceException {
+    this(keystoreDir, serviceName, ms, DEFAULT_SHARDS);
+  }
+
+  /**
+   * @param shards the number of shards used if the store does not exist
+   * yet; an existing layout always takes precedence
+   */
+  public ShardedKeystoreService(String keystoreDir, String serviceName, MasterService ms, int shards)
+      throws KeystoreServiceException {
+    super(keystoreDir, serviceName, ms);
+    if (shards < 1) {
+      throw new IllegalArgumentException("The number of shards must be positive: " + shards);
+    }
+    int recorded = readLayout(getCredentialStoreFile());
+    this.shardCount = recorded > 0 ? recorded : shards;
+    this.shards = new AtomicReferenceArray<CMFKeystoreService>(shardCount);
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  @Override
+  protected File getCredentialStoreFile() {
+    return new File( keyStoreDir + getServiceName() + LAYOUT_SUFFIX );
+  }
+
+  /**
+   * Record the layout; the shard files are created by their first write.
+   */
+  @Override
+  public void createCredentialStore() throws KeystoreServiceException {
+    try {
+      writeLayout(shardCount);
+    } catch (IOException e) {
+      throw new KeystoreServiceException("Unable to create the credential store.", e);
+    }
+  }
+
+  @Override
+  public boolean isCredentialStoreAvailable() throws KeystoreServiceException {
+    return getCredentialStoreFile().exists();
+  }
+
+  /**
+   * Build an in-memory JCEKS view of all shards. This unseals every entry
+   * and is only meant for tools that need the KeyStore API.
+   */
+  @Override
+  public KeyStore getCredentialStore() {
+    try {
+      KeyStore merged = CryptoPrimitives.newKeyStore("JCEKS");
+      merged.load(null, masterService.getMasterSecret());
+      for (int i = 0; i < shardCount; i++) {
+        CMFKeystoreService shard = getShard(i);
+        if (!shard.getCredentialStoreFile().exists()) {
+          continue;
+        }
+        KeyStore ks = shard.getCredentialStore();
+        Enumeration<String> aliases = ks.aliases();
+        while (aliases.hasMoreElements()) {
+          String alias = aliases.nextElement();
+          Key key = ks.getKey(alias, masterService.getMasterSecret());
+          merged.setKeyEntry(alias, key, masterService.getMasterSecret(), null);
+        }
+      }
+      return merged;
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Writes go straight to the shards, which group commit them, so that
+   * writes to different shards do not wait for each other.
+   */
+  @Override
+  public void addCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    writeCredentialValues(credentials);
+  }
+
+  @Override
+  protected void writeCredentialValues(Map<String, char[]> credentials) throws KeystoreServiceException {
+    for (Map.Entry<Integer, Map<String, char[]>> shard : group(credentials).entrySet()) {
+      getShard(shard.getKey()).addCredentialValues(shard.getValue());
+    }
+  }
+
+  @Override
+  public char[] addCredentialIfAbsent(String alias, char[] value) throws KeystoreServiceException {
+    return getShard(shardFor(alias)).addCredentialIfAbsent(alias, value);
+  }
+
+  @Override
+  public char[] getCredential(String alias) {
+    try {
+      return getShard(shardFor(alias)).getCredential(alias);
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, char[]> getCredentials(Collection<String> aliases) {
+    Map<Integer, List<String>> grouped = new HashMap<Integer, List<String>>();
+    for (String alias : aliases) {
+      Integer shard = shardFor(alias);
+      List<String> group = grouped.get(shard);
+      if (group == null) {
+        group = new ArrayList<String>();
+        grouped.put(shard, group);
+      }
+      group.add(alias);
+    }
+    Map<String, char[]> credentials = new HashMap<String, char[]>();
+    for (Map.Entry<Integer, List<String>> group : grouped.entrySet()) {
+      try {
+        credentials.putAll(getShard(group.getKey()).getCredentials(group.getValue()));
+      } catch (KeystoreServiceException e) {
+        e.printStackTrace();
+      }
+    }
+    return credentials;
+  }
+
+  @Override
+  public int copyCredential(String alias, char[] dest) {
+    try {
+      return getShard(shardFor(alias)).copyCredential(alias, dest);
+    } catch (KeystoreServiceException e) {
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  /**
+   * Keep the decrypted credentials of each shard in its own off-heap store,
+   * since a store is cleared whenever its shard is reloaded. Closing the
+   * stores is left to the caller.
+   * @param stores one store per shard, see {@link #getShardCount()}, or
+   * null to go back to the heap
+   */
+  public void setOffHeapCredentialStores(List<OffHeapCredentialStore> stores) {
+    if (stores != null && stores.size() != shardCount) {
+      throw new IllegalArgumentException("Expected " + shardCount + " off-heap stores, got " + stores.size());
+    }
+    this.offHeapStores = stores == null ? null : new ArrayList<OffHeapCredentialStore>(stores);
+    for (int i = 0; i < shardCount; i++) {
+      CMFKeystoreService shard = shards.get(i);
+      if (shard != null) {
+        shard.setOffHeapCredentialStore(offHeapStoreFor(i));
+      }
+    }
+  }
+
+  private OffHeapCredentialStore offHeapStoreFor(int shard) {
+    List<OffHeapCredentialStore> stores = offHeapStores;
+    return stores == null ? null : stores.get(shard);
+  }
+
+  /**
+   * The store file of this service is the layout, which does not change
+   * when credentials do, so a watcher cannot follow it.
+   */
+  @Override
+  protected boolean isReloadSupported() {
+    return false;
+  }
+
+  /**
+   * Reload every shard loaded so far; the others are read from disk on
+   * first use anyway.
+   * @return the aliases added, removed or replaced in any shard
+   */
+  @Override
+  public Set<String> reloadCredentialStore() throws KeystoreServiceException {
+    Set<String> changed = new HashSet<String>();
+    for (int i = 0; i < shardCount; i++) {
+      CMFKeystoreService shard = shards.get(i);
+      if (shard != null) {
+        changed.addAll(shard.reloadCredentialStore());
+      }
+    }
+    return changed;
+  }
+
+  @Override
+  public void setCacheCheckInterval(long millis) {
+    super.setCacheCheckInterval(millis);
+    for (int i = 0; i < shardCount; i++) {
+      CMFKeystoreService shard = shards.get(i);
+      if (shard != null) {
+        shard.setCacheCheckInterval(millis);
+      }
+    }
+  }
+
+  @Override
+  public void setDurabilityMode(DurabilityMode mode) {
+    super.setDurabilityMode(mode);
+    for (int i = 0; i < shardCount; i++) {
+      CMFKeystoreService shard = shards.get(i);
+      if (shard != null) {
+        shard.setDurabilityMode(mode);
+      }
+    }
+  }
+
+  @Override
+  public void invalidateCredentialCache() {
+    for (int i = 0; i < shardCount; i++) {
+      CMFKeystoreService shard = shards.get(i);
+      if (shard != null) {
+        shard.invalidateCredentialCache();
+      }
+    }
+  }
+
+  /**
+   * Each shard keeps its own filter, see {@link #getShard(int)}.
+   * @return null
+   */
+  @Override
+  public AliasFilter getAliasFilter() {
+    return null;
+  }
+
+  int shardFor(String alias) {
+    return shardFor(alias, shardCount);
+  }
+
+  /**
+   * The shard of an alias, chosen by its lowercased name since JCEKS
+   * stores aliases lowercased and matches them regardless of case.
+   */
+  static int shardFor(String alias, int shards) {
+    return (int) Math.floorMod(IndexedCredentialStore.hash(alias.toLowerCase(Locale.ENGLISH)), (long) shards);
+  }
+
+  static String shardName(String serviceName, int shard, int shards) {
+    return serviceName + "-shard" + shard + "of" + shards;
+  }
+
+  /**
+   * @return the service for one shard, created on first use
+   */
+  CMFKeystoreService getShard(int shard) throws KeystoreServiceException {
+    CMFKeystoreService service = shards.get(shard);
+    if (service == null) {
+      CMFKeystoreService created = new CMFKeystoreService(new File(keyStoreDir).getPath(),
+          shardName(getServiceName(), shard, shardCount), masterService);
+      created.setCacheCheckInterval(TimeUnit.NANOSECONDS.toMillis(getCacheCheckIntervalNanos()));
+      created.setDurabilityMode(getDurabilityMode());
+      created.setOffHeapCredentialStore(offHeapStoreFor(shard));
+      if (!shards.compareAndSet(shard, null, created)) {
+        service = shards.get(shard);
+      }
+      else {
+        service = created;
+      }
+    }
+    return service;
+  }
+
+  <V> Map<Integer, Map<String, V>> group(Map<String, V> credentials) {
+    Map<Integer, Map<String, V>> grouped = new HashMap<Integer, Map<String, V>>();
+    for (Map.Entry<String, V> credential : credentials.entrySet()) {
+      Integer shard = shardFor(credential.getKey());
+      Map<String, V> group = grouped.get(shard);
+      if (group == null) {
+        group = new LinkedHashMap<String, V>();
+        grouped.put(shard, group);
+      }
+      group.put(credential.getKey(), credential.getValue());
+    }
+    return grouped;
+  }
+
+  /**
+   * Atomically replace the layout file, making the given number of shards
+   * the layout of the store.
+   */
+  void writeLayout(int shards) throws IOException {
+    Properties layout = new Properties();
+    layout.setProperty(SHARDS_PROPERTY, Integer.toString(shards));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    layout.store(out, "CMF sharded credential store layout");
+    writeToFile(out.toByteArray(), getCredentialStoreFile());
+  }
+
+  /**
+   * @return the number of shards recorded in the layout file or 0 if there
+   * is none
+   */
+  static int readLayout(File layoutFile) throws KeystoreServiceException {
+    if (!layoutFile.exists()) {
+      return 0;
+    }
+    try {
+      Properties layout = new Properties();
+      layout.load(new ByteArrayInputStream(Files.readAllBytes(layoutFile.toPath())));
+      return Integer.parseInt(layout.getProperty(SHARDS_PROPERTY));
+    } catch (IOException e) {
+      throw new KeystoreServiceException("Unable to read the credential store layout.", e);
+    } catch (NumberFormatException e) {
+      throw new KeystoreServiceException("Invalid credential store layout.", e);
+    }
+  }
+}
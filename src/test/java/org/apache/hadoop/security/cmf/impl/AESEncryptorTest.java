@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.security.cmf.EncryptionResult;
+
+public class AESEncryptorTest extends TestCase {
+
+  public void testFreshIvPerEncryption() throws Exception {
+    AESEncryptor aes = new AESEncryptor("passphrase");
+    EncryptionResult first = aes.encrypt("secret");
+    EncryptionResult second = aes.encrypt("secret");
+    assertFalse(Arrays.equals(first.iv, second.iv));
+    assertFalse(Arrays.equals(first.cipher, second.cipher));
+  }
+
+  public void testDerivedKeysAreCached() throws Exception {
+    AESEncryptor aes = new AESEncryptor("passphrase");
+    assertEquals(1, aes.getKeyCacheMisses());
+    EncryptionResult atom = aes.encrypt("secret");
+    assertEquals("secret", new String(aes.decrypt(atom.salt, atom.iv, atom.cipher), "UTF8"));
+    assertEquals("secret", new String(aes.decrypt(atom.salt, atom.iv, atom.cipher), "UTF8"));
+    assertEquals(1, aes.getKeyCacheMisses());
+    assertEquals(2, aes.getKeyCacheHits());
+
+    aes.getKeyFromPassword("passphrase", new byte[] {1, 2, 3});
+    assertEquals(2, aes.getKeyCacheMisses());
+    aes.close();
+    aes.getKeyFromPassword("passphrase", atom.salt);
+    assertEquals(3, aes.getKeyCacheMisses());
+  }
+
+  public void testConcurrentRoundTrips() throws Exception {
+    final AESEncryptor aes = new AESEncryptor("passphrase");
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t = 0; t < 8; t++) {
+        final int thread = t;
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int i = 0; i < 5; i++) {
+              String plain = "secret-" + thread + "-" + i;
+              EncryptionResult atom = aes.encrypt(plain);
+              if (!plain.equals(new String(aes.decrypt(atom.salt, atom.iv, atom.cipher), "UTF8"))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class AliasFilterTest extends TestCase {
+
+  public void testNoFalseNegativesAndBoundedFalsePositives() throws Exception {
+    List<String> aliases = new ArrayList<String>();
+    for (int i = 0; i < 10000; i++) {
+      aliases.add("alias-" + i);
+    }
+    AliasFilter filter = AliasFilter.of(aliases);
+    for (String alias : aliases) {
+      assertTrue(alias, filter.mightContain(alias));
+    }
+    int falsePositives = 0;
+    int probes = 100000;
+    for (int i = 0; i < probes; i++) {
+      if (filter.mightContain("missing-" + i)) {
+        falsePositives++;
+      }
+    }
+    double expected = filter.getExpectedFalsePositiveRate();
+    assertTrue(expected <= AliasFilter.TARGET_FALSE_POSITIVE_RATE * 1.1);
+    assertTrue("observed " + falsePositives, (double) falsePositives / probes < expected * 2);
+    // roughly 9.6 bits per alias for a 1% rate
+    assertTrue(filter.getMemoryBytes() < 10000 * 10 / 8 + 64);
+    assertEquals(10000, filter.getEntryCount());
+  }
+
+  public void testEmptyFilter() throws Exception {
+    AliasFilter filter = AliasFilter.of(Collections.<String>emptyList());
+    assertFalse(filter.mightContain("anything"));
+  }
+
+  public void testRebuiltWhenStoreChanges() throws Exception {
+    File dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    ks.addCredential("a", "one");
+    AliasFilter before = ks.getAliasFilter();
+    assertTrue(before.mightContain("a"));
+    assertEquals(1, before.getEntryCount());
+    assertNull(ks.getCredential("b"));
+    ks.addCredential("b", "two");
+    AliasFilter after = ks.getAliasFilter();
+    assertNotSame(before, after);
+    assertEquals(2, after.getEntryCount());
+    assertEquals("two", new String(ks.getCredential("b")));
+  }
+}
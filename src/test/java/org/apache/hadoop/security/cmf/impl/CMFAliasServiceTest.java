@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.ConfigResolution;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class CMFAliasServiceTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+  private CMFKeystoreService ks;
+  private CMFAliasService as;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    as = new CMFAliasService(ks);
+  }
+
+  public void testGenerateAliasesInBulk() throws Exception {
+    as.setPasswordGenerator(new PasswordGenerator(24, "0123456789abcdef".toCharArray()));
+    List<String> aliases = as.generateAliases("bulk.", 20);
+    assertEquals(20, aliases.size());
+    assertEquals("bulk.0", aliases.get(0));
+    char[] password = as.getPasswordFromAlias("bulk.19");
+    assertEquals(24, password.length);
+    assertTrue(new String(password).matches("[0-9a-f]+"));
+  }
+
+  public void testResolveAll() throws Exception {
+    as.addAlias("db.password", "secret");
+    as.addAlias("ldap.password", "other");
+
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    config.put("plain", "clear text");
+    config.put("db", "${ALIAS=db.password}");
+    config.put("missing", "${ALIAS=nope}");
+    config.put("ldap", "${ALIAS=ldap.password}");
+    config.put("db.again", "${ALIAS=db.password}");
+
+    ConfigResolution resolution = as.resolveAll(config);
+    assertTrue(resolution.hasErrors());
+    assertEquals(1, resolution.getErrors().size());
+    assertTrue(resolution.getErrors().containsKey("missing"));
+
+    List<String> keys = new ArrayList<String>(resolution.getValues().keySet());
+    assertEquals("plain", keys.get(0));
+    assertEquals("db", keys.get(1));
+    assertEquals("ldap", keys.get(2));
+    assertEquals("db.again", keys.get(3));
+    assertEquals("clear text", new String(resolution.getValues().get("plain")));
+    assertEquals("secret", new String(resolution.getValues().get("db")));
+    assertEquals("other", new String(resolution.getValues().get("ldap")));
+    assertEquals("secret", new String(resolution.getValues().get("db.again")));
+    assertNotSame(resolution.getValues().get("db"), resolution.getValues().get("db.again"));
+  }
+
+  public void testEmbeddedAliasesInConfigValue() throws Exception {
+    as.addAlias("db.user", "scott");
+    as.addAlias("db.pw", "tiger");
+    assertEquals("jdbc:user=scott;pw=tiger",
+        new String(as.getPasswordFromConfigValue("jdbc:user=${ALIAS=db.user};pw=${ALIAS=db.pw}")));
+    assertEquals("clear", new String(as.getPasswordFromConfigValue("clear")));
+    assertNull(as.getPasswordFromConfigValue("${ALIAS=missing}"));
+    assertEquals("dflt", new String(as.getPasswordFromConfigValue("${ALIAS=missing:-dflt}")));
+  }
+
+  public void testClearTextWithDollarsIsUnchanged() throws Exception {
+    assertEquals("a$${b", new String(as.getPasswordFromConfigValue("a$${b")));
+    assertEquals("pa${ss", new String(as.getPasswordFromConfigValue("pa${ss")));
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    config.put("plain", "a$${b");
+    assertEquals("a$${b", new String(as.resolveAll(config).getValues().get("plain")));
+  }
+
+  public void testGenerateOnMissReturnsGeneratedValue() throws Exception {
+    char[] generated = as.getPasswordFromAlias("new.alias", true);
+    assertNotNull(generated);
+    assertEquals(16, generated.length);
+    assertEquals(new String(generated), new String(as.getPasswordFromAlias("new.alias", true)));
+    assertNull(as.getPasswordFromAlias("other.alias", false));
+  }
+
+  public void testConcurrentGenerateOnMiss() throws Exception {
+    // two services over the same store stand in for two processes
+    final CMFAliasService[] services = {
+        as, new CMFAliasService(new CMFKeystoreService(dir.getPath(), "test", ms)) };
+    final int aliases = 5;
+    final int callers = 200;
+    final CountDownLatch start = new CountDownLatch(1);
+    final ConcurrentHashMap<String, Set<String>> seen = new ConcurrentHashMap<String, Set<String>>();
+    final AtomicInteger failures = new AtomicInteger();
+    Thread[] threads = new Thread[callers];
+    for (int i = 0; i < callers; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            String alias = "herd" + (n % aliases);
+            char[] value = services[n % services.length].getPasswordFromAlias(alias, true);
+            if (value == null) {
+              failures.incrementAndGet();
+              return;
+            }
+            seen.putIfAbsent(alias, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+            seen.get(alias).add(new String(value));
+          } catch (InterruptedException e) {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, failures.get());
+    assertEquals(aliases, seen.size());
+    for (Map.Entry<String, Set<String>> entry : seen.entrySet()) {
+      assertEquals(entry.getKey(), 1, entry.getValue().size());
+      ks.invalidateCredentialCache();
+      assertEquals(entry.getValue().iterator().next(), new String(ks.getCredential(entry.getKey())));
+    }
+  }
+}
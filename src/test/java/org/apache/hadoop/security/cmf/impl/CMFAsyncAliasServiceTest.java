@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.security.cmf.AliasService;
+import org.apache.hadoop.security.cmf.ConfigResolution;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+
+public class CMFAsyncAliasServiceTest extends TestCase {
+
+  /**
+   * Counts lookups and holds each one until released.
+   */
+  private static class BlockingAliasService implements AliasService {
+    final AtomicInteger lookups = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile char[] returned;
+
+    public char[] getPasswordFromAlias(String alias) {
+      return getPasswordFromAlias(alias, false);
+    }
+
+    public char[] getPasswordFromAlias(String alias, boolean generate) {
+      lookups.incrementAndGet();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      returned = ("value-" + alias).toCharArray();
+      return returned;
+    }
+
+    public void addAlias(String alias, String value) throws KeystoreServiceException {
+      throw new KeystoreServiceException("read only", null);
+    }
+
+    public void addAlias(String alias, char[] value) throws KeystoreServiceException {
+      throw new KeystoreServiceException("read only", null);
+    }
+
+    public void addAliases(Map<String, String> aliases) {
+    }
+
+    public void generateAlias(String alias) {
+    }
+
+    public void generateAliases(Collection<String> aliases) {
+    }
+
+    public char[] getPasswordFromConfigValue(String configValue) {
+      return configValue.toCharArray();
+    }
+
+    @Override
+    public ConfigResolution resolveAll(Map<String, String> config) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ConfigResolution resolveAll(Iterable<Map.Entry<String, String>> config) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public void testConcurrentLookupsAreMerged() throws Exception {
+    BlockingAliasService backend = new BlockingAliasService();
+    CMFAsyncAliasService async = new CMFAsyncAliasService(backend);
+    List<CompletableFuture<char[]>> futures = new ArrayList<CompletableFuture<char[]>>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(async.getPasswordFromAlias("a"));
+    }
+    backend.release.countDown();
+    char[] first = futures.get(0).get(10, TimeUnit.SECONDS);
+    for (CompletableFuture<char[]> future : futures) {
+      char[] credential = future.get(10, TimeUnit.SECONDS);
+      assertEquals("value-a", new String(credential));
+    }
+    assertNotSame(first, futures.get(1).get());
+    assertEquals(1, backend.lookups.get());
+    // the shared credential is wiped once every caller has its copy
+    assertEquals("       ", new String(backend.returned));
+
+    // a lookup after completion goes to the backend again
+    assertEquals("value-a", new String(async.getPasswordFromAlias("a").get(10, TimeUnit.SECONDS)));
+    assertEquals(2, backend.lookups.get());
+    async.shutdown();
+  }
+
+  public void testGenerateCompletesWithPassword() throws Exception {
+    BlockingAliasService backend = new BlockingAliasService();
+    backend.release.countDown();
+    CMFAsyncAliasService async = new CMFAsyncAliasService(backend);
+    assertEquals("value-a", new String(async.generateAlias("a").get(10, TimeUnit.SECONDS)));
+    async.shutdown();
+  }
+
+  public void testFailuresCompleteExceptionally() throws Exception {
+    CMFAsyncAliasService async = new CMFAsyncAliasService(new BlockingAliasService());
+    try {
+      async.addAlias("a", "b").get(10, TimeUnit.SECONDS);
+      fail("expected the add to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KeystoreServiceException);
+    }
+    async.shutdown();
+  }
+
+  public void testRejectedCallsCompleteExceptionally() throws Exception {
+    BlockingAliasService backend = new BlockingAliasService();
+    backend.release.countDown();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    CMFAsyncAliasService async = new CMFAsyncAliasService(backend, executor);
+    List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+    futures.add(async.getPasswordFromAlias("a"));
+    futures.add(async.getPasswordFromConfigValue("value"));
+    futures.add(async.addAlias("a", "b"));
+    futures.add(async.generateAlias("a"));
+    for (CompletableFuture<?> future : futures) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        fail("expected the call to be rejected");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    }
+
+    // the rejected lookup is not left for later callers to join
+    try {
+      async.getPasswordFromAlias("a").get(10, TimeUnit.SECONDS);
+      fail("expected the lookup to be rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class CMFKeystoreServiceTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  private CMFKeystoreService newKeystoreService() throws Exception {
+    CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    if (!ks.isCredentialStoreAvailable()) {
+      ks.createCredentialStore();
+    }
+    return ks;
+  }
+
+  public void testCachedCredentialSeesLocalWrites() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    assertNull(ks.getCredential("a"));
+    ks.addCredential("a", "one");
+    assertEquals("one", new String(ks.getCredential("a")));
+    ks.addCredential("a", "two");
+    assertEquals("two", new String(ks.getCredential("a")));
+  }
+
+  public void testCachedCredentialIsCopied() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    ks.addCredential("a", "secret");
+    char[] first = ks.getCredential("a");
+    first[0] = 'X';
+    assertEquals("secret", new String(ks.getCredential("a")));
+  }
+
+  public void testMixedCaseAliases() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    ks.addCredential("MyAlias", "one");
+    assertEquals("one", new String(ks.getCredential("MyAlias")));
+    assertEquals("one", new String(ks.getCredential("myalias")));
+    CMFKeystoreService reader = newKeystoreService();
+    assertEquals("one", new String(reader.getCredential("MyAlias")));
+    assertEquals("one", new String(reader.getCredentials(Arrays.asList("MYALIAS")).get("MYALIAS")));
+  }
+
+  public void testAddCredentialFromChars() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    char[] value = "p\u00e4ssw\u00f6rd\u20ac".toCharArray();
+    ks.addCredential("a", value);
+    Arrays.fill(value, ' ');
+    assertEquals("p\u00e4ssw\u00f6rd\u20ac", new String(ks.getCredential("a")));
+    ks.invalidateCredentialCache();
+    assertEquals("p\u00e4ssw\u00f6rd\u20ac", new String(ks.getCredential("a")));
+  }
+
+  public void testCacheReloadsOnExternalChange() throws Exception {
+    CMFKeystoreService reader = newKeystoreService();
+    CMFKeystoreService writer = newKeystoreService();
+    reader.setCacheCheckInterval(0);
+    writer.addCredential("a", "one");
+    assertEquals("one", new String(reader.getCredential("a")));
+    writer.addCredential("a", "changed");
+    assertEquals("changed", new String(reader.getCredential("a")));
+  }
+
+  public void testAddCredentials() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    for (int i = 0; i < 20; i++) {
+      credentials.put("alias" + i, "value" + i);
+    }
+    ks.addCredentials(credentials);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("value" + i, new String(ks.getCredential("alias" + i)));
+    }
+  }
+
+  public void testWriteReplacesStoreFile() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    File store = new File(dir, "test-credentials.jceks");
+    Object before = Files.readAttributes(store.toPath(), BasicFileAttributes.class).fileKey();
+    ks.addCredential("a", "one");
+    Object after = Files.readAttributes(store.toPath(), BasicFileAttributes.class).fileKey();
+    if (before != null) {
+      // renamed into place rather than rewritten
+      assertFalse(before.equals(after));
+    }
+    File[] leftovers = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.endsWith(".tmp");
+      }
+    });
+    assertEquals(0, leftovers.length);
+  }
+
+  public void testReadersDuringWrites() throws Exception {
+    final CMFKeystoreService writer = newKeystoreService();
+    final CMFKeystoreService reader = newKeystoreService();
+    reader.setCacheCheckInterval(0);
+    writer.addCredential("stable", "value");
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] readers = new Thread[2];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          while (!done.get()) {
+            char[] value = reader.getCredential("stable");
+            if (value == null || !"value".equals(new String(value))) {
+              failure.compareAndSet(null, value == null ? "null" : new String(value));
+            }
+          }
+        }
+      };
+      readers[i].start();
+    }
+    try {
+      for (int i = 0; i < 10; i++) {
+        writer.addCredential("churn" + i, "value" + i);
+      }
+    } finally {
+      done.set(true);
+      for (Thread t : readers) {
+        t.join();
+      }
+    }
+    assertNull(failure.get());
+    assertEquals("value9", new String(reader.getCredential("churn9")));
+  }
+
+  public void testAvailabilityIsProbed() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    ks.addCredential("a", "one");
+    File store = ks.getCredentialStoreFile();
+    assertTrue(BaseKeystoreService.getChecksumFile(store).exists());
+    assertTrue(newKeystoreService().isCredentialStoreAvailable());
+
+    // a damaged body fails the checksum and then the full load
+    byte[] contents = Files.readAllBytes(store.toPath());
+    contents[contents.length / 2] ^= 1;
+    Files.write(store.toPath(), contents);
+    try {
+      new CMFKeystoreService(dir.getPath(), "test", ms).isCredentialStoreAvailable();
+      fail("expected a damaged store to be reported");
+    } catch (KeystoreServiceException e) {
+    }
+
+    Files.write(store.toPath(), "not a keystore".getBytes("UTF8"));
+    try {
+      new CMFKeystoreService(dir.getPath(), "test", ms).isCredentialStoreAvailable();
+      fail("expected a foreign file to be reported");
+    } catch (KeystoreServiceException e) {
+    }
+  }
+
+  public void testFullVerificationLoadsOnce() throws Exception {
+    newKeystoreService().addCredential("a", "one");
+    CMFMetrics metrics = CMFMetrics.getInstance();
+    boolean enabled = metrics.isEnabled();
+    metrics.setEnabled(true);
+    try {
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+      long loads = metrics.getOperationCount("LOAD");
+      assertTrue(ks.isCredentialStoreAvailable());
+      assertEquals(loads, metrics.getOperationCount("LOAD"));
+
+      ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+      ks.setFullVerification(true);
+      assertTrue(ks.isCredentialStoreAvailable());
+      assertEquals(loads + 1, metrics.getOperationCount("LOAD"));
+      assertEquals("one", new String(ks.getCredential("a")));
+      assertEquals(loads + 1, metrics.getOperationCount("LOAD"));
+
+      // without a checksum the probe falls back to the same single load
+      BaseKeystoreService.getChecksumFile(ks.getCredentialStoreFile()).delete();
+      ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+      assertTrue(ks.isCredentialStoreAvailable());
+      assertEquals("one", new String(ks.getCredential("a")));
+      assertEquals(loads + 2, metrics.getOperationCount("LOAD"));
+    } finally {
+      metrics.setEnabled(enabled);
+    }
+  }
+
+  public void testConcurrentWritesAreGroupCommitted() throws Exception {
+    final CMFKeystoreService ks = newKeystoreService();
+    ks.setGroupCommit(50, 100);
+    CMFMetrics metrics = CMFMetrics.getInstance();
+    boolean enabled = metrics.isEnabled();
+    metrics.setEnabled(true);
+    long writesBefore = metrics.getOperationCount("ADD");
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    Thread[] writers = new Thread[16];
+    for (int i = 0; i < writers.length; i++) {
+      final int n = i;
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            ks.addCredential("writer" + n, "value" + n);
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    start.countDown();
+    for (Thread t : writers) {
+      t.join();
+    }
+    long writes = metrics.getOperationCount("ADD") - writesBefore;
+    metrics.setEnabled(enabled);
+    assertNull(failure.get());
+    assertTrue("expected fewer store writes than writers: " + writes, writes < writers.length);
+
+    CMFKeystoreService reader = newKeystoreService();
+    for (int i = 0; i < writers.length; i++) {
+      assertEquals("value" + i, new String(reader.getCredential("writer" + i)));
+    }
+  }
+
+  public void testWritesToACorruptStoreFail() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    Files.write(ks.getCredentialStoreFile().toPath(), "not a keystore".getBytes("UTF8"));
+    Map<String, char[]> credentials = new LinkedHashMap<String, char[]>();
+    credentials.put("a", "one".toCharArray());
+    try {
+      ks.submitCredentialValues(credentials).get(10, TimeUnit.SECONDS);
+      fail("expected the write to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KeystoreServiceException);
+    }
+    try {
+      ks.addCredential("a", "one");
+      fail("expected the write to fail");
+    } catch (KeystoreServiceException e) {
+      // expected
+    }
+  }
+
+  public void testSubmittedWritesAreDurableOnCompletion() throws Exception {
+    CMFKeystoreService ks = newKeystoreService();
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[20];
+    for (int i = 0; i < futures.length; i++) {
+      Map<String, char[]> credentials = new LinkedHashMap<String, char[]>();
+      credentials.put("submitted" + i, ("value" + i).toCharArray());
+      futures[i] = ks.submitCredentialValues(credentials);
+    }
+    CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    CMFKeystoreService reader = newKeystoreService();
+    for (int i = 0; i < futures.length; i++) {
+      assertEquals("value" + i, new String(reader.getCredential("submitted" + i)));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+import org.apache.hadoop.security.cmf.MetricsSink;
+
+public class CMFMetricsTest extends TestCase {
+
+  private CMFMetrics metrics;
+  private CMFKeystoreService ks;
+
+  @Override
+  protected void setUp() throws Exception {
+    File dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    metrics = CMFMetrics.getInstance();
+    metrics.reset();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    metrics.setEnabled(false);
+    metrics.reset();
+  }
+
+  public void testDisabledRecordsNothing() throws Exception {
+    metrics.setEnabled(false);
+    ks.addCredential("a", "one");
+    ks.getCredential("a");
+    assertEquals(0, metrics.getOperationCount("GET"));
+    assertEquals(0, metrics.getOperationCount("ADD"));
+    assertEquals(0, metrics.getCacheHits() + metrics.getCacheMisses());
+  }
+
+  public void testOperationsAndCache() throws Exception {
+    metrics.setEnabled(true);
+    final AtomicInteger sunk = new AtomicInteger();
+    MetricsSink sink = new MetricsSink() {
+      @Override
+      public void recordOperation(String operation, long latencyNanos) {
+        sunk.incrementAndGet();
+      }
+
+      @Override
+      public void recordCacheAccess(boolean hit) {
+      }
+    };
+    metrics.addSink(sink);
+    try {
+      ks.addCredential("a", "one");
+      ks.getCredential("a");
+      ks.getCredential("a");
+    } finally {
+      metrics.removeSink(sink);
+    }
+    assertEquals(1, metrics.getOperationCount("ADD"));
+    assertEquals(1, metrics.getOperationCount("STORE"));
+    assertEquals(2, metrics.getOperationCount("GET"));
+    assertEquals(1, metrics.getOperationCount("LOAD"));
+    assertEquals(1, metrics.getCacheMisses());
+    assertEquals(1, metrics.getCacheHits());
+    assertEquals(0.5, metrics.getCacheHitRatio(), 0.0001);
+    assertEquals(1, metrics.getStoreEntries());
+    assertTrue(metrics.getStoreBytes() > 0);
+    assertTrue(metrics.getLastReloadTime() > 0);
+    assertTrue(metrics.getMaxLatencyNanos("GET") >= metrics.getLatencyPercentileNanos("GET", 50));
+    assertTrue(sunk.get() > 0);
+  }
+
+  public void testHistogramPercentiles() throws Exception {
+    CMFMetrics.LatencyHistogram histogram = new CMFMetrics.LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(100);
+    }
+    histogram.record(1000000);
+    assertEquals(100, histogram.getCount());
+    assertEquals(127, histogram.getPercentile(50));
+    assertEquals(127, histogram.getPercentile(99));
+    assertEquals(1000000, histogram.getPercentile(100));
+    assertEquals(1000000, histogram.getMax());
+  }
+
+  public void testMBean() throws Exception {
+    ObjectName name = metrics.registerMBean();
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertTrue(server.isRegistered(name));
+      server.setAttribute(name, new javax.management.Attribute("Enabled", Boolean.TRUE));
+      assertTrue(metrics.isEnabled());
+      ks.getCredential("missing");
+      assertEquals(Long.valueOf(1), server.invoke(name, "getOperationCount",
+          new Object[] {"GET"}, new String[] {String.class.getName()}));
+    } finally {
+      metrics.unregisterMBean();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ConfigValueTemplateTest extends TestCase {
+
+  private Map<String, char[]> credentials;
+
+  @Override
+  protected void setUp() throws Exception {
+    credentials = new HashMap<String, char[]>();
+    credentials.put("db.user", "scott".toCharArray());
+    credentials.put("db.pw", "tiger".toCharArray());
+  }
+
+  private String expand(String value) {
+    char[] expanded = ConfigValueTemplate.compile(value).expand(credentials);
+    return expanded == null ? null : new String(expanded);
+  }
+
+  public void testClearText() throws Exception {
+    assertEquals("plain", expand("plain"));
+    assertEquals("", expand(""));
+    assertFalse(ConfigValueTemplate.compile("plain").hasAliases());
+    assertEquals("cost $5 ${HOME}", expand("cost $5 ${HOME}"));
+    assertEquals("${ALIAS=db.pw", expand("${ALIAS=db.pw"));
+    assertEquals("${ALIAS=}", expand("${ALIAS=}"));
+  }
+
+  public void testSingleReference() throws Exception {
+    assertEquals("tiger", expand("${ALIAS=db.pw}"));
+    assertNull(expand("${ALIAS=missing}"));
+  }
+
+  public void testEmbeddedReferences() throws Exception {
+    ConfigValueTemplate template = ConfigValueTemplate.compile("jdbc:user=${ALIAS=db.user};pw=${ALIAS=db.pw}");
+    assertEquals(2, template.getAliases().size());
+    assertEquals("jdbc:user=scott;pw=tiger", new String(template.expand(credentials)));
+    assertEquals("scott/scott", expand("${ALIAS=db.user}/${ALIAS=db.user}"));
+  }
+
+  public void testDefaultsAndEscapes() throws Exception {
+    assertEquals("fallback", expand("${ALIAS=missing:-fallback}"));
+    assertEquals("", expand("${ALIAS=missing:-}"));
+    assertEquals("tiger", expand("${ALIAS=db.pw:-fallback}"));
+    assertEquals("${ALIAS=db.pw}", expand("$${ALIAS=db.pw}"));
+    assertEquals("pa$$word", expand("pa$$word"));
+    // only a value with a reference is unescaped
+    assertEquals("a$${b", expand("a$${b"));
+    assertEquals("a${b=tiger", expand("a$${b=${ALIAS=db.pw}"));
+    assertFalse(ConfigValueTemplate.compile("$${ALIAS=db.pw}").hasAliases());
+    ConfigValueTemplate template = ConfigValueTemplate.compile("a=${ALIAS=missing};b=${ALIAS=db.pw}");
+    assertEquals("missing", template.getUnresolvedAlias(credentials));
+  }
+
+  public void testResolverResultsAreWiped() throws Exception {
+    final char[] resolved = "secret".toCharArray();
+    char[] expanded = ConfigValueTemplate.compile("pw=${ALIAS=x}").expand(new ConfigValueTemplate.Resolver() {
+      @Override
+      public char[] resolve(String alias) {
+        return resolved;
+      }
+    });
+    assertEquals("pw=secret", new String(expanded));
+    assertEquals("      ", new String(resolved));
+  }
+
+  public void testLongValuesGrowTheBuffer() throws Exception {
+    StringBuilder value = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      value.append("x=${ALIAS=db.pw};");
+      expected.append("x=tiger;");
+    }
+    assertEquals(expected.toString(), expand(value.toString()));
+    assertEquals("short", expand("short"));
+  }
+}
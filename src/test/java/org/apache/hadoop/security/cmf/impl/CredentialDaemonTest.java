@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.ConfigResolution;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class CredentialDaemonTest extends TestCase {
+
+  private File dir;
+  private CredentialDaemon daemon;
+  private File endpoint;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    credentials.put("a", "one");
+    credentials.put("b", "two");
+    ks.addCredentials(credentials);
+    daemon = new CredentialDaemon(new CMFAliasService(ks), 4);
+    endpoint = DaemonProtocol.endpointFile(dir.getPath(), "test");
+    daemon.start(0, endpoint);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    daemon.close();
+  }
+
+  public void testLookupsAndResolveAll() throws Exception {
+    RemoteAliasService remote = new RemoteAliasService(dir.getPath(), "test", 1000);
+    try {
+      assertEquals("one", new String(remote.getPasswordFromAlias("a")));
+      assertNull(remote.getPasswordFromAlias("missing"));
+      assertEquals("x=two", new String(remote.getPasswordFromConfigValue("x=${ALIAS=b}")));
+
+      Map<String, String> config = new LinkedHashMap<String, String>();
+      config.put("db", "${ALIAS=a}");
+      config.put("plain", "clear");
+      config.put("broken", "${ALIAS=nope}");
+      ConfigResolution resolution = remote.resolveAll(config);
+      assertEquals("one", new String(resolution.getValues().get("db")));
+      assertEquals("clear", new String(resolution.getValues().get("plain")));
+      assertTrue(resolution.getErrors().containsKey("broken"));
+
+      char[] generated = remote.getPasswordFromAlias("generated", true);
+      assertEquals(PasswordGenerator.DEFAULT_LENGTH, generated.length);
+      assertEquals(new String(generated), new String(remote.getPasswordFromAlias("generated")));
+      try {
+        remote.addAlias("c", "three");
+        fail("the daemon accepted a change");
+      } catch (KeystoreServiceException e) {
+        // expected
+      }
+    } finally {
+      remote.close();
+    }
+  }
+
+  public void testWrongTokenIsRejected() throws Exception {
+    File forged = new File(dir, "forged.properties");
+    char[] zeros = new char[DaemonProtocol.TOKEN_LENGTH * 2];
+    Arrays.fill(zeros, '0');
+    FileUtils.writeStringToFile(forged, "port=" + daemon.getPort() + "\ntoken=" + new String(zeros) + "\n", "UTF-8");
+    RemoteAliasService remote = new RemoteAliasService(forged, 0);
+    try {
+      remote.getPasswordsFromAliases(Collections.singleton("a"), false);
+      fail("a client with the wrong token was served");
+    } catch (KeystoreServiceException e) {
+      // expected
+    } finally {
+      remote.close();
+    }
+  }
+
+  public void testExpiredCredentialsAreDropped() throws Exception {
+    RemoteAliasService remote = new RemoteAliasService(endpoint, 50);
+    try {
+      assertEquals("one", new String(remote.getPasswordFromAlias("a")));
+      assertEquals(1, remote.getCachedCount());
+      Thread.sleep(100);
+      // a lookup of another alias sweeps out the expired one
+      assertEquals("two", new String(remote.getPasswordFromAlias("b")));
+      assertEquals(1, remote.getCachedCount());
+    } finally {
+      remote.close();
+    }
+    assertEquals(0, remote.getCachedCount());
+  }
+
+  public void testOversizedFrameBeforeTokenIsRejected() throws Exception {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+    try {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(DaemonProtocol.MAX_FRAME);
+      out.flush();
+      assertEquals(-1, socket.getInputStream().read());
+    } finally {
+      socket.close();
+    }
+  }
+
+  public void testLargeLookupIsSplit() throws Exception {
+    List<String> aliases = new ArrayList<String>();
+    for (int i = 0; i < 3 * RemoteAliasService.MAX_ALIASES_PER_REQUEST; i++) {
+      aliases.add("missing-" + i);
+    }
+    aliases.add("a");
+    aliases.add("b");
+    RemoteAliasService remote = new RemoteAliasService(endpoint, 0);
+    try {
+      Map<String, char[]> credentials = remote.getPasswordsFromAliases(aliases, false);
+      assertEquals(2, credentials.size());
+      assertEquals("one", new String(credentials.get("a")));
+      assertEquals("two", new String(credentials.get("b")));
+    } finally {
+      remote.close();
+    }
+  }
+
+  public void testMalformedRequestClosesOnlyItsConnection() throws Exception {
+    RemoteAliasService existing = new RemoteAliasService(endpoint, 0);
+    try {
+      assertEquals("one", new String(existing.getPasswordFromAlias("a")));
+
+      byte[] token = DaemonProtocol.token(DaemonProtocol.readEndpoint(endpoint));
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort());
+      try {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        out.writeInt(token.length);
+        out.write(token);
+        in.readFully(new byte[in.readInt()]);
+        // an authenticated lookup claiming -1 aliases
+        out.writeInt(4 + 1 + 1 + 4);
+        out.writeInt(1);
+        out.writeByte(DaemonProtocol.OP_LOOKUP);
+        out.writeByte(0);
+        out.writeInt(-1);
+        out.flush();
+        assertEquals(-1, in.read());
+      } finally {
+        socket.close();
+      }
+
+      assertEquals("two", new String(existing.getPasswordFromAlias("b")));
+      RemoteAliasService fresh = new RemoteAliasService(endpoint, 0);
+      try {
+        assertEquals("one", new String(fresh.getPasswordFromAlias("a")));
+      } finally {
+        fresh.close();
+      }
+    } finally {
+      existing.close();
+    }
+  }
+
+  /**
+   * Many clients, each with its own connection as separate processes would
+   * have, pipelining single and batched lookups.
+   */
+  public void testPipelinedLoad() throws Exception {
+    final int clients = 8;
+    final int rounds = 500;
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(clients);
+    for (int c = 0; c < clients; c++) {
+      new Thread() {
+        @Override
+        public void run() {
+          RemoteAliasService remote = new RemoteAliasService(endpoint, 0);
+          try {
+            List<CompletableFuture<char[][]>> inflight = new ArrayList<CompletableFuture<char[][]>>();
+            for (int i = 0; i < rounds; i++) {
+              inflight.add(remote.lookup(Collections.singletonList(i % 2 == 0 ? "a" : "b"), false));
+              inflight.add(remote.lookup(Arrays.asList("a", "missing", "b"), false));
+            }
+            for (int i = 0; i < inflight.size(); i++) {
+              char[][] credentials = inflight.get(i).get(30, TimeUnit.SECONDS);
+              String expected = (i / 2) % 2 == 0 ? "one" : "two";
+              boolean ok = i % 2 == 0
+                  ? expected.equals(new String(credentials[0]))
+                  : "one".equals(new String(credentials[0])) && credentials[1] == null
+                    && "two".equals(new String(credentials[2]));
+              if (!ok) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+            failures.incrementAndGet();
+          } finally {
+            remote.close();
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    assertTrue(done.await(60, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class CredentialStoreRegistryTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    for (String service : new String[] {"one", "two", "three"}) {
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), service, ms);
+      ks.createCredentialStore();
+      ks.addCredential("a", "secret-" + service);
+    }
+  }
+
+  private static Map<String, CredentialStoreRegistry.ServiceStats> statsOf(CredentialStoreRegistry registry) {
+    Map<String, CredentialStoreRegistry.ServiceStats> stats = new HashMap<String, CredentialStoreRegistry.ServiceStats>();
+    for (CredentialStoreRegistry.ServiceStats s : registry.getStats()) {
+      stats.put(s.getServiceName(), s);
+    }
+    return stats;
+  }
+
+  public void testLeastRecentlyUsedStoreIsEvicted() throws Exception {
+    CredentialStoreRegistry registry = new CredentialStoreRegistry(dir.getPath(), ms, 2, Long.MAX_VALUE);
+    assertEquals("secret-one", new String(registry.getCredential("one", "a")));
+    assertEquals("secret-two", new String(registry.getCredential("two", "a")));
+    assertNull(registry.getCredential("two", "missing"));
+    assertEquals(2, registry.getOpenStoreCount());
+    assertTrue(registry.getCachedBytes() > 0);
+    assertEquals("secret-three", new String(registry.getCredential("three", "a")));
+    assertEquals(2, registry.getOpenStoreCount());
+
+    Map<String, CredentialStoreRegistry.ServiceStats> stats = statsOf(registry);
+    assertFalse(stats.get("one").isOpen());
+    assertEquals(1, stats.get("one").getEvictions());
+    assertEquals(0, stats.get("one").getCachedBytes());
+    assertEquals(2, stats.get("two").getLookups());
+    assertEquals(1, stats.get("two").getMisses());
+
+    assertEquals("secret-one", new String(registry.getCredential("one", "a")));
+    assertEquals(2, statsOf(registry).get("one").getOpens());
+    assertFalse(statsOf(registry).get("two").isOpen());
+    registry.close();
+    assertEquals(0, registry.getOpenStoreCount());
+    assertEquals(0, registry.getCachedBytes());
+  }
+
+  public void testWeightBoundAndIdleEviction() throws Exception {
+    CredentialStoreRegistry registry = new CredentialStoreRegistry(dir.getPath(), ms, 10, 1);
+    registry.getCredential("one", "a");
+    registry.getCredential("two", "a");
+    // over the byte budget, only the store in use stays open
+    assertEquals(1, registry.getOpenStoreCount());
+    assertTrue(statsOf(registry).get("two").isOpen());
+
+    registry = new CredentialStoreRegistry(dir.getPath(), ms, 10, Long.MAX_VALUE);
+    registry.getCredential("one", "a");
+    registry.getCredential("two", "a");
+    Thread.sleep(5);
+    assertEquals(2, registry.evictIdle(1));
+    assertEquals(0, registry.getOpenStoreCount());
+    assertEquals(0, registry.getCachedBytes());
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.CredentialChangeListener;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class CredentialStoreWatcherTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  public void testReloadReportsChangedAliasesAndKeepsGoodSnapshot() throws Exception {
+    CMFKeystoreService writer = new CMFKeystoreService(dir.getPath(), "test", ms);
+    writer.createCredentialStore();
+    writer.addCredential("a", "one");
+    writer.addCredential("b", "two");
+    CMFKeystoreService reader = new CMFKeystoreService(dir.getPath(), "test", ms);
+    reader.setCacheCheckInterval(60000);
+    assertEquals("one", new String(reader.getCredential("a")));
+
+    assertTrue(reader.reloadCredentialStore().isEmpty());
+    Thread.sleep(5);
+    writer.addCredential("a", "uno");
+    writer.addCredential("c", "three");
+    assertEquals(new HashSet<String>(Arrays.asList("a", "c")), reader.reloadCredentialStore());
+    assertEquals("uno", new String(reader.getCredential("a")));
+
+    FileUtils.writeStringToFile(writer.getCredentialStoreFile(), "not a keystore", "UTF-8");
+    try {
+      reader.reloadCredentialStore();
+      fail("loaded a corrupt store");
+    } catch (KeystoreServiceException e) {
+      // expected
+    }
+    assertEquals("three", new String(reader.getCredential("c")));
+  }
+
+  public void testWatcherReloadsInBackground() throws Exception {
+    CMFKeystoreService writer = new CMFKeystoreService(dir.getPath(), "test", ms);
+    writer.createCredentialStore();
+    writer.addCredential("a", "one");
+    CMFKeystoreService reader = new CMFKeystoreService(dir.getPath(), "test", ms);
+    reader.setCacheCheckInterval(60000);
+    assertEquals("one", new String(reader.getCredential("a")));
+
+    final BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<Set<String>>();
+    CredentialStoreWatcher watcher = new CredentialStoreWatcher(50);
+    try {
+      watcher.addListener(new CredentialChangeListener() {
+        @Override
+        public void credentialsChanged(String serviceName, Set<String> aliases) {
+          assertEquals("test", serviceName);
+          changes.add(aliases);
+        }
+      });
+      watcher.watch(reader);
+      Thread.sleep(5);
+      writer.addCredential("a", "rotated");
+      Set<String> changed = changes.poll(30, TimeUnit.SECONDS);
+      assertNotNull("no change was reported", changed);
+      assertTrue(changed.contains("a"));
+      assertEquals("rotated", new String(reader.getCredential("a")));
+    } finally {
+      watcher.close();
+    }
+  }
+
+  public void testWatchRejectsServicesThatCannotReload() throws Exception {
+    CredentialStoreWatcher watcher = new CredentialStoreWatcher(50);
+    try {
+      JournalingKeystoreService journaling = new JournalingKeystoreService(dir.getPath(), "journaling", ms);
+      try {
+        watcher.watch(journaling);
+        fail("watched a journaling store");
+      } catch (IllegalArgumentException e) {
+        // expected
+      } finally {
+        journaling.close();
+      }
+      try {
+        watcher.watch(new ShardedKeystoreService(dir.getPath(), "sharded", ms));
+        fail("watched a sharded store");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      watcher.close();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+
+import junit.framework.TestCase;
+
+public class CryptoPrimitivesTest extends TestCase {
+
+  private static final String DIGEST = "SHA-256";
+
+  @Override
+  protected void tearDown() throws Exception {
+    CryptoPrimitives.unpin(CryptoPrimitives.MESSAGE_DIGEST, DIGEST);
+  }
+
+  public void testInstancesAreThreadConfined() throws Exception {
+    final Cipher cipher = CryptoPrimitives.getCipher("AES/CBC/PKCS5Padding");
+    assertSame(cipher, CryptoPrimitives.getCipher("AES/CBC/PKCS5Padding"));
+    assertNotSame(cipher, CryptoPrimitives.newCipher("AES/CBC/PKCS5Padding"));
+    assertSame(cipher.getProvider(),
+        CryptoPrimitives.getProvider(CryptoPrimitives.CIPHER, "AES/CBC/PKCS5Padding"));
+
+    final AtomicReference<Cipher> other = new AtomicReference<Cipher>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other.set(CryptoPrimitives.getCipher("AES/CBC/PKCS5Padding"));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    t.join();
+    assertNotNull(other.get());
+    assertNotSame(cipher, other.get());
+  }
+
+  public void testDigestIsResetBetweenUses() throws Exception {
+    MessageDigest digest = CryptoPrimitives.getMessageDigest(DIGEST);
+    digest.update(new byte[] { 1, 2, 3 });
+    byte[] expected = MessageDigest.getInstance(DIGEST).digest(new byte[] { 4 });
+    assertTrue(MessageDigest.isEqual(expected, CryptoPrimitives.getMessageDigest(DIGEST).digest(new byte[] { 4 })));
+  }
+
+  @SuppressWarnings("serial")
+  public void testPinnedProviderIsUsed() throws Exception {
+    Provider pinned = new Provider("CMFTest", 1.0, "SHA-256 under another name") {
+      {
+        put("MessageDigest." + DIGEST, "sun.security.provider.SHA2$SHA256");
+      }
+    };
+    MessageDigest before = CryptoPrimitives.getMessageDigest(DIGEST);
+    assertNotSame(pinned, before.getProvider());
+
+    CryptoPrimitives.pin(CryptoPrimitives.MESSAGE_DIGEST, DIGEST, pinned);
+    MessageDigest after = CryptoPrimitives.getMessageDigest(DIGEST);
+    assertSame(pinned, after.getProvider());
+    assertTrue(MessageDigest.isEqual(before.digest(new byte[] { 1 }), after.digest(new byte[] { 1 })));
+
+    CryptoPrimitives.unpin(CryptoPrimitives.MESSAGE_DIGEST, DIGEST);
+    assertNotSame(pinned, CryptoPrimitives.getMessageDigest(DIGEST).getProvider());
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class IndexedKeystoreServiceTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  private IndexedKeystoreService newIndexedService() throws Exception {
+    IndexedKeystoreService ks = new IndexedKeystoreService(dir.getPath(), "test", ms);
+    if (!ks.isCredentialStoreAvailable()) {
+      ks.createCredentialStore();
+    }
+    return ks;
+  }
+
+  public void testAddAndGet() throws Exception {
+    IndexedKeystoreService ks = newIndexedService();
+    assertNull(ks.getCredential("a"));
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    for (int i = 0; i < 500; i++) {
+      credentials.put("alias" + i, "value" + i);
+    }
+    ks.addCredentials(credentials);
+    ks.addCredential("alias7", "changed");
+    ks.addCredential("\u00e9t\u00e9", "\u00fcber");
+
+    IndexedKeystoreService reopened = newIndexedService();
+    for (int i = 0; i < 500; i++) {
+      assertEquals(i == 7 ? "changed" : "value" + i, new String(reopened.getCredential("alias" + i)));
+    }
+    assertEquals("\u00fcber", new String(reopened.getCredential("\u00e9t\u00e9")));
+    assertNull(reopened.getCredential("alias500"));
+  }
+
+  public void testSubmittedWritesGoToTheIndexedStore() throws Exception {
+    IndexedKeystoreService ks = newIndexedService();
+    ks.addCredential("a", "old");
+    ks.submitCredentialValues(Collections.singletonMap("a", "new".toCharArray())).get(10, TimeUnit.SECONDS);
+    assertEquals("new", new String(ks.getCredential("a")));
+    assertEquals("new", new String(newIndexedService().getCredential("a")));
+  }
+
+  public void testConvertToAndFromJceks() throws Exception {
+    CMFKeystoreService jceks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    jceks.createCredentialStore();
+    jceks.addCredential("a", "one");
+    jceks.addCredential("b", "two");
+
+    File jceksFile = new File(dir, "test-credentials.jceks");
+    File indexedFile = new File(dir, "test-credentials.idx");
+    IndexedCredentialStoreConverter.toIndexed(jceksFile, indexedFile, ms.getMasterSecret());
+    IndexedKeystoreService indexed = newIndexedService();
+    assertEquals("one", new String(indexed.getCredential("a")));
+    assertEquals("two", new String(indexed.getCredential("b")));
+
+    indexed.addCredential("c", "three");
+    IndexedCredentialStoreConverter.toJceks(indexedFile, jceksFile, ms.getMasterSecret());
+    CMFKeystoreService converted = new CMFKeystoreService(dir.getPath(), "test", ms);
+    assertEquals("three", new String(converted.getCredential("c")));
+    assertEquals("one", new String(converted.getCredential("a")));
+  }
+
+  public void testReloadReportsChangedAliases() throws Exception {
+    IndexedKeystoreService writer = newIndexedService();
+    writer.addCredential("a", "one");
+    writer.addCredential("b", "two");
+    IndexedKeystoreService reader = newIndexedService();
+    reader.setCacheCheckInterval(60000);
+    assertEquals("one", new String(reader.getCredential("a")));
+    assertTrue(reader.reloadCredentialStore().isEmpty());
+
+    Thread.sleep(1100);
+    writer.addCredential("A", "uno");
+    writer.addCredential("c", "three");
+    assertEquals("one", new String(reader.getCredential("a")));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "c")), reader.reloadCredentialStore());
+    assertEquals("uno", new String(reader.getCredential("a")));
+    assertEquals("two", new String(reader.getCredential("b")));
+  }
+
+  public void testConcurrentWritersDoNotLoseUpdates() throws Exception {
+    newIndexedService();
+    final IndexedKeystoreService[] services = new IndexedKeystoreService[] {
+        new IndexedKeystoreService(dir.getPath(), "test", ms), new IndexedKeystoreService(dir.getPath(), "test", ms)};
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread[] writers = new Thread[services.length];
+    for (int w = 0; w < writers.length; w++) {
+      final int writer = w;
+      writers[w] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20; i++) {
+              services[writer].addCredential("writer" + writer + "-" + i, "value" + i);
+            }
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      });
+      writers[w].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    IndexedKeystoreService reopened = newIndexedService();
+    for (int w = 0; w < writers.length; w++) {
+      for (int i = 0; i < 20; i++) {
+        assertEquals("value" + i, new String(reopened.getCredential("writer" + w + "-" + i)));
+      }
+    }
+    // every writer renamed its own temporary file into place
+    assertEquals(0, dir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File parent, String name) {
+        return name.endsWith(".tmp");
+      }
+    }).length);
+  }
+
+  public void testCorruptIndexIsReported() throws Exception {
+    IndexedKeystoreService ks = newIndexedService();
+    ks.addCredential("a", "one");
+    File file = new File(dir, "test-credentials.idx");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // the entry offset of the only index slot, after the 36 byte header
+      raf.seek(36 + 8);
+      raf.writeLong(raf.length() + 100);
+    } finally {
+      raf.close();
+    }
+    IndexedCredentialStore store = IndexedCredentialStore.open(file, ms.getMasterSecret(), null);
+    try {
+      store.get("a");
+      fail("read a corrupt entry");
+    } catch (IOException e) {
+      // expected
+    }
+    assertNull(newIndexedService().getCredential("a"));
+  }
+
+  public void testMixedCaseAliasesAfterConversion() throws Exception {
+    CMFKeystoreService jceks = new CMFKeystoreService(dir.getPath(), "test", ms);
+    jceks.createCredentialStore();
+    jceks.addCredential("MyAlias", "one");
+    assertEquals("one", new String(jceks.getCredential("MyAlias")));
+
+    IndexedCredentialStoreConverter.toIndexed(new File(dir, "test-credentials.jceks"),
+        new File(dir, "test-credentials.idx"), ms.getMasterSecret());
+    IndexedKeystoreService indexed = newIndexedService();
+    assertEquals("one", new String(indexed.getCredential("MyAlias")));
+    assertEquals("one", new String(indexed.getCredential("myalias")));
+
+    indexed.addCredential("MYALIAS", "two");
+    indexed.addCredential("Other", "three");
+    IndexedKeystoreService reopened = newIndexedService();
+    assertEquals("two", new String(reopened.getCredential("myAlias")));
+    assertEquals("three", new String(reopened.getCredential("other")));
+    assertEquals(2, reopened.getCredentialStore().size());
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.KeystoreServiceException;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class JournalingKeystoreServiceTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  private JournalingKeystoreService newJournalingService() throws Exception {
+    JournalingKeystoreService ks = new JournalingKeystoreService(dir.getPath(), "test", ms);
+    if (!ks.isCredentialStoreAvailable()) {
+      ks.createCredentialStore();
+    }
+    return ks;
+  }
+
+  public void testJournaledWritesAreReplayed() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.addCredential("a", "one");
+    ks.addCredential("a", "two");
+    assertEquals("two", new String(ks.getCredential("a")));
+    ks.close();
+
+    // nothing has been folded into the base store yet
+    assertNull(new CMFKeystoreService(dir.getPath(), "test", ms).getCredential("a"));
+    JournalingKeystoreService reopened = newJournalingService();
+    assertEquals("two", new String(reopened.getCredential("a")));
+    reopened.close();
+  }
+
+  public void testSubmittedWritesAreJournaled() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.addCredential("a", "new");
+    ks.submitCredentialValues(Collections.singletonMap("a", "newest".toCharArray())).get(10, TimeUnit.SECONDS);
+    assertEquals("newest", new String(ks.getCredential("a")));
+    ks.close();
+    JournalingKeystoreService reopened = newJournalingService();
+    assertEquals("newest", new String(reopened.getCredential("a")));
+    reopened.close();
+  }
+
+  public void testMixedCaseAliases() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.compact();
+    new CMFKeystoreService(dir.getPath(), "test", ms).addCredential("MyAlias", "old");
+    ks.addCredential("MyAlias", "new");
+    assertEquals("new", new String(ks.getCredential("myalias")));
+    assertEquals("new", new String(ks.getCredential("MYALIAS")));
+    ks.addCredential("myalias", "newer");
+    assertEquals("newer", new String(ks.getCredential("MyAlias")));
+    ks.close();
+
+    JournalingKeystoreService reopened = newJournalingService();
+    assertEquals("newer", new String(reopened.getCredential("MyAlias")));
+    reopened.compact();
+    assertEquals("newer", new String(reopened.getCredential("myAlias")));
+    reopened.close();
+    assertEquals("newer", new String(new CMFKeystoreService(dir.getPath(), "test", ms).getCredential("myalias")));
+  }
+
+  public void testCompactionFoldsJournalIntoStore() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.addCredential("a", "one");
+    ks.addCredential("b", "two");
+    ks.compact();
+    ks.addCredential("c", "three");
+    assertEquals("one", new String(ks.getCredential("a")));
+    assertEquals("three", new String(ks.getCredential("c")));
+    ks.close();
+
+    CMFKeystoreService base = new CMFKeystoreService(dir.getPath(), "test", ms);
+    assertEquals("one", new String(base.getCredential("a")));
+    assertEquals("two", new String(base.getCredential("b")));
+    assertNull(base.getCredential("c"));
+  }
+
+  public void testFailedCompactionIsNotOverwritten() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    File store = ks.getCredentialStoreFile();
+    byte[] good = Files.readAllBytes(store.toPath());
+    ks.addCredential("a", "one");
+    Files.write(store.toPath(), "not a keystore".getBytes("UTF8"));
+    try {
+      ks.compact();
+      fail("compacted into a corrupt store");
+    } catch (KeystoreServiceException e) {
+      // expected
+    }
+    ks.addCredential("b", "two");
+    try {
+      ks.compact();
+      fail("compacted into a corrupt store");
+    } catch (KeystoreServiceException e) {
+      // expected
+    }
+    ks.close();
+
+    Files.write(store.toPath(), good);
+    JournalingKeystoreService reopened = newJournalingService();
+    assertEquals("one", new String(reopened.getCredential("a")));
+    assertEquals("two", new String(reopened.getCredential("b")));
+    reopened.compact();
+    reopened.close();
+    CMFKeystoreService base = new CMFKeystoreService(dir.getPath(), "test", ms);
+    assertEquals("one", new String(base.getCredential("a")));
+    assertEquals("two", new String(base.getCredential("b")));
+  }
+
+  public void testTornRecordIsDiscarded() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.addCredential("a", "one");
+    ks.addCredential("b", "two");
+    ks.close();
+
+    File journal = new File(dir, "test-credentials.journal");
+    RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+    try {
+      raf.setLength(raf.length() - 5);
+    } finally {
+      raf.close();
+    }
+
+    JournalingKeystoreService reopened = newJournalingService();
+    assertEquals("one", new String(reopened.getCredential("a")));
+    assertNull(reopened.getCredential("b"));
+    reopened.addCredential("c", "three");
+    reopened.close();
+    JournalingKeystoreService again = newJournalingService();
+    assertEquals("three", new String(again.getCredential("c")));
+    again.close();
+  }
+
+  public void testCorruptRecordBeforeGoodOnesFailsTheOpen() throws Exception {
+    JournalingKeystoreService ks = newJournalingService();
+    ks.addCredential("a", "one");
+    ks.addCredential("b", "two");
+    ks.close();
+
+    File journal = new File(dir, "test-credentials.journal");
+    long length = journal.length();
+    RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+    try {
+      // the first ciphertext byte after the header, length prefix and IV
+      raf.seek(24 + 4 + 12);
+      int b = raf.read();
+      raf.seek(24 + 4 + 12);
+      raf.write(b ^ 0xff);
+    } finally {
+      raf.close();
+    }
+
+    JournalingKeystoreService reopened = newJournalingService();
+    try {
+      reopened.addCredential("c", "three");
+      fail("opened a journal with a corrupt record");
+    } catch (KeystoreServiceException e) {
+      // expected
+    }
+    reopened.close();
+    assertEquals(length, journal.length());
+  }
+}
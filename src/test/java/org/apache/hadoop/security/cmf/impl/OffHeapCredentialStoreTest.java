@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class OffHeapCredentialStoreTest extends TestCase {
+
+  public void testCopyAndLease() throws Exception {
+    OffHeapCredentialStore store = new OffHeapCredentialStore();
+    store.put("a", "secret".toCharArray());
+    char[] dest = new char[32];
+    assertEquals(6, store.copyCredential("a", dest));
+    assertEquals("secret", new String(dest, 0, 6));
+    assertEquals(-1, store.copyCredential("b", dest));
+    // too small a destination only reports the length
+    char[] small = new char[2];
+    assertEquals(6, store.copyCredential("a", small));
+    assertEquals('\0', small[0]);
+
+    OffHeapCredentialStore.Lease lease = store.newLease();
+    assertTrue(lease.acquire("a"));
+    assertEquals(6, lease.length());
+    store.put("a", "replaced".toCharArray());
+    assertEquals(-1, lease.copyTo(dest));
+    assertTrue(lease.acquire("a"));
+    assertEquals(8, lease.copyTo(dest));
+    assertEquals("replaced", new String(dest, 0, 8));
+    assertFalse(lease.acquire("b"));
+    lease.close();
+    store.close();
+  }
+
+  public void testEvictionAndClose() throws Exception {
+    // one slab of 8k holds 256 of the smallest slots
+    OffHeapCredentialStore store = new OffHeapCredentialStore(8192, 8192);
+    for (int i = 0; i < 300; i++) {
+      store.put("alias-" + i, ("value-" + i).toCharArray());
+    }
+    assertEquals(8192, store.getAllocatedBytes());
+    assertEquals(256, store.getEntryCount());
+    char[] dest = new char[16];
+    assertEquals(-1, store.copyCredential("alias-0", dest));
+    assertEquals(9, store.copyCredential("alias-299", dest));
+    assertEquals("value-299", new String(dest, 0, 9));
+    assertTrue(store.remove("alias-299"));
+    assertEquals(-1, store.copyCredential("alias-299", dest));
+    store.close();
+    assertEquals(0, store.getEntryCount());
+    assertEquals(0, store.getAllocatedBytes());
+    try {
+      store.put("a", "b".toCharArray());
+      fail("closed store accepted a credential");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testLookupsDoNotFailWhenNotCached() throws Exception {
+    File dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    OffHeapKeystoreService ks = new OffHeapKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    char[] large = new char[5000];
+    Arrays.fill(large, 'x');
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    credentials.put("large", new String(large));
+    credentials.put("a", "one");
+    credentials.put("b", "two");
+    ks.addCredentials(credentials);
+    // room for a single slab, which the first credential takes
+    OffHeapCredentialStore store = new OffHeapCredentialStore(OffHeapCredentialStore.DEFAULT_SLAB_BYTES,
+        OffHeapCredentialStore.DEFAULT_SLAB_BYTES);
+    ks.setOffHeapCredentialStore(store);
+    try {
+      assertEquals(new String(large), new String(ks.getCredential("large")));
+      assertEquals("one", new String(ks.getCredential("a")));
+      // a credential of a size class that has no slab and cannot get one
+      char[] padded = new char[300];
+      Arrays.fill(padded, 'p');
+      ks.addCredential("c", padded);
+      assertEquals(300, ks.getCredential("c").length);
+      assertEquals(300, ks.copyCredential("c", new char[300]));
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testNoHeapAllocationPerLookup() throws Exception {
+    File dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    MasterService ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+    OffHeapKeystoreService ks = new OffHeapKeystoreService(dir.getPath(), "test", ms);
+    ks.createCredentialStore();
+    ks.addCredential("a", "off-heap-secret");
+    ks.setCacheCheckInterval(60000);
+    OffHeapCredentialStore store = new OffHeapCredentialStore();
+    ks.setOffHeapCredentialStore(store);
+    assertEquals("off-heap-secret", new String(ks.getCredential("a")));
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    char[] dest = new char[64];
+    int lookups = 100000;
+    for (int i = 0; i < lookups; i++) {
+      ks.copyCredential("a", dest);
+    }
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < lookups; i++) {
+      ks.copyCredential("a", dest);
+    }
+    long allocated = threads.getThreadAllocatedBytes(thread) - before;
+    assertEquals("off-heap-secret", new String(dest, 0, 15));
+    // allow for the measurement itself, but not for a single byte per lookup
+    assertTrue("allocated " + allocated + " bytes", allocated < lookups);
+    store.close();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class PasswordGeneratorTest extends TestCase {
+
+  public void testLengthAndAlphabet() throws Exception {
+    PasswordGenerator generator = new PasswordGenerator(20, "abc".toCharArray());
+    char[] password = generator.generate();
+    assertEquals(20, password.length);
+    for (char c : password) {
+      assertTrue(c >= 'a' && c <= 'c');
+    }
+  }
+
+  public void testUniformWithoutModuloBias() throws Exception {
+    // 256 % 100 == 56, so reducing bytes modulo 100 would draw the first
+    // 56 characters with probability 3/256 each instead of 1/100
+    char[] alphabet = new char[100];
+    for (int i = 0; i < alphabet.length; i++) {
+      alphabet[i] = (char) ('0' + i);
+    }
+    PasswordGenerator generator = new PasswordGenerator(1000, alphabet);
+    int low = 0;
+    for (char[] password : generator.generate(100)) {
+      for (char c : password) {
+        if (c < '0' + 56) {
+          low++;
+        }
+      }
+    }
+    // 56000 expected against 65625 with modulo bias, the deviation is about 500
+    assertTrue("low " + low, Math.abs(low - 56000) < 2500);
+  }
+
+  public void testPolicyAndBulk() throws Exception {
+    char[] digits = "0123456789".toCharArray();
+    char[] symbols = "!#%".toCharArray();
+    PasswordGenerator generator = new PasswordGenerator(4, "abcdefghijklmnopqrstuvwxyz0123456789!#%".toCharArray(),
+        digits, symbols);
+    char[][] passwords = generator.generate(10000);
+    Set<String> distinct = new HashSet<String>();
+    for (char[] password : passwords) {
+      assertTrue(new String(password).matches(".*[0-9].*"));
+      assertTrue(new String(password).matches(".*[!#%].*"));
+      distinct.add(new String(password));
+    }
+    assertTrue(distinct.size() > 5000);
+    try {
+      new PasswordGenerator(1, "ab".toCharArray(), digits);
+      fail("accepted a policy the alphabet cannot meet");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+public class ShardedKeystoreServiceTest extends TestCase {
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    ms = new TestCMFMasterService("test");
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  private Map<String, String> credentials(int count) {
+    Map<String, String> credentials = new LinkedHashMap<String, String>();
+    for (int i = 0; i < count; i++) {
+      credentials.put("alias" + i, "value" + i);
+    }
+    return credentials;
+  }
+
+  private File shardFile(int shard, int shards) {
+    return new File(dir, ShardedKeystoreService.shardName("test", shard, shards) + "-credentials.jceks");
+  }
+
+  public void testWriteTouchesOnlyItsShard() throws Exception {
+    ShardedKeystoreService ks = new ShardedKeystoreService(dir.getPath(), "test", ms, 4);
+    ks.createCredentialStore();
+    assertTrue(ks.isCredentialStoreAvailable());
+    ks.addCredentials(credentials(20));
+    long[] modified = new long[4];
+    for (int i = 0; i < 4; i++) {
+      modified[i] = shardFile(i, 4).lastModified();
+    }
+    Thread.sleep(1100);
+    ks.addCredential("alias3", "changed");
+    int target = ks.shardFor("alias3");
+    for (int i = 0; i < 4; i++) {
+      if (i != target) {
+        assertEquals(modified[i], shardFile(i, 4).lastModified());
+      }
+    }
+    assertEquals("changed", new String(ks.getCredential("alias3")));
+    assertEquals("value7", new String(ks.getCredential("alias7")));
+    assertNull(ks.getCredential("missing"));
+    assertEquals(3, ks.getCredentials(Arrays.asList("alias1", "alias2", "missing", "alias19")).size());
+
+    // the layout wins over the requested shard count
+    ShardedKeystoreService reopened = new ShardedKeystoreService(dir.getPath(), "test", ms, 8);
+    assertEquals(4, reopened.getShardCount());
+    assertEquals("value11", new String(reopened.getCredential("alias11")));
+  }
+
+  public void testSubmittedWritesGoToTheShards() throws Exception {
+    ShardedKeystoreService ks = new ShardedKeystoreService(dir.getPath(), "test", ms, 4);
+    ks.createCredentialStore();
+    Map<String, char[]> values = new LinkedHashMap<String, char[]>();
+    for (Map.Entry<String, String> credential : credentials(10).entrySet()) {
+      values.put(credential.getKey(), credential.getValue().toCharArray());
+    }
+    ks.submitCredentialValues(values).get(10, TimeUnit.SECONDS);
+    ShardedKeystoreService reopened = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    assertEquals(4, reopened.getShardCount());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("value" + i, new String(reopened.getCredential("alias" + i)));
+    }
+  }
+
+  public void testReloadReloadsLoadedShards() throws Exception {
+    ShardedKeystoreService writer = new ShardedKeystoreService(dir.getPath(), "test", ms, 4);
+    writer.createCredentialStore();
+    writer.addCredentials(credentials(8));
+    ShardedKeystoreService reader = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    reader.setCacheCheckInterval(60000);
+    for (int i = 0; i < 8; i++) {
+      assertEquals("value" + i, new String(reader.getCredential("alias" + i)));
+    }
+    assertTrue(reader.reloadCredentialStore().isEmpty());
+
+    Thread.sleep(5);
+    writer.addCredential("alias3", "changed");
+    assertEquals(Collections.singleton("alias3"), reader.reloadCredentialStore());
+    assertEquals("changed", new String(reader.getCredential("alias3")));
+  }
+
+  public void testOffHeapStorePerShard() throws Exception {
+    ShardedKeystoreService ks = new ShardedKeystoreService(dir.getPath(), "test", ms, 2);
+    ks.createCredentialStore();
+    ks.addCredentials(credentials(10));
+    assertEquals("value0", new String(ks.getCredential("alias0")));
+    List<OffHeapCredentialStore> stores = Arrays.asList(new OffHeapCredentialStore(), new OffHeapCredentialStore());
+    try {
+      // reaches the shard already loaded and the one created later
+      ks.setOffHeapCredentialStores(stores);
+      for (int i = 0; i < 10; i++) {
+        assertEquals("value" + i, new String(ks.getCredential("alias" + i)));
+        assertTrue(stores.get(ks.shardFor("alias" + i)).contains("alias" + i));
+        assertFalse(stores.get(1 - ks.shardFor("alias" + i)).contains("alias" + i));
+      }
+      try {
+        ks.setOffHeapCredentialStores(stores.subList(0, 1));
+        fail("Expected one store per shard");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      for (OffHeapCredentialStore store : stores) {
+        store.close();
+      }
+    }
+  }
+
+  public void testMigrateAndReshard() throws Exception {
+    CMFKeystoreService single = new CMFKeystoreService(dir.getPath(), "test", ms);
+    single.createCredentialStore();
+    single.addCredentials(credentials(12));
+
+    ShardedCredentialStoreTool.migrate(dir.getPath(), "test", ms, 3);
+    ShardedKeystoreService ks = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    assertEquals(3, ks.getShardCount());
+    for (int i = 0; i < 12; i++) {
+      assertEquals("value" + i, new String(ks.getCredential("alias" + i)));
+    }
+
+    ShardedCredentialStoreTool.reshard(dir.getPath(), "test", ms, 5);
+    for (int i = 0; i < 3; i++) {
+      assertFalse(shardFile(i, 3).exists());
+    }
+    ks = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    assertEquals(5, ks.getShardCount());
+    for (int i = 0; i < 12; i++) {
+      assertEquals("value" + i, new String(ks.getCredential("alias" + i)));
+    }
+    assertEquals(12, ks.getCredentialStore().size());
+  }
+
+  public void testMigrateMixedCaseAliases() throws Exception {
+    CMFKeystoreService single = new CMFKeystoreService(dir.getPath(), "test", ms);
+    single.createCredentialStore();
+    for (int i = 0; i < 8; i++) {
+      single.addCredential("Db.Password" + i, "value" + i);
+    }
+
+    ShardedCredentialStoreTool.migrate(dir.getPath(), "test", ms, 4);
+    ShardedKeystoreService ks = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    for (int i = 0; i < 8; i++) {
+      assertEquals("value" + i, new String(ks.getCredential("Db.Password" + i)));
+    }
+
+    ShardedCredentialStoreTool.reshard(dir.getPath(), "test", ms, 3);
+    ks = new ShardedKeystoreService(dir.getPath(), "test", ms);
+    for (int i = 0; i < 8; i++) {
+      assertEquals("value" + i, new String(ks.getCredential("Db.Password" + i)));
+      assertEquals("value" + i, new String(ks.getCredential("db.password" + i)));
+    }
+  }
+}
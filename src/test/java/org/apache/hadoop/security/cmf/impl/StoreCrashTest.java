@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security.cmf.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.security.cmf.MasterService;
+
+/**
+ * Kills a JVM that is writing a credential store at random points and
+ * checks that the store left behind loads and holds every credential whose
+ * write had returned.
+ */
+public class StoreCrashTest extends TestCase {
+
+  private static final String SERVICE = "crash";
+
+  private File dir;
+  private MasterService ms;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = new File("target/cmf-test/" + getName());
+    FileUtils.deleteQuietly(dir);
+    dir.mkdirs();
+    ms = new TestCMFMasterService(SERVICE);
+    ms.setupMasterSecret(dir.getPath(), false);
+  }
+
+  /**
+   * Writes credentials until killed, printing the number of each write
+   * once it has returned.
+   */
+  public static void main(String[] args) throws Exception {
+    MasterService ms = new TestCMFMasterService(SERVICE);
+    ms.setupMasterSecret(args[0], false);
+    CMFKeystoreService ks = new CMFKeystoreService(args[0], SERVICE, ms);
+    ks.setDurabilityMode(DurabilityMode.valueOf(args[1]));
+    for (int i = Integer.parseInt(args[2]); ; i++) {
+      ks.addCredential("alias" + i, "value" + i);
+      System.out.println(i);
+      System.out.flush();
+    }
+  }
+
+  public void testStrictWritesSurviveKill() throws Exception {
+    crash(DurabilityMode.STRICT);
+  }
+
+  public void testBatchedWritesSurviveKill() throws Exception {
+    crash(DurabilityMode.BATCHED);
+  }
+
+  public void testRelaxedWritesSurviveKill() throws Exception {
+    crash(DurabilityMode.RELAXED);
+  }
+
+  public void testModesWriteTheSameStore() throws Exception {
+    for (DurabilityMode mode : DurabilityMode.values()) {
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), SERVICE, ms);
+      ks.setDurabilityMode(mode);
+      ks.addCredential(mode.name().toLowerCase(), mode.name());
+    }
+    BaseKeystoreService.syncDirectories();
+    CMFKeystoreService reader = new CMFKeystoreService(dir.getPath(), SERVICE, ms);
+    for (DurabilityMode mode : DurabilityMode.values()) {
+      assertEquals(mode.name(), new String(reader.getCredential(mode.name().toLowerCase())));
+    }
+  }
+
+  private void crash(DurabilityMode mode) throws Exception {
+    Random random = new Random();
+    int next = 0;
+    for (int round = 0; round < 3; round++) {
+      int acknowledged = runUntilKilled(mode, next, 100 + random.nextInt(400));
+      assertTrue("the writer made no progress", acknowledged >= next);
+
+      File store = new File(dir, SERVICE + "-credentials.jceks");
+      assertTrue(store.length() > 0);
+      CMFKeystoreService ks = new CMFKeystoreService(dir.getPath(), SERVICE, ms);
+      assertNotNull(ks.getCredentialStore());
+      for (int i = 0; i <= acknowledged; i++) {
+        char[] credential = ks.getCredential("alias" + i);
+        assertNotNull("lost alias" + i + " after a kill in " + mode + " mode", credential);
+        assertEquals("value" + i, new String(credential));
+      }
+      next = acknowledged + 1;
+    }
+  }
+
+  /**
+   * @return the last write acknowledged before the writer was killed
+   */
+  private int runUntilKilled(DurabilityMode mode, int first, long delayMillis) throws Exception {
+    String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+    ProcessBuilder builder = new ProcessBuilder(
+        new File(System.getProperty("java.home"), "bin/java").getPath(),
+        "-cp", classpath, StoreCrashTest.class.getName(),
+        dir.getPath(), mode.name(), Integer.toString(first));
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    final Process writer = builder.start();
+    final AtomicInteger acknowledged = new AtomicInteger(first - 1);
+    final BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream(), "UTF-8"));
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          String line;
+          while ((line = out.readLine()) != null) {
+            acknowledged.set(Integer.parseInt(line));
+          }
+        } catch (Exception e) {
+          // the writer was killed
+        }
+      }
+    };
+    reader.start();
+    try {
+      // let it get going before choosing the moment to kill it
+      long deadline = System.currentTimeMillis() + 30000;
+      while (acknowledged.get() < first + 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(delayMillis);
+    }
+    finally {
+      writer.destroyForcibly().waitFor();
+      reader.join();
+    }
+    return acknowledged.get();
+  }
+}